@@ -0,0 +1,142 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对比一个解码器和解码器池解码大区域的耗时,原图为12,24,48百万像素,结果输出到logcat.
+ * 视口:整张图片按4倍压缩解码,相当于适应屏幕时刷新预览;裁剪:中心区域按原始分辨率解码,相当于裁剪时的一条
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecoderPoolBenchmark {
+
+    private static final String TAG = "DecoderPoolBenchmark";
+
+    private static final int[][] SIZES = {{4000, 3000}, {6000, 4000}, {8000, 6000}};
+    private static final int VIEWPORT_SAMPLE_SIZE = 4;
+    private static final int CROP_SIZE = 2048;
+    private static final int RUNS = 3;
+    private static final int MAX_DIFFERENCE = 8;    //拆分解码和一次解码的每个通道允许的最大差别
+
+    @Test
+    public void decodeWithPool() throws Exception {
+        for (int[] size : SIZES) {
+            File file = createJpeg(size[0], size[1]);
+            final String path = file.getAbsolutePath();
+            BitmapRegionDecoder single = BitmapRegionDecoder.newInstance(path, false);
+            DecoderPool pool = new DecoderPool(BitmapRegionDecoder.newInstance(path, false),
+                    new Callable<BitmapRegionDecoder>() {
+                        @Override
+                        public BitmapRegionDecoder call() throws IOException {
+                            return BitmapRegionDecoder.newInstance(path, false);
+                        }
+                    }, DecoderPool.defaultSize(file.length()));
+            try {
+                String name = size[0] * size[1] / 1000000 + "MP";
+                compare(name + " viewport", single, pool, new Rect(0, 0, size[0], size[1]),
+                        VIEWPORT_SAMPLE_SIZE);
+                int left = (size[0] - CROP_SIZE) / 2;
+                int top = (size[1] - CROP_SIZE) / 2;
+                compare(name + " crop", single, pool,
+                        new Rect(left, top, left + CROP_SIZE, top + CROP_SIZE), 1);
+                Log.i(TAG, name + ": " + pool.getSize() + " decoders, " + file.length() + " bytes");
+            } finally {
+                pool.close();   //同时回收第一个解码器
+                single.recycle();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 分别用一个解码器和解码器池解码同一个区域,取多次中最快的一次.第一次用解码器池解码时打开更多的解码器,不计入耗时
+     */
+    private static void compare(String name, BitmapRegionDecoder single, DecoderPool pool, Rect rect,
+                                int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap expected = single.decodeRegion(rect, options);
+        Bitmap actual = pool.decodeRegion(rect, options);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertTrue(name, maxDifference(expected, actual) <= MAX_DIFFERENCE);
+        expected.recycle();
+        actual.recycle();
+
+        long singleTime = Long.MAX_VALUE;
+        long poolTime = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            single.decodeRegion(rect, options).recycle();
+            singleTime = Math.min(singleTime, SystemClock.elapsedRealtime() - start);
+            start = SystemClock.elapsedRealtime();
+            pool.decodeRegion(rect, options).recycle();
+            poolTime = Math.min(poolTime, SystemClock.elapsedRealtime() - start);
+        }
+        Log.i(TAG, name + ": single " + singleTime + "ms, pool " + poolTime + "ms, speedup "
+                + String.format("%.2f", (float) singleTime / Math.max(1, poolTime)));
+    }
+
+    /**
+     * @return 两张尺寸相同的图片每个通道的最大差别
+     */
+    private static int maxDifference(Bitmap a, Bitmap b) {
+        int width = a.getWidth();
+        int[] rowA = new int[width];
+        int[] rowB = new int[width];
+        int max = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            a.getPixels(rowA, 0, width, 0, y, width, 1);
+            b.getPixels(rowB, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    max = Math.max(max, Math.abs((rowA[x] >>> shift & 0xff) - (rowB[x] >>> shift & 0xff)));
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 在缓存目录中生成竖条纹的JPEG,用RGB_565绘制以减少内存.
+     */
+    private static File createJpeg(int width, int height) throws IOException {
+        Bitmap src = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(src);
+        Paint paint = new Paint();
+        for (int i = 0; i < width; i += 50) {
+            paint.setColor(Color.rgb(i % 256, (i / 3) % 256, (i / 7) % 256));
+            canvas.drawRect(i, 0, i + 50, height, paint);
+        }
+        File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "decoder_pool_" + width + "x" + height + ".jpg");
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            src.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+        } finally {
+            outputStream.close();
+            src.recycle();
+        }
+        return file;
+    }
+}
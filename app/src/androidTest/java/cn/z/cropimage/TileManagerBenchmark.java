@@ -0,0 +1,159 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对比平移时整个显示区域解码和分块解码的耗时,以及再次打开时从磁盘缓存读取和重新解码的耗时,结果输出到logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TileManagerBenchmark {
+
+    private static final String TAG = "TileManagerBenchmark";
+
+    private static final int SRC_WIDTH = 4000;
+    private static final int SRC_HEIGHT = 3000;
+    private static final int VIEW_SIZE = 1080;
+    private static final int SAMPLE_SIZE = 2;
+    private static final float SCALE = 0.5f;
+    private static final int STEPS = 40;
+    private static final int STEP_DISTANCE = 40;    //每一步移动的原图像素数
+
+    private BitmapRegionDecoder mDecoder;
+
+    @Before
+    public void setUp() throws Exception {
+        Bitmap src = Bitmap.createBitmap(SRC_WIDTH, SRC_HEIGHT, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(src);
+        Paint paint = new Paint();
+        for (int i = 0; i < SRC_WIDTH; i += 50) {
+            paint.setColor(Color.rgb(i % 256, (i / 3) % 256, (i / 7) % 256));
+            canvas.drawRect(i, 0, i + 50, SRC_HEIGHT, paint);
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        src.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+        src.recycle();
+        byte[] data = outputStream.toByteArray();
+        mDecoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDecoder.recycle();
+    }
+
+    @Test
+    public void panWithTiles() throws Exception {
+        float halfSize = VIEW_SIZE / SCALE / 2;
+        float centerY = SRC_HEIGHT / 2;
+
+        //每一步解码整个显示区域
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = SAMPLE_SIZE;
+        Rect rect = new Rect();
+        long start = SystemClock.elapsedRealtime();
+        for (int step = 0; step < STEPS; step++) {
+            float centerX = halfSize + step * STEP_DISTANCE;
+            rect.set((int) (centerX - halfSize), (int) (centerY - halfSize),
+                    (int) (centerX + halfSize), (int) (centerY + halfSize));
+            rect.intersect(0, 0, SRC_WIDTH, SRC_HEIGHT);
+            mDecoder.decodeRegion(rect, options).recycle();
+        }
+        long wholeRegionTime = SystemClock.elapsedRealtime() - start;
+
+        //分块解码,每一步只解码新进入显示区域的块
+        TileManager tileManager = new TileManager(new TileManager.Callback() {
+            @Override
+            public void onTileLoaded() {
+            }
+        });
+        tileManager.setDecoder(new DecoderPool(mDecoder), SRC_WIDTH, SRC_HEIGHT, null);
+        tileManager.decodeNext();   //先解码缩略图,不计入平移的耗时
+        int decodedTiles = 0;
+        start = SystemClock.elapsedRealtime();
+        for (int step = 0; step < STEPS; step++) {
+            float centerX = halfSize + step * STEP_DISTANCE;
+            tileManager.update(SAMPLE_SIZE, centerX - halfSize, centerY - halfSize,
+                    centerX + halfSize, centerY + halfSize);
+            while (tileManager.decodeNext()) {
+                decodedTiles++;
+            }
+        }
+        long tileTime = SystemClock.elapsedRealtime() - start;
+        tileManager.stop();
+
+        Log.i(TAG, "whole region: " + wholeRegionTime + "ms for " + STEPS + " steps; tiles: "
+                + tileTime + "ms, " + decodedTiles + " tiles decoded");
+        int tileSrcSize = TileManager.TILE_SIZE * SAMPLE_SIZE;
+        int tilesPerViewport = (int) Math.pow(Math.ceil(halfSize * 2 / tileSrcSize) + 1, 2);
+        assertTrue(decodedTiles < tilesPerViewport * STEPS);
+    }
+
+    @Test
+    public void reopenWithDiskCache() throws Exception {
+        File directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "tile-benchmark");
+        TileDiskCache diskCache = new TileDiskCache(directory, 64 << 20);
+        diskCache.clear();
+        Callable<String> keyLoader = new Callable<String>() {
+            @Override
+            public String call() {
+                return "benchmark";
+            }
+        };
+        //第一次打开:解码并写入磁盘缓存;第二次打开:从磁盘缓存读取
+        long firstTime = openViewport(diskCache, keyLoader);
+        int misses = diskCache.getMissCount();
+        long secondTime = openViewport(diskCache, keyLoader);
+        Log.i(TAG, "first open: " + firstTime + "ms; reopen from disk cache: " + secondTime + "ms, "
+                + diskCache.getHitCount() + " hits, " + diskCache.getSize() + " bytes");
+        assertEquals(misses, diskCache.getMissCount());
+        assertEquals(misses, diskCache.getHitCount());
+        diskCache.clear();
+    }
+
+    /**
+     * 用新的TileManager打开图片,解码缩略图和显示区域内所有的块.
+     *
+     * @return 耗时(ms)
+     */
+    private long openViewport(TileDiskCache diskCache, Callable<String> keyLoader) {
+        TileManager tileManager = new TileManager(new TileManager.Callback() {
+            @Override
+            public void onTileLoaded() {
+            }
+        });
+        tileManager.setDiskCache(diskCache);
+        long start = SystemClock.elapsedRealtime();
+        tileManager.setDecoder(new DecoderPool(mDecoder), SRC_WIDTH, SRC_HEIGHT, keyLoader);
+        float halfSize = VIEW_SIZE / SCALE / 2;
+        tileManager.update(SAMPLE_SIZE, SRC_WIDTH / 2 - halfSize, SRC_HEIGHT / 2 - halfSize,
+                SRC_WIDTH / 2 + halfSize, SRC_HEIGHT / 2 + halfSize);
+        //noinspection StatementWithEmptyBody
+        while (tileManager.decodeNext()) {
+        }
+        long time = SystemClock.elapsedRealtime() - start;
+        tileManager.stop();
+        return time;
+    }
+}
@@ -0,0 +1,72 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 用{@link BitmapRegionDecoder}实现的局部解码器.
+ */
+public class AndroidRegionDecoder implements RegionDecoder {
+
+    private final BitmapRegionDecoder mDecoder;
+
+    public AndroidRegionDecoder(BitmapRegionDecoder decoder) {
+        this.mDecoder = decoder;
+    }
+
+    /**
+     * 直接打开文件,和{@link CropImageView#setSrcImage(File)}一样不占用Java堆.
+     *
+     * @param file 原图文件
+     * @return 每次调用{@link Factory#open()}都创建一个新的解码器
+     */
+    public static Factory fromFile(final File file) {
+        return new Factory() {
+            @Override
+            public RegionDecoder open() throws IOException {
+                return new AndroidRegionDecoder(
+                        BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false));
+            }
+        };
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    @Override
+    public Pixels decodeRegion(int left, int top, int right, int bottom, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Rect rect = new Rect(left, top, right, bottom);
+        Bitmap bitmap = mDecoder.decodeRegion(rect, options);
+        if (bitmap == null) {
+            throw new IOException("decode failed: " + rect);
+        }
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return new Pixels(pixels, width, height, bitmap.hasAlpha());
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public void recycle() {
+        mDecoder.recycle();
+    }
+}
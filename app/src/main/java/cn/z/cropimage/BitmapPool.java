@@ -0,0 +1,66 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 可复用的Bitmap池.
+ * 不再使用的Bitmap放入池中,解码时通过{@link android.graphics.BitmapFactory.Options#inBitmap}复用,避免频繁的分配
+ * 和回收原生内存;池满时放入的Bitmap直接回收.可以在多个线程中使用
+ */
+class BitmapPool {
+
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private final int mMaxCount;    //池中最多保存的Bitmap个数
+
+    /**
+     * @param maxCount 池中最多保存的Bitmap个数
+     */
+    BitmapPool(int maxCount) {
+        this.mMaxCount = maxCount;
+    }
+
+    /**
+     * 取出一个宽,高和格式都相同的Bitmap.
+     *
+     * @return 没有符合条件的Bitmap时返回null
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                iterator.remove();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 放入一个不再使用的Bitmap.不可复用或者池已满时直接回收.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || mBitmaps.size() >= mMaxCount) {
+            bitmap.recycle();
+            return;
+        }
+        mBitmaps.push(bitmap);
+    }
+
+    /**
+     * 回收池中所有的Bitmap.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+    }
+}
@@ -0,0 +1,367 @@
+package cn.z.cropimage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 没有控件的批量裁剪.
+ * 按照保存的{@link CropParams}重新裁剪原图,裁剪范围和{@link CropImageView}上相同;输出精确尺寸的PNG,
+ * 先用不小于输出尺寸的最大的2的幂压缩倍数解码,再用{@link Resampler}缩放;图片有方向时只变换解码出的裁剪区域.
+ * 多个原图在固定数量的线程中并行裁剪,同一个原图的多个输出尺寸共用一个解码器;所有线程解码和缩放占用的像素内存
+ * 不超过设置的上限.
+ * 解码只通过{@link RegionDecoder},结果是{@link Result}而不是引用了Bitmap的{@link CropResult},
+ * 不依赖Android的类,可以在JVM上运行(比如单元测试)
+ */
+public class CropEngine {
+
+    private static final int BYTES_PER_PIXEL = 4;   //解码和缩放的像素都是int
+    private static final int RESAMPLE_BYTES_PER_PIXEL = 16; //Resampler的中间结果每个像素是4个float
+
+    /**
+     * 一个原图的裁剪任务.
+     */
+    public static class Job {
+
+        private final RegionDecoder.Factory mSource;
+        private final CropParams mParams;
+        private final List<File> mFiles = new ArrayList<>();
+        private final List<Integer> mResolutions = new ArrayList<>();
+
+        /**
+         * @param source 原图
+         * @param params 裁剪参数
+         */
+        public Job(RegionDecoder.Factory source, CropParams params) {
+            this.mSource = source;
+            this.mParams = params;
+        }
+
+        /**
+         * 添加一个输出.
+         *
+         * @param file       存放的文件
+         * @param resolution 输出的宽度,高度按裁剪区域的宽高比;为负则取原始的分辨率
+         * @return this
+         */
+        public Job addOutput(File file, int resolution) {
+            mFiles.add(file);
+            mResolutions.add(resolution);
+            return this;
+        }
+    }
+
+    /**
+     * 一个输出的裁剪结果.
+     */
+    public static class Result {
+
+        private final File mFile;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mByteSize;
+        private final long mEncodeTime;
+        private final long mTotalTime;
+
+        Result(File file, int width, int height, long byteSize, long encodeTime, long totalTime) {
+            this.mFile = file;
+            this.mWidth = width;
+            this.mHeight = height;
+            this.mByteSize = byteSize;
+            this.mEncodeTime = encodeTime;
+            this.mTotalTime = totalTime;
+        }
+
+        /**
+         * @return 存放裁剪结果的文件
+         */
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * @return 输出图片的宽度
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return 输出图片的高度
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return 输出文件的大小(字节)
+         */
+        public long getByteSize() {
+            return mByteSize;
+        }
+
+        /**
+         * @return 编码耗时(ms)
+         */
+        public long getEncodeTime() {
+            return mEncodeTime;
+        }
+
+        /**
+         * @return 裁剪这个输出的总耗时(ms), 包括等待内存上限的时间
+         */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final MemoryBudget mBudget;
+
+    //统计
+    private int mCompletedImages;       //已经输出的图片数
+    private int mFailedJobs;            //失败的任务数
+    private long mFirstSubmitNanos;     //第一个任务提交的时间
+    private long mLastCompleteNanos;    //最后一张图片输出的时间
+
+    /**
+     * @param threads        并行裁剪的线程数
+     * @param maxDecodeBytes 所有线程解码和缩放占用的像素内存上限(字节);单个输出超过上限时独占执行
+     */
+    public CropEngine(int threads, long maxDecodeBytes) {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "CropEngine-" + count.incrementAndGet());
+            }
+        });
+        mBudget = new MemoryBudget(maxDecodeBytes);
+    }
+
+    /**
+     * 提交一个任务,在线程池中执行.
+     *
+     * @param job 任务
+     * @return 按照添加顺序的每个输出的结果; 失败时抛出解码或者写入的异常
+     */
+    public Future<List<Result>> submit(final Job job) {
+        markSubmit();
+        return mExecutor.submit(new Callable<List<Result>>() {
+            @Override
+            public List<Result> call() throws Exception {
+                return crop(job);
+            }
+        });
+    }
+
+    /**
+     * 在调用的线程中执行一个任务,同样受内存上限的限制.
+     *
+     * @param job 任务
+     * @return 按照添加顺序的每个输出的结果
+     * @throws IOException 解码或者写入失败;线程被中断时抛出{@link InterruptedIOException}
+     */
+    public List<Result> crop(Job job) throws IOException {
+        markSubmit();
+        RegionDecoder decoder = null;
+        boolean success = false;
+        try {
+            decoder = job.mSource.open();
+            Orientation orientation = Orientation.fromExif(job.mParams.getOrientation());
+            GeometryRect rect = new GeometryRect();
+            job.mParams.getCropRect(orientation.displayWidth(decoder.getWidth(), decoder.getHeight()),
+                    orientation.displayHeight(decoder.getWidth(), decoder.getHeight()), rect);
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < job.mFiles.size(); i++) {
+                results.add(cropOutput(decoder, orientation, rect, job.mFiles.get(i),
+                        job.mResolutions.get(i)));
+                synchronized (this) {
+                    mCompletedImages++;
+                    mLastCompleteNanos = System.nanoTime();
+                }
+            }
+            success = true;
+            return Collections.unmodifiableList(results);
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            if (!success) {
+                synchronized (this) {
+                    mFailedJobs++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param rect 裁剪区域(显示方向的坐标)
+     */
+    private Result cropOutput(RegionDecoder decoder, Orientation orientation, GeometryRect rect,
+                                  File file, int resolution) throws IOException {
+        long start = System.nanoTime();
+        int left = (int) rect.left;
+        int top = (int) rect.top;
+        int right = (int) rect.right;
+        int bottom = (int) rect.bottom;
+        int width = right - left;
+        int height = bottom - top;
+        int sampleSize = 1;
+        int targetHeight = 0;
+        if (resolution > 0) {
+            targetHeight = CropGeometry.scaleHeight(resolution, width, height);
+            sampleSize = Resampler.exactSampleSize(width, height, resolution, targetHeight);
+        }
+        long bytes = estimateBytes(orientation, width, height, sampleSize, resolution, targetHeight);
+        try {
+            mBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("crop cancelled");
+        }
+        long encodeNanos;
+        int outputWidth;
+        int outputHeight;
+        try {
+            GeometryRect rawRect = new GeometryRect();
+            rawRect.set(left, top, right, bottom);
+            orientation.toRaw(rawRect, decoder.getWidth(), decoder.getHeight(), rawRect, new float[2]);
+            RegionDecoder.Pixels decoded = decoder.decodeRegion(Math.round(rawRect.left),
+                    Math.round(rawRect.top), Math.round(rawRect.right), Math.round(rawRect.bottom),
+                    sampleSize);
+            boolean hasAlpha = decoded.hasAlpha;
+            int[] pixels = orientation.apply(decoded.pixels, decoded.width, decoded.height);
+            outputWidth = orientation.displayWidth(decoded.width, decoded.height);
+            outputHeight = orientation.displayHeight(decoded.width, decoded.height);
+            //变换前的像素不再被引用,缩放时可以回收
+            //noinspection UnusedAssignment
+            decoded = null;
+            if (resolution > 0) {
+                pixels = Resampler.resize(pixels, outputWidth, outputHeight, resolution, targetHeight);
+                outputWidth = resolution;
+                outputHeight = targetHeight;
+            }
+            long encodeStart = System.nanoTime();
+            writePng(file, pixels, outputWidth, outputHeight, hasAlpha);
+            encodeNanos = System.nanoTime() - encodeStart;
+        } finally {
+            mBudget.release(bytes);
+        }
+        return new Result(file, outputWidth, outputHeight, file.length(),
+                encodeNanos / 1000000, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * 估计裁剪一个输出时同时存在的像素内存的最大值.
+     * 解码后的像素一直存在到缩放结束;有方向时变换期间变换前后的像素同时存在,变换前的像素在缩放前已经不再被引用;
+     * 缩放时还有{@link Resampler}水平缩放的浮点数中间结果(输出宽度*解码高度)和缩放后的像素.
+     * 解码后的尺寸按区域尺寸除以压缩倍数再加1估计,不小于实际的尺寸
+     *
+     * @param width  裁剪区域的宽度(显示方向)
+     * @param height 裁剪区域的高度(显示方向)
+     * @return 字节数
+     */
+    static long estimateBytes(Orientation orientation, int width, int height, int sampleSize, int resolution,
+                              int targetHeight) {
+        long decodedHeight = height / sampleSize + 1;
+        long decodedBytes = (width / sampleSize + 1) * decodedHeight * BYTES_PER_PIXEL;
+        long orientBytes = orientation.isIdentity() ? 0 : decodedBytes;
+        long resizeBytes = 0;
+        if (resolution > 0) {
+            resizeBytes = resolution * decodedHeight * RESAMPLE_BYTES_PER_PIXEL
+                    + (long) resolution * targetHeight * BYTES_PER_PIXEL;
+        }
+        return decodedBytes + Math.max(orientBytes, resizeBytes);
+    }
+
+    /**
+     * @return 正在裁剪的输出申请的像素内存(字节)
+     */
+    long getUsedDecodeBytes() {
+        return mBudget.getUsedBytes();
+    }
+
+    private static void writePng(File file, int[] pixels, int width, int height, boolean hasAlpha)
+            throws IOException {
+        OutputStream outputStream = null;
+        PngEncoder encoder = null;
+        boolean success = false;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            encoder = new PngEncoder(outputStream, width, height, hasAlpha);
+            encoder.writeRows(pixels, 0, width, height);
+            encoder.finish();
+            outputStream.close();
+            outputStream = null;
+            success = true;
+        } finally {
+            if (encoder != null) {
+                encoder.close();
+            }
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized void markSubmit() {
+        if (mFirstSubmitNanos == 0) {
+            mFirstSubmitNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return 已经输出的图片数
+     */
+    public synchronized int getCompletedImageCount() {
+        return mCompletedImages;
+    }
+
+    /**
+     * @return 失败的任务数
+     */
+    public synchronized int getFailedJobCount() {
+        return mFailedJobs;
+    }
+
+    /**
+     * 吞吐量.
+     *
+     * @return 从第一个任务提交到最后一张图片输出, 平均每秒输出的图片数; 还没有输出时为0
+     */
+    public synchronized float getThroughput() {
+        if (mCompletedImages == 0) {
+            return 0;
+        }
+        long nanos = Math.max(1, mLastCompleteNanos - mFirstSubmitNanos);
+        return mCompletedImages * 1e9f / nanos;
+    }
+
+    /**
+     * 不再接受新的任务,已经提交的任务会继续执行.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
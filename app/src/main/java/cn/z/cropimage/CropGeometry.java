@@ -0,0 +1,327 @@
+package cn.z.cropimage;
+
+/**
+ * 显示和裁剪的几何计算,不依赖Android,可以在JVM上测试.
+ * 所有坐标都是原图分辨率的坐标,缩放比例是显示的像素数除以原图的像素数.
+ * 只保存基本类型的字段,结果写入调用者提供的{@link GeometryRect},每次手势事件都不会分配对象;
+ * 只和缩放比例有关的值在缩放时计算一次,平移时不需要重新计算
+ */
+class CropGeometry {
+
+    private static final int MAX_SAMPLE_SHIFT = 30;     //压缩倍数最大是2^30
+    private static final float MIN_OVERSCALE = 0.5f;    //不限制时最多缩小到最小缩放比例的一半
+    private static final float OVERSCROLL_RESISTANCE = 0.5f;    //不限制时越过边界后继续向外移动的阻力
+    static final float DEFAULT_DISPLAY_SCALE = 0.5f;    //默认的预览质量对应的放大比例
+
+    //输入
+    private int mSrcWidth;          //原图宽度
+    private int mSrcHeight;         //原图高度
+    private int mViewWidth;         //控件宽度
+    private int mViewHeight;        //控件高度
+    private int mPreviewWidth;      //预览窗口的宽度
+    private int mPreviewHeight;     //预览窗口的高度
+    private float mDisplayScale = DEFAULT_DISPLAY_SCALE;    //预览质量对应的放大比例,见CropImageView#setPreviewQuality
+
+    //状态
+    private float mImageScale;      //缩放比例(放大比例)
+    private float mCenterX;         //显示中心的x坐标
+    private float mCenterY;         //显示中心的y坐标
+    private boolean mClampEnabled = true;   //是否限制缩放比例和显示中心,手势进行时不限制,结束后再动画回到限制的范围
+
+    //由缩放比例计算的值
+    private float mMinScale;        //预览窗口刚好被图片填满时的缩放比例
+    private float mHalfPreviewWidth;    //预览窗口宽度的一半对应的原图像素数
+    private float mHalfPreviewHeight;   //预览窗口高度的一半对应的原图像素数
+    private float mHalfViewWidth;   //控件宽度的一半对应的原图像素数
+    private float mHalfViewHeight;  //控件高度的一半对应的原图像素数
+    private int mSampleSize = 1;    //解码的压缩倍数,2的整数次幂
+
+    /**
+     * 设置原图尺寸,之后需要调用{@link #reset()}.
+     */
+    void setSourceSize(int srcWidth, int srcHeight) {
+        this.mSrcWidth = srcWidth;
+        this.mSrcHeight = srcHeight;
+    }
+
+    /**
+     * 设置控件尺寸和预览窗口的尺寸,之后需要调用{@link #reset()}.预览窗口位于控件的中心
+     */
+    void setViewport(int viewWidth, int viewHeight, int previewWidth, int previewHeight) {
+        this.mViewWidth = viewWidth;
+        this.mViewHeight = viewHeight;
+        this.mPreviewWidth = previewWidth;
+        this.mPreviewHeight = previewHeight;
+    }
+
+    /**
+     * 设置预览质量对应的放大比例,影响解码的压缩倍数.
+     */
+    void setDisplayScale(float displayScale) {
+        this.mDisplayScale = displayScale;
+        if (isReady()) {
+            updateSampleSize();
+        }
+    }
+
+    /**
+     * @return 原图尺寸和预览窗口都已经设置
+     */
+    boolean isReady() {
+        return mSrcWidth > 0 && mSrcHeight > 0 && mPreviewWidth > 0 && mPreviewHeight > 0;
+    }
+
+    /**
+     * 初始显示:图片刚好填满预览窗口(正方形的预览窗口是图片的短边刚好填满),显示图片的中心.
+     */
+    void reset() {
+        if (!isReady()) {
+            return;
+        }
+        mMinScale = Math.max((float) mPreviewWidth / mSrcWidth, (float) mPreviewHeight / mSrcHeight);
+        mCenterX = mSrcWidth / 2;
+        mCenterY = mSrcHeight / 2;
+        setImageScale(mMinScale);
+    }
+
+    /**
+     * 设置是否限制缩放比例和显示中心.
+     * 不限制时可以缩小到最小缩放比例的一半,图片边界可以越过预览窗口,越过后继续向外移动会有阻力;
+     * 重新限制时不会立即调整,调用者用{@link #getClampedScale()},{@link #clampCenterX(float, float)}等得到限制后的值,动画移动过去
+     */
+    void setClampEnabled(boolean clampEnabled) {
+        this.mClampEnabled = clampEnabled;
+    }
+
+    /**
+     * 平移.
+     *
+     * @param dx 手指在控件上移动的水平距离(控件像素),图片跟随手指移动
+     * @param dy 手指在控件上移动的垂直距离(控件像素)
+     */
+    void translate(float dx, float dy) {
+        if (!isReady()) {
+            return;
+        }
+        float srcDx = -dx / mImageScale;
+        float srcDy = -dy / mImageScale;
+        if (!mClampEnabled) {
+            if ((srcDx < 0 && mCenterX + srcDx < mHalfPreviewWidth)
+                    || (srcDx > 0 && mCenterX + srcDx > mSrcWidth - mHalfPreviewWidth)) {
+                srcDx *= OVERSCROLL_RESISTANCE;
+            }
+            if ((srcDy < 0 && mCenterY + srcDy < mHalfPreviewHeight)
+                    || (srcDy > 0 && mCenterY + srcDy > mSrcHeight - mHalfPreviewHeight)) {
+                srcDy *= OVERSCROLL_RESISTANCE;
+            }
+        }
+        mCenterX += srcDx;
+        mCenterY += srcDy;
+        adjustCenter();
+    }
+
+    /**
+     * 以显示中心为中心缩放,限制时不能缩小到图片填不满预览窗口.
+     *
+     * @param factor 缩放倍数,大于1放大
+     */
+    void scale(float factor) {
+        if (!isReady()) {
+            return;
+        }
+        setImageScale(mImageScale * factor);
+    }
+
+    /**
+     * 直接设置缩放比例和显示中心,用于动画.限制时会被调整到限制的范围内
+     */
+    void setTransform(float imageScale, float centerX, float centerY) {
+        if (!isReady()) {
+            return;
+        }
+        mCenterX = centerX;
+        mCenterY = centerY;
+        setImageScale(imageScale);
+    }
+
+    /**
+     * @return 限制后的缩放比例, 不限制时可能和当前的缩放比例不同
+     */
+    float getClampedScale() {
+        return Math.max(mImageScale, mMinScale);
+    }
+
+    /**
+     * @return 缩放比例为scale时, 显示中心x坐标限制后的值
+     */
+    float clampCenterX(float centerX, float scale) {
+        float halfWidth = mPreviewWidth / 2f / scale;
+        return clamp(centerX, halfWidth, mSrcWidth - halfWidth);
+    }
+
+    /**
+     * @return 缩放比例为scale时, 显示中心y坐标限制后的值
+     */
+    float clampCenterY(float centerY, float scale) {
+        float halfHeight = mPreviewHeight / 2f / scale;
+        return clamp(centerY, halfHeight, mSrcHeight - halfHeight);
+    }
+
+    /**
+     * @return 缩放比例和显示中心都在限制的范围内
+     */
+    boolean isInBounds() {
+        float scale = getClampedScale();
+        return scale == mImageScale
+                && clampCenterX(mCenterX, scale) == mCenterX && clampCenterY(mCenterY, scale) == mCenterY;
+    }
+
+    /**
+     * 当前缩放比例下显示中心可以移动的范围.
+     *
+     * @param out 结果,left,top是最小值,right,bottom是最大值
+     */
+    void getCenterRange(GeometryRect out) {
+        out.set(mHalfPreviewWidth, mHalfPreviewHeight,
+                mSrcWidth - mHalfPreviewWidth, mSrcHeight - mHalfPreviewHeight);
+    }
+
+    float getMinScale() {
+        return mMinScale;
+    }
+
+    private void setImageScale(float imageScale) {
+        float minScale = mClampEnabled ? mMinScale : mMinScale * MIN_OVERSCALE;
+        mImageScale = imageScale < minScale ? minScale : imageScale;
+        mHalfPreviewWidth = mPreviewWidth / 2f / mImageScale;
+        mHalfPreviewHeight = mPreviewHeight / 2f / mImageScale;
+        mHalfViewWidth = mViewWidth / mImageScale / 2;
+        mHalfViewHeight = mViewHeight / mImageScale / 2;
+        updateSampleSize();
+        adjustCenter();
+    }
+
+    private void updateSampleSize() {
+        mSampleSize = sampleSizeFor(mImageScale);
+    }
+
+    /**
+     * 计算某个缩放比例下解码使用的压缩倍数,和{@link #getSampleSize()}使用相同的放大比例.
+     *
+     * @param imageScale 缩放比例
+     * @return 压缩倍数, 2的整数次幂
+     */
+    int sampleSizeFor(float imageScale) {
+        int shift = (int) Math.sqrt(1 / (imageScale * mDisplayScale));
+        return 1 << Math.min(shift, MAX_SAMPLE_SHIFT);
+    }
+
+    /**
+     * 调整中心,避免图片边界越过预览窗口.缩放比例保证了左右(上下)边界不会同时越过
+     */
+    private void adjustCenter() {
+        if (!mClampEnabled) {
+            return;
+        }
+        if (mCenterX < mHalfPreviewWidth) {
+            mCenterX = mHalfPreviewWidth;
+        }
+        if (mSrcWidth - mCenterX < mHalfPreviewWidth) {
+            mCenterX = mSrcWidth - mHalfPreviewWidth;
+        }
+        if (mCenterY < mHalfPreviewHeight) {
+            mCenterY = mHalfPreviewHeight;
+        }
+        if (mSrcHeight - mCenterY < mHalfPreviewHeight) {
+            mCenterY = mSrcHeight - mHalfPreviewHeight;
+        }
+    }
+
+    float getImageScale() {
+        return mImageScale;
+    }
+
+    float getCenterX() {
+        return mCenterX;
+    }
+
+    float getCenterY() {
+        return mCenterY;
+    }
+
+    int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * 控件范围对应的原图区域,可能超出原图.
+     *
+     * @param out 结果
+     */
+    void getVisibleRect(GeometryRect out) {
+        out.set(mCenterX - mHalfViewWidth, mCenterY - mHalfViewHeight,
+                mCenterX + mHalfViewWidth, mCenterY + mHalfViewHeight);
+    }
+
+    /**
+     * 预览窗口对应的原图区域.
+     * 边界都是整数;宽高只和缩放比例有关,不会因为中心的小数部分差1个像素,正方形的预览窗口宽高相等;不会超出原图,
+     * 超出时宽高按相同的比例缩小
+     *
+     * @param out 结果
+     */
+    void getCropRect(GeometryRect out) {
+        int width = Math.round(mHalfPreviewWidth * 2);
+        int height = Math.round(mHalfPreviewHeight * 2);
+        if (width > mSrcWidth || height > mSrcHeight) {
+            float factor = Math.min((float) mSrcWidth / width, (float) mSrcHeight / height);
+            width = Math.round(width * factor);
+            height = Math.round(height * factor);
+        }
+        width = clamp(width, 1, mSrcWidth);
+        height = clamp(height, 1, mSrcHeight);
+        int left = clamp(Math.round(mCenterX - width / 2f), 0, mSrcWidth - width);
+        int top = clamp(Math.round(mCenterY - height / 2f), 0, mSrcHeight - height);
+        out.set(left, top, left + width, top + height);
+    }
+
+    /**
+     * 裁剪的压缩倍数.
+     *
+     * @param resolution 裁剪的分辨率(输出的宽度),为负则取原始的分辨率
+     * @return 使输出不小于请求分辨率的最大整数压缩倍数, 至少为1
+     */
+    int getCropSampleSize(int resolution) {
+        if (resolution <= 0) {
+            return 1;
+        }
+        return Math.max(1, (int) (mHalfPreviewWidth * 2 / resolution));
+    }
+
+    /**
+     * 输出宽度为resolution时,保持裁剪区域宽高比的输出高度.
+     *
+     * @param resolution 输出的宽度
+     * @param cropWidth  裁剪区域的宽度
+     * @param cropHeight 裁剪区域的高度
+     * @return 输出的高度, 至少为1
+     */
+    static int scaleHeight(int resolution, int cropWidth, int cropHeight) {
+        if (cropWidth == cropHeight) {
+            return resolution;
+        }
+        return Math.max(1, Math.round((float) resolution * cropHeight / cropWidth));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+    /**
+     * 和{@link #adjustCenter()}相同,先限制最小值再限制最大值,范围无效时以最大值为准.
+     */
+    private static float clamp(float value, float min, float max) {
+        value = value < min ? min : value;
+        return value > max ? max : value;
+    }
+}
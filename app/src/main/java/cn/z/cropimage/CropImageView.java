@@ -1,36 +1,81 @@
 package cn.z.cropimage;
 
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
-import android.graphics.Region;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.VelocityTracker;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+import android.widget.OverScroller;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 裁剪头像的View.
- * {@link #setSrcImage(File)},{@link #setSrcImage(InputStream)}设置原始图片
+ * {@link #setSrcImage(File)},{@link #setSrcImage(FileDescriptor)},{@link #setSrcImage(Uri)},
+ * {@link #setSrcImage(InputStream)}设置原始图片
+ * {@link #setSrcImageAsync(File, LoadCallback)}等  在后台线程设置原始图片,加载时显示{@link #setPlaceholder(Drawable)}
  * {@link #setMaskColor(int)}           设置遮罩颜色,有默认值
+ * {@link #setCropShape(Shape)}         设置预览窗口的形状(圆形,矩形,圆角矩形),默认圆形
+ * {@link #setCropAspectRatio(int, int)}  设置预览窗口和裁剪结果的宽高比,默认1:1
  * {@link #setPreviewQuality(float)}    设置预览质量,有默认值
+ * {@link #setAdaptivePreviewQuality(boolean)}  根据绘制和解码耗时自动调整预览质量,手势进行时降低
+ * {@link #setPreviewQualityListener(PreviewQualityListener)}  自适应预览质量改变的监听
+ * {@link #setTileCacheSize(int)}       设置预览图片缓存的内存上限,有默认值
+ * {@link #setTileDiskCache(TileDiskCache)}  设置预览图片的磁盘缓存,再次打开同一张图片时不需要重新解码
+ * {@link #setLowMemoryPreview(boolean)}  不透明的原图用RGB_565预览,缩略图用HARDWARE,默认开启
+ * {@link #setPrefetchEnabled(boolean)}  拖动和缩放时按照速度预先解码即将进入控件范围的块,默认开启
+ * {@link #setFrameStatsListener(FrameStatsListener)}  统计每一帧的绘制耗时,解码耗时和分配的对象数
  * {@link #crop(File, int)}             裁剪图片,裁剪后的文件放在参数file中
+ * {@link #crop(File, int, CropOptions)}  按照输出设置(格式,质量,文件大小)裁剪图片
+ * {@link #crop(List)}                  一次裁剪多个尺寸,只解码一次
+ * {@link #cropAsync(File, int, CropOptions, boolean, CropCallback)} 异步裁剪图片,可以取消,在回调中得到进度和结果
+ * {@link #getCropParams()}             获取裁剪参数,用{@link CropEngine}批量裁剪
+ * {@link #retainSource()}              配置改变时保留已经打开的解码器和解码的块,交给新的控件{@link #setRetainedSource}
+ * 显示中心,缩放和旋转的角度通过{@link #onSaveInstanceState()}保存,重新设置同一张图片后恢复(控件需要有id)
  * <p>
  * Created by z
  * on 2018/3/6 0006.
@@ -40,55 +85,321 @@ public class CropImageView extends View {
     @SuppressWarnings("all")
     private final String TAG = "CropView";
 
+    /**
+     * 异步裁剪的回调,都在主线程调用.
+     */
+    public interface CropCallback {
+        /**
+         * 裁剪进度.
+         *
+         * @param progress 0-1
+         */
+        void onProgress(float progress);
+
+        /**
+         * 裁剪完成.
+         *
+         * @param result 裁剪结果,包括文件,Bitmap(只有要求返回Bitmap时才有),文件大小和耗时
+         */
+        void onCropped(CropResult result);
+
+        /**
+         * 裁剪失败,写了一半的文件已经被删除.
+         *
+         * @param e 失败的原因
+         */
+        void onFailed(Exception e);
+    }
+
+    /**
+     * 异步加载的回调,都在主线程调用.
+     */
+    public interface LoadCallback {
+        /**
+         * 开始加载,之后显示占位图直到加载结束.
+         */
+        void onLoadStarted();
+
+        /**
+         * 加载完成,已经开始显示新的图片.
+         *
+         * @param loadTime 从开始加载到可以显示的耗时(ms)
+         */
+        void onLoaded(long loadTime);
+
+        /**
+         * 加载失败.
+         *
+         * @param e 失败的原因
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * 预览窗口的形状.只影响遮罩,裁剪结果总是矩形
+     */
+    public enum Shape {
+        /**
+         * 圆形,宽高比不是1:1时是椭圆.
+         */
+        CIRCLE,
+        /**
+         * 矩形.
+         */
+        RECT,
+        /**
+         * 圆角矩形,圆角半径见{@link #setCornerRadius(float)}.
+         */
+        ROUNDED_RECT
+    }
+
+    /**
+     * 每一帧的统计,在主线程调用.
+     */
+    public interface FrameStatsListener {
+        /**
+         * 一帧绘制完成.
+         *
+         * @param drawTime    这一帧onDraw的耗时(ns)
+         * @param decodeTime  上一帧之后解码线程解码块的耗时(ns)
+         * @param allocations 上一帧之后主线程分配的对象数,包括触控事件的处理和这一帧的绘制
+         */
+        void onFrame(long drawTime, long decodeTime, int allocations);
+    }
+
+    /**
+     * 自适应预览质量改变的监听,在主线程调用.
+     */
+    public interface PreviewQualityListener {
+        /**
+         * 预览质量等级改变.
+         *
+         * @param level        新的等级,{@link #PREVIEW_QUALITY_FULL},{@link #PREVIEW_QUALITY_REDUCED}
+         *                     或{@link #PREVIEW_QUALITY_LOW}
+         * @param reason       改变的原因,{@link #QUALITY_REASON_IDLE},{@link #QUALITY_REASON_GESTURE},
+         *                     {@link #QUALITY_REASON_SLOW}或{@link #QUALITY_REASON_MEMORY}
+         * @param displayScale 解码使用的放大比例
+         * @param drawTime     平均每帧的绘制耗时(ns),还没有测量时为0
+         * @param decodeTime   平均每个块的解码耗时(ns),还没有测量时为0
+         */
+        void onPreviewQualityChanged(int level, int reason, float displayScale, long drawTime,
+                                     long decodeTime);
+    }
+
+    public static final int PREVIEW_QUALITY_FULL = QualityController.LEVEL_FULL;        //设置的预览质量
+    public static final int PREVIEW_QUALITY_REDUCED = QualityController.LEVEL_REDUCED;  //放大比例减半
+    public static final int PREVIEW_QUALITY_LOW = QualityController.LEVEL_LOW;          //放大比例为1/4
+
+    public static final int QUALITY_REASON_IDLE = QualityController.REASON_IDLE;        //停止操作
+    public static final int QUALITY_REASON_GESTURE = QualityController.REASON_GESTURE;  //手势或动画进行中
+    public static final int QUALITY_REASON_SLOW = QualityController.REASON_SLOW;        //绘制或解码太慢
+    public static final int QUALITY_REASON_MEMORY = QualityController.REASON_MEMORY;    //内存不足
+
     @SuppressWarnings("all")
     private final int DEFAULT_SIZE = 100;   //控件默认大小 100px * 100px
 
     private int mWidth;     //控件宽度
     private int mHeight;    //控件高度
 
-    private int mPreviewRadius;     //遮罩上预览窗口的半径
+    private static final float PREVIEW_RATIO = 0.8f;        //预览窗口最多占控件宽高的比例
+    private static final float DEFAULT_CORNER_RATIO = 0.1f; //默认的圆角半径占预览窗口短边的比例
+
+    private int mPreviewWidth;      //遮罩上预览窗口的宽度
+    private int mPreviewHeight;     //遮罩上预览窗口的高度
+    private final RectF mPreviewRect = new RectF(); //预览窗口在控件上的位置
+
+    private Shape mCropShape = Shape.CIRCLE;    //预览窗口的形状
+    private int mAspectX = 1;               //预览窗口的宽高比
+    private int mAspectY = 1;
+    private float mCornerRadius = -1;       //圆角矩形的圆角半径,为负时使用默认值
 
     private int mMaskColor = 0x90000000;  //遮罩的颜色ARGB
 
-    private Paint mMaskPaint;               //遮罩的画笔
-    private Paint mBitmapPaint;             //预览图片画笔
-    private Matrix mBitmapDisplayMatrix;    //预览图片显示缩放矩阵
+    //遮罩预先绘制到只有透明通道的Bitmap中,只在尺寸或形状改变时重新绘制;每一帧只需要用遮罩颜色绘制这个Bitmap,
+    //不需要每一帧都按照不规则的路径裁剪画布
+    private Bitmap mMaskBitmap;
+    private boolean mMaskDirty = true;      //遮罩需要重新绘制
+    private final Path mMaskPath = new Path();      //预览窗口的路径,只在重新绘制遮罩时使用
+    private final Paint mMaskPaint = new Paint();   //绘制遮罩的画笔,颜色是遮罩颜色
+    private final Paint mMaskClearPaint = new Paint(Paint.ANTI_ALIAS_FLAG); //在遮罩上挖出预览窗口
+    private final Paint mBitmapPaint = new Paint(); //预览图片画笔
+
+    private FrameStatsListener mFrameStatsListener; //每一帧的统计
+    private int mLastAllocCount;                    //上一帧结束时主线程已经分配的对象数
+
+    //自适应预览质量:手势和动画进行时用更大的压缩倍数解码,停止后回到设置的质量;内存不足时释放缓存并暂时降低质量
+    private final QualityController mQualityController = new QualityController(
+            CropGeometry.DEFAULT_DISPLAY_SCALE);
+    private PreviewQualityListener mPreviewQualityListener;
+    private boolean mTouching;              //手指是否按下
+    private long mLastDecodeTime;           //上一帧时解码块的总耗时,用来计算新解码的块的耗时
+    private int mLastDecodeCount;           //上一帧时解码的总块数
+    private final Runnable mQualityRunnable = new Runnable() {
+        @Override
+        public void run() {
+            //内存压力过期后恢复质量
+            if (updatePreviewQuality(mTouching || mAnimating)) {
+                decodeCenter();
+                invalidate();
+            }
+        }
+    };
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+        }
+    };
+
+    private DecoderPool mDecoderPool;   //原始文件的局部解码器,可以在多个核上同时解码
+    private int mSrcWidth;          //原图原始方向的宽度
+    private int mSrcHeight;         //原图原始方向的高度
+
+    //原图始终按原始方向解码,块也按原始方向缓存;显示和裁剪使用显示方向的坐标,解码时映射回原始方向,
+    //绘制时旋转画布,所以旋转图片不需要重新解码
+    private Orientation mExifOrientation = Orientation.NORMAL;  //EXIF中的方向,加载时读取一次
+    private int mImageRotation;     //用户旋转的角度,0,90,180,270
+    private Orientation mOrientation = Orientation.NORMAL;      //显示方向:EXIF的方向再旋转mImageRotation
+    private final float[] mRawPoint = new float[2];             //映射坐标的临时数组
+
+    //分块解码显示原始图片,解码在后台线程进行,解码完成后刷新
+    private final TileManager.Callback mTileCallback = new TileManager.Callback() {
+        @Override
+        public void onTileLoaded() {
+            postInvalidate();
+        }
+    };
+    private TileManager mTileManager = new TileManager(mTileCallback);
+
+    //保存的显示中心和缩放,设置同一张图片并且控件测量之后恢复
+    private SavedState mPendingViewport;
+
+    //显示中心,缩放比例和裁剪范围的计算
+    private final CropGeometry mGeometry = new CropGeometry();
+    private final GeometryRect mVisibleRect = new GeometryRect();   //控件范围对应的原图区域
+
+    //拖动和缩放时根据最近几帧的速度预测控件范围,预先解码其中的块;方向改变或者松手时放弃还没有开始的预先解码
+    private final MotionPredictor mMotionPredictor = new MotionPredictor();
+    private final GeometryRect mPrefetchRect = new GeometryRect();  //预测的控件范围对应的原图区域
+    private boolean mPrefetchEnabled = true;
 
-    private BitmapRegionDecoder mBitmapRegionDecoder;   //原始文件的局部解码器
-    private Bitmap mBitmapDisPlay;    //用来显示的Bitmap,可能只是原始图片的一部分,也可能是缩放后的图像
-    private float mSrcBitmapWidth;    //原始文件的宽度
-    private float mSrcBitmapHeight;   //原始文件的高度
+    private static ExecutorService sCropExecutor;  //异步裁剪的线程
+    private static ExecutorService sLoadExecutor;  //异步加载的线程
 
-    //编码显示图片的设置.每次缩放或移动都会使用这个变量,写在成员位置,避免频繁的进行内存分配回收
-    private BitmapFactory.Options mDisplayBitmapOption;
+    private TileDiskCache mTileDiskCache;   //预览图片的磁盘缓存
+    private boolean mLowMemoryPreview = true;   //不透明的原图是否用RGB_565预览,缩略图是否用HARDWARE
 
-    private float mDisplayScale = 0.5f;    //绘制时的缩放比例(放大比例)
-    private float mImageScale;             //对于整张图片用户期望的缩放比例(放大比例)
-    private float mSampleSize;             //解码bitmap的比例,这个比例只能是2的整数次幂
-    private float mComplementaryScale;     //解码bitmap的比例与希望缩放比例的余量
-    private float mDisplayCenterX;         //显示中心的x坐标(原图分辨率的坐标)
-    private float mDisplayCenterY;
-    private float mDisplayOffsetX;         //显示时候的补偿x坐标
-    private float mDisplayOffsetY;
+    private LoadTask mLoadTask;             //正在进行的异步加载
+    private LoadCallback mLoadCallback;     //正在进行的异步加载的回调
+    private Callable<String> mLoadKeyLoader;    //正在进行的异步加载的原图内容的哈希
+    private Drawable mPlaceholder;          //加载时显示的占位图
+
+    //异步加载结束,只接受最后一次加载的结果
+    private final LoadTask.Listener mLoadListener = new LoadTask.Listener() {
+        @Override
+        public void onLoadFinished(LoadTask task, LoadTask.Source source, Exception e, long loadTime) {
+            if (task != mLoadTask) {
+                if (source != null) {
+                    source.decoder.recycle();   //已经开始了新的加载
+                }
+                return;
+            }
+            LoadCallback callback = mLoadCallback;
+            Callable<String> keyLoader = mLoadKeyLoader;
+            mLoadTask = null;
+            mLoadCallback = null;
+            mLoadKeyLoader = null;
+            setSource(source, keyLoader);
+            invalidate();
+            if (callback != null) {
+                if (source != null) {
+                    callback.onLoaded(loadTime);
+                } else {
+                    callback.onError(e);
+                }
+            }
+        }
+    };
 
-    private Point mLastTouchPoint = new Point();    //上一次的触控点位置,用于单点触控拖拽
+    private float mLastTouchX;      //上一次的触控点位置,用于单点触控拖拽
+    private float mLastTouchY;
     private float mLastDoubleTouchPointDistance;    //上一次的两个触控点距离,用于两点触控缩放
 
+    //触控事件只更新显示中心和缩放比例,解码和重绘在下一次垂直同步时进行,每一帧最多一次
+    private boolean mFrameScheduled;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            boolean animating = stepAnimation();
+            updatePreviewQuality(animating || mTouching);
+            if (animating) {
+                scheduleFrame();    //动画还没有结束,只按照新的位置绘制已经解码的块
+            } else {
+                decodeCenter();
+            }
+            prefetchAhead(mTouching && !animating, frameTimeNanos);
+            invalidate();
+        }
+    };
+
+    //松手后的惯性滑动和缩放动画;动画时只改变绘制的位置和缩放比例,不解码,结束后解码一次
+    private static final int ANIMATION_DURATION = 250;  //缩放和回弹动画的时长(ms)
+    private static final float DOUBLE_TAP_ZOOM = 3;     //双击放大到最小缩放比例的倍数
+    private final OverScroller mScroller = new OverScroller(getContext());
+    private final Interpolator mInterpolator = new DecelerateInterpolator();
+    private final int mMinFlingVelocity =
+            ViewConfiguration.get(getContext()).getScaledMinimumFlingVelocity();
+    private final int mMaxFlingVelocity =
+            ViewConfiguration.get(getContext()).getScaledMaximumFlingVelocity();
+    private final GeometryRect mCenterRange = new GeometryRect();   //惯性滑动时显示中心的范围
+    private VelocityTracker mVelocityTracker;
+    private boolean mAnimating;         //是否正在进行缩放或者回弹动画
+    private long mAnimationStartTime;
+    private float mStartScale;
+    private float mStartCenterX;
+    private float mStartCenterY;
+    private float mEndScale;
+    private float mEndCenterX;
+    private float mEndCenterY;
+
+    private final GestureDetector mGestureDetector = new GestureDetector(getContext(),
+            new GestureDetector.SimpleOnGestureListener() {
+                @Override
+                public boolean onDoubleTap(MotionEvent e) {
+                    zoomAt(e.getX(), e.getY());
+                    return true;
+                }
+            });
+
     public CropImageView(Context context) {
-        super(context);
+        this(context, null);
     }
 
     public CropImageView(Context context, @Nullable AttributeSet attrs) {
-        super(context, attrs);
+        this(context, attrs, 0);
     }
 
     public CropImageView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        mMaskPaint.setColor(mMaskColor);
+        mMaskClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        int oldWidth = mWidth;
+        int oldHeight = mHeight;
         int widthMode = MeasureSpec.getMode(widthMeasureSpec);
         int widthSize = MeasureSpec.getSize(widthMeasureSpec);
         int heightMode = MeasureSpec.getMode(heightMeasureSpec);
@@ -119,255 +430,349 @@ public class CropImageView extends View {
             default:
                 mHeight = DEFAULT_SIZE;
         }
-        mPreviewRadius = (int) ((mWidth <= mHeight ? mWidth / 2 : mHeight / 2) * 0.8);
-        initDisplay();
+        if (mWidth != oldWidth || mHeight != oldHeight) {
+            //尺寸不变时不重新初始化,重新布局不会丢失用户的移动和缩放
+            updatePreviewSize();
+            initDisplay();
+        }
+    }
+
+    /**
+     * 按照宽高比计算预览窗口的尺寸,预览窗口位于控件的中心.
+     */
+    private void updatePreviewSize() {
+        float maxWidth = mWidth * PREVIEW_RATIO;
+        float maxHeight = mHeight * PREVIEW_RATIO;
+        if (maxWidth * mAspectY > maxHeight * mAspectX) {
+            mPreviewHeight = (int) maxHeight;
+            mPreviewWidth = (int) (maxHeight * mAspectX / mAspectY);
+        } else {
+            mPreviewWidth = (int) maxWidth;
+            mPreviewHeight = (int) (maxWidth * mAspectY / mAspectX);
+        }
+        mPreviewRect.set((mWidth - mPreviewWidth) / 2f, (mHeight - mPreviewHeight) / 2f,
+                (mWidth + mPreviewWidth) / 2f, (mHeight + mPreviewHeight) / 2f);
+        mMaskDirty = true;
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mTileManager.start();
+        getContext().getApplicationContext().registerComponentCallbacks(mMemoryCallbacks);
+        if (mPreviewWidth != 0) {
+            decodeCenter(); //从窗口移除时释放了所有的块,重新添加时需要重新解码
+        }
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE && mPreviewWidth != 0) {
+            decodeCenter(); //不可见时内存不足可能释放了所有的块,回到前台时重新解码
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        finishAnimation();
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
+        mTileManager.stop();
+        getContext().getApplicationContext().unregisterComponentCallbacks(mMemoryCallbacks);
+        removeCallbacks(mQualityRunnable);
+        if (mMaskBitmap != null) {
+            mMaskBitmap.recycle();  //重新添加时再绘制
+            mMaskBitmap = null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
     @Override
     protected void onDraw(Canvas canvas) {
-        drawBitmap(canvas);
+        boolean measure = mFrameStatsListener != null || mQualityController.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        if (mLoadTask != null) {
+            drawPlaceholder(canvas);
+        } else {
+            drawBitmap(canvas);
+        }
         drawMask(canvas);
+        long drawTime = measure ? System.nanoTime() - start : 0;
+        if (mQualityController.isEnabled()) {
+            mQualityController.onFrame(drawTime);
+        }
+        if (mFrameStatsListener != null) {
+            int allocCount = Debug.getThreadAllocCount();
+            mFrameStatsListener.onFrame(drawTime, mTileManager.takeDecodeTime(),
+                    allocCount - mLastAllocCount);
+            //监听本身分配的对象不计入下一帧
+            mLastAllocCount = Debug.getThreadAllocCount();
+        }
     }
 
     /**
      * 设置原始图片.
+     * 流直接交给解码器;{@link android.content.res.AssetManager#open(String)}返回的流
+     * 解码器会直接读取资源,不会复制.其它的流解码器会把全部数据读到native内存中,文件较大时优先使用
+     * {@link #setSrcImage(File)}或者{@link #setSrcImage(FileDescriptor)}.
+     * 读取EXIF中的方向之后需要回到流的开头,不支持{@link InputStream#mark(int)}的流会被缓冲.
+     * 设置了磁盘缓存时流中的数据需要计算哈希,资源的流也会被复制
      *
-     * @param srcInputStream 原始图片的流
+     * @param srcInputStream 原始图片的流,设置后会被关闭
      */
     public void setSrcImage(InputStream srcInputStream) {
-        BufferedInputStream srcImageBufferedInputStream;
-        srcImageBufferedInputStream = new BufferedInputStream(srcInputStream);  //用一个可以mark的流,因为这个流会被读取两次
-        BitmapFactory.Options srcBitmapOption = new BitmapFactory.Options();
-        srcBitmapOption.inJustDecodeBounds = true;
-        srcImageBufferedInputStream.mark(Integer.MAX_VALUE);    //标记,这个流还会被读一次,文件大于2G会抛异常!
-        BitmapFactory.decodeStream(srcImageBufferedInputStream, null, srcBitmapOption);
-        mSrcBitmapWidth = srcBitmapOption.outWidth;
-        mSrcBitmapHeight = srcBitmapOption.outHeight;
+        cancelLoad();
         try {
-            srcImageBufferedInputStream.reset();    //重置文件指针
-            this.mBitmapRegionDecoder = BitmapRegionDecoder.newInstance(srcImageBufferedInputStream, false);
+            MessageDigest digest = mTileDiskCache != null ? TileDiskCache.newDigest() : null;
+            setSource(openSource(srcInputStream, digest), digestKeyLoader(digest));
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                srcImageBufferedInputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
-        initDisplay();
     }
 
     /**
      * 设置原始图片.
+     * 解码器直接打开文件并映射到内存,不占用Java堆
      *
      * @param srcFile 原始图片的File对象
      */
     public void setSrcImage(File srcFile) {
-        BufferedInputStream srcImageBufferedInputStream = null; //用一个可以mark的流,因为这个流会被读取两次
+        cancelLoad();
         try {
-            srcImageBufferedInputStream = new BufferedInputStream(new FileInputStream(srcFile));
-            setSrcImage(srcImageBufferedInputStream);
-        } catch (FileNotFoundException e) {
+            setSource(openSource(srcFile), fileKeyLoader(srcFile));
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (srcImageBufferedInputStream != null) {
-                try {
-                    srcImageBufferedInputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
     /**
-     * 初始化显示.
+     * 设置原始图片.
+     * 解码器把文件映射到内存,不占用Java堆;设置后文件描述符可以关闭
+     *
+     * @param srcFileDescriptor 原始图片的文件描述符
      */
-    private void initDisplay() {
-        if (mSrcBitmapWidth == 0 || mSrcBitmapHeight == 0 || mPreviewRadius == 0) {
-            return;
-        }
-        int mDisplayBitmapWidth;
-        if (mSrcBitmapWidth > mSrcBitmapHeight) {
-            mDisplayBitmapWidth = (int) (mSrcBitmapWidth * ((mPreviewRadius * 2) / mSrcBitmapHeight));
-            mImageScale = mDisplayBitmapWidth / mSrcBitmapWidth;
-            mDisplayCenterX = (int) (mSrcBitmapWidth / 2);
-            mDisplayCenterY = (int) (mSrcBitmapHeight / 2);
-        } else {
-            mDisplayBitmapWidth = mPreviewRadius * 2;
-            mImageScale = mDisplayBitmapWidth / mSrcBitmapWidth;
-            mDisplayCenterX = (int) (mSrcBitmapWidth / 2);
-            mDisplayCenterY = (int) (mSrcBitmapHeight / 2);
+    public void setSrcImage(FileDescriptor srcFileDescriptor) {
+        cancelLoad();
+        try {
+            setSource(openSource(srcFileDescriptor), fileDescriptorKeyLoader(srcFileDescriptor));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        onScale();
-        invalidate();
     }
 
     /**
-     * 绘制mBitmapDisplay.
-     * 这个函数仅仅能将mBitmapDisplay根据mDisplayScale绘制到视图的中心;其他的,例如图片的大小,截取的部
-     * 分,该函数并不关心
+     * 设置原始图片.
+     * 通过{@link ContentResolver#openFileDescriptor(Uri, String)}打开,和
+     * {@link #setSrcImage(FileDescriptor)}一样不占用Java堆
      *
-     * @param canvas canvas
+     * @param srcUri 原始图片的Uri,支持file和content
      */
-    private void drawBitmap(Canvas canvas) {
-        if (mBitmapPaint == null) {
-            mBitmapPaint = new Paint();
-        }
-        if (mBitmapDisplayMatrix == null) {
-            mBitmapDisplayMatrix = new Matrix();
-        } else {
-            mBitmapDisplayMatrix.reset();
+    public void setSrcImage(Uri srcUri) {
+        cancelLoad();
+        try {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            setSource(openSource(contentResolver, srcUri), uriKeyLoader(contentResolver, srcUri));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        if (mBitmapDisPlay == null) {
-            return;
+    }
+
+    /**
+     * 在后台线程设置原始图片.
+     *
+     * @param srcInputStream 原始图片的流,加载结束后会被关闭
+     * @param callback       回调,可以为null
+     * @see #setSrcImage(InputStream)
+     */
+    public void setSrcImageAsync(final InputStream srcInputStream, @Nullable LoadCallback callback) {
+        final MessageDigest digest = mTileDiskCache != null ? TileDiskCache.newDigest() : null;
+        load(new Callable<LoadTask.Source>() {
+            @Override
+            public LoadTask.Source call() throws Exception {
+                return openSource(srcInputStream, digest);
+            }
+        }, digestKeyLoader(digest), callback);
+    }
+
+    /**
+     * 在后台线程设置原始图片.
+     *
+     * @param srcFile  原始图片的File对象
+     * @param callback 回调,可以为null
+     * @see #setSrcImage(File)
+     */
+    public void setSrcImageAsync(final File srcFile, @Nullable LoadCallback callback) {
+        load(new Callable<LoadTask.Source>() {
+            @Override
+            public LoadTask.Source call() throws Exception {
+                return openSource(srcFile);
+            }
+        }, fileKeyLoader(srcFile), callback);
+    }
+
+    /**
+     * 在后台线程设置原始图片.
+     *
+     * @param srcUri   原始图片的Uri,支持file和content
+     * @param callback 回调,可以为null
+     * @see #setSrcImage(Uri)
+     */
+    public void setSrcImageAsync(final Uri srcUri, @Nullable LoadCallback callback) {
+        final ContentResolver contentResolver = getContext().getContentResolver();
+        load(new Callable<LoadTask.Source>() {
+            @Override
+            public LoadTask.Source call() throws Exception {
+                return openSource(contentResolver, srcUri);
+            }
+        }, uriKeyLoader(contentResolver, srcUri), callback);
+    }
+
+    /**
+     * 取消正在进行的异步加载,继续显示之前的图片.没有正在进行的加载时不做任何事
+     */
+    public void cancelLoad() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+            mLoadCallback = null;
+            TileManager.closeKeyLoader(mLoadKeyLoader);
+            mLoadKeyLoader = null;
+            invalidate();
         }
-        float scale = mComplementaryScale / mDisplayScale;
-        //先缩放,再移动位置;顺序不可变化,否则需要重新计算移动的坐标,而且缩放中心也需要计算!!!
-        float dx = (mWidth - mBitmapDisPlay.getWidth() * scale) / 2 - mDisplayOffsetX * scale;
-        float dy = (mHeight - mBitmapDisPlay.getHeight() * scale) / 2 - mDisplayOffsetY * scale;
-        mBitmapDisplayMatrix.postScale(scale, scale, 0, 0); //先缩放
-        mBitmapDisplayMatrix.postTranslate(dx, dy);                 //再移动位置
-        canvas.drawBitmap(mBitmapDisPlay, mBitmapDisplayMatrix, mBitmapPaint);
     }
 
-    private void drawMask(Canvas canvas) {
-        if (mMaskPaint == null) {
-            mMaskPaint = new Paint();
-        }
-        mMaskPaint.setColor(Color.TRANSPARENT);  //设置画笔颜色为透明
-        mMaskPaint.setStyle(Paint.Style.FILL);   //画笔模式填充
-        mMaskPaint.setAntiAlias(true);           //抗锯齿
-        //计算遮罩中心的圆形透明预览框的位置,预览框位于控件的中心
-        int centerX = mWidth / 2;  //遮罩中心的圆形透明预览框圆心的x坐标
-        int centerY = mHeight / 2; //遮罩中心的圆形透明预览框圆心的y左边
-        Path path = new Path();
-        path.addCircle(centerX, centerY, mPreviewRadius, Path.Direction.CW);  //预览框的圆形路径
-        canvas.save();  //保存当前画布状态
-        canvas.clipPath(path, Region.Op.DIFFERENCE);    //限制可以绘制的区域在预览框的路径之外
-        canvas.drawColor(mMaskColor);   //绘制遮罩
-        canvas.restore();               //还原画布状态
-    }
-
-    /**
-     * 缩放.
-     * 比率{@link #mImageScale}变化之后,{@link #mSampleSize}和{@link #mComplementaryScale}也会变化
-     */
-    private void onScale() {
-        adjustmentScale();  //调整倍率,避免缩小到不能填充裁剪区域
-        mSampleSize = (float) Math.pow(2, (int) Math.sqrt(1 / (mImageScale * mDisplayScale)));
-        mComplementaryScale = (mImageScale * mDisplayScale) / (1 / mSampleSize);
-        decodeCenter();
+    /**
+     * 设置加载时显示的占位图,绘制在预览窗口中.
+     *
+     * @param placeholder 占位图,为null时加载时只显示遮罩
+     */
+    @SuppressWarnings("unused")
+    public void setPlaceholder(@Nullable Drawable placeholder) {
+        this.mPlaceholder = placeholder;
+        invalidate();
     }
 
     /**
-     * 解码确定中心的合适大小的图片.
-     * 中心:{@link #mDisplayCenterX},{@link #mDisplayCenterY}
-     * 大小:控件可以放下的部分
+     * 开始异步加载,取消上一次还没有完成的加载.
      */
-    private void decodeCenter() {
-        if (mDisplayBitmapOption == null) {
-            mDisplayBitmapOption = new BitmapFactory.Options();
-        }
-        if (mBitmapRegionDecoder != null) {
-            mDisplayBitmapOption.inSampleSize = (int) mSampleSize;
-            adjustmentCenter(); //调整中心,避免图片边界越过裁剪区域
-            //mDisplayCenterX即为左边的像素,乘倍率,如果大于控件宽度的一半,说明图的左边会超出控件范围,切取控
-            // 件范围的图像(控件宽度的一半除以图像的放大倍数,因为显示的时候会放大);如果小于,说明图的左边在控
-            // 件范围内,切取左边的全部图像,即从0开始切.裁剪时多裁剪一个像素,避免放大很多倍导致累积误差
-            int left = mDisplayCenterX * mImageScale > mWidth / 2 ?
-                    (int) (mDisplayCenterX - mWidth / mImageScale / 2 - 1) : 0;
-            int top = mDisplayCenterY * mImageScale > mHeight / 2 ?
-                    (int) (mDisplayCenterY - mHeight / mImageScale / 2 - 1) : 0;
-            //原图的像素减去mDisplayCenterX即为右边的图像,乘倍率,如果大于控件宽度的一半,说明右边的图像会超
-            // 出控件范围,切取控件范围内的图像(控件宽度的一半除以图像的放大倍数,因为显示的时候会放大);如果
-            // 小于,说明图的右边在控件范围内,切取右边全部图像,即切到原图的宽度为止
-            int right = (int) ((mSrcBitmapWidth - mDisplayCenterX) * mImageScale > mWidth / 2 ?
-                    mDisplayCenterX + mWidth / mImageScale / 2 + 1 : mSrcBitmapWidth);
-            int bottom = (int) ((mSrcBitmapHeight - mDisplayCenterY) * mImageScale > mHeight / 2 ?
-                    mDisplayCenterY + mHeight / mImageScale / 2 + 1 : mSrcBitmapHeight);
-            //计算偏移量,切取的图像不一定应该居中放置,当左右或者上下切取的规则不同时,图片不居中,所以需要计算
-            // 应该偏移多少,以中心点做参考,右边的距离减去左边的距离再除以2即为偏移量,但是计算出的是原图分辨率
-            // 偏移量,图像有可能会缩小(解码时的缩小),所以还需要除以缩小的倍数.上下同理;这个便宜量最终会在
-            // drawBitmap中参与矩阵的便偏移计算
-            mDisplayOffsetX = ((mDisplayCenterX - right) - (left - mDisplayCenterX)) / 2 / mSampleSize;
-            mDisplayOffsetY = ((mDisplayCenterY - top) - (bottom - mDisplayCenterY)) / 2 / mSampleSize;
-            Rect bitmapDisplayRect = new Rect(left, top, right, bottom);
-            if (mBitmapDisPlay != null) {
-                mBitmapDisPlay.recycle();
+    private void load(Callable<LoadTask.Source> opener, Callable<String> keyLoader,
+                      LoadCallback callback) {
+        cancelLoad();
+        mLoadTask = new LoadTask(opener, mLoadListener);
+        mLoadCallback = callback;
+        mLoadKeyLoader = keyLoader;
+        if (callback != null) {
+            callback.onLoadStarted();
+        }
+        invalidate();
+        getLoadExecutor().execute(mLoadTask);
+    }
+
+    /**
+     * 创建解码器并读取EXIF中的方向.
+     *
+     * @param digest 不为null时同时计算流中数据的哈希,解码器没有读完的数据也会被读完
+     */
+    private static LoadTask.Source openSource(InputStream inputStream, MessageDigest digest)
+            throws IOException {
+        try {
+            //读取EXIF后回到流的开头;资源的流本身支持mark,不会被缓冲
+            if (!inputStream.markSupported()) {
+                inputStream = new BufferedInputStream(inputStream, Orientation.EXIF_LIMIT);
+            }
+            inputStream.mark(Orientation.EXIF_LIMIT);
+            int orientation = Orientation.readExif(inputStream);
+            inputStream.reset();
+            if (digest == null) {
+                return new LoadTask.Source(BitmapRegionDecoder.newInstance(inputStream, false), orientation);
+            }
+            inputStream = new DigestInputStream(inputStream, digest);
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            byte[] buffer = new byte[8192];
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1) {
+            }
+            return new LoadTask.Source(decoder, orientation);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            mBitmapDisPlay = mBitmapRegionDecoder.decodeRegion(bitmapDisplayRect, mDisplayBitmapOption);
         }
     }
 
     /**
-     * 调整倍缩放率.
+     * 创建解码器并读取EXIF中的方向.
      */
-    private void adjustmentScale() {
-        if (mSrcBitmapWidth > mSrcBitmapHeight) {
-            mImageScale = mSrcBitmapHeight * mImageScale < mPreviewRadius * 2
-                    ? mPreviewRadius * 2 / mSrcBitmapHeight : mImageScale;
-        } else {
-            mImageScale = mSrcBitmapWidth * mImageScale < mPreviewRadius * 2
-                    ? mPreviewRadius * 2 / mSrcBitmapWidth : mImageScale;
+    private static LoadTask.Source openSource(File file) throws IOException {
+        int orientation;
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            orientation = Orientation.readExif(inputStream);
+        } finally {
+            inputStream.close();
         }
+        final String path = file.getAbsolutePath();
+        return new LoadTask.Source(BitmapRegionDecoder.newInstance(path, false), orientation,
+                new Callable<BitmapRegionDecoder>() {
+                    @Override
+                    public BitmapRegionDecoder call() throws IOException {
+                        return BitmapRegionDecoder.newInstance(path, false);
+                    }
+                }, file.length());
     }
 
     /**
-     * 中心调整.
-     * 左边界和右边界不能同时调节,所以调整边界前需要先调整缩放倍率,上下边界同理
+     * 创建解码器并读取EXIF中的方向.
+     * 之后在解码线程中可以用同一个文件描述符打开更多的解码器;文件描述符已经被关闭时不再打开
      */
-    private void adjustmentCenter() {
-        //调整左边界
-        mDisplayCenterX = mDisplayCenterX * mImageScale < mPreviewRadius
-                ? mPreviewRadius / mImageScale : mDisplayCenterX;
-        //调整右边界
-        mDisplayCenterX = (mSrcBitmapWidth - mDisplayCenterX) * mImageScale < mPreviewRadius
-                ? mSrcBitmapWidth - mPreviewRadius / mImageScale : mDisplayCenterX;
-        //调整上边界
-        mDisplayCenterY = mDisplayCenterY * mImageScale < mPreviewRadius
-                ? mPreviewRadius / mImageScale : mDisplayCenterY;
-        //调整下边界
-        mDisplayCenterY = (mSrcBitmapHeight - mDisplayCenterY) * mImageScale < mPreviewRadius
-                ? mSrcBitmapHeight - mPreviewRadius / mImageScale : mDisplayCenterY;
+    private static LoadTask.Source openSource(final FileDescriptor fileDescriptor) throws IOException {
+        int orientation = readExif(fileDescriptor);
+        long byteSize = new FileInputStream(fileDescriptor).getChannel().size();
+        return new LoadTask.Source(BitmapRegionDecoder.newInstance(fileDescriptor, false), orientation,
+                new Callable<BitmapRegionDecoder>() {
+                    @Override
+                    public BitmapRegionDecoder call() throws IOException {
+                        return BitmapRegionDecoder.newInstance(fileDescriptor, false);
+                    }
+                }, byteSize);
     }
 
     /**
-     * 裁剪图片.
-     *
-     * @param file       存放的文件
-     * @param resolution 裁剪的分辨率.(取一个最接近的有效分辨率,为负则取原始的分辨率)
+     * 创建解码器并读取EXIF中的方向.
+     * 文件描述符在创建后关闭,更多的解码器重新通过contentResolver打开
      */
-    public void crop(File file, int resolution) {
-        if (mBitmapRegionDecoder == null) {
-            return;
+    private static LoadTask.Source openSource(final ContentResolver contentResolver, final Uri uri)
+            throws IOException {
+        ParcelFileDescriptor parcelFileDescriptor = contentResolver.openFileDescriptor(uri, "r");
+        if (parcelFileDescriptor == null) {
+            throw new FileNotFoundException(uri.toString());
         }
-        BitmapFactory.Options cropOption = null;
-        if (resolution > 0) {
-            cropOption = new BitmapFactory.Options();
-            float inSampleSize = mPreviewRadius * 2 / mImageScale / resolution;
-            cropOption.inSampleSize = (int) inSampleSize;   //压缩倍数
-        }
-        //计算裁剪范围
-        int left = (int) (mDisplayCenterX - mPreviewRadius / mImageScale);
-        int top = (int) (mDisplayCenterY - mPreviewRadius / mImageScale);
-        int right = (int) (mDisplayCenterX + mPreviewRadius / mImageScale);
-        int bottom = (int) (mDisplayCenterY + mPreviewRadius / mImageScale);
-        Rect rect = new Rect(left, top, right, bottom);
-        Bitmap result = mBitmapRegionDecoder.decodeRegion(rect, cropOption);
-        FileOutputStream fileOutputStream = null;
         try {
-            fileOutputStream = new FileOutputStream(file);
-            result.compress(Bitmap.CompressFormat.PNG, 100, fileOutputStream);
-            result.recycle();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            LoadTask.Source source = openSource(parcelFileDescriptor.getFileDescriptor());
+            return new LoadTask.Source(source.decoder, source.orientation,
+                    new Callable<BitmapRegionDecoder>() {
+                        @Override
+                        public BitmapRegionDecoder call() throws IOException {
+                            ParcelFileDescriptor reopened = contentResolver.openFileDescriptor(uri, "r");
+                            if (reopened == null) {
+                                throw new FileNotFoundException(uri.toString());
+                            }
+                            try {
+                                return BitmapRegionDecoder.newInstance(reopened.getFileDescriptor(), false);
+                            } finally {
+                                reopened.close();
+                            }
+                        }
+                    }, Math.max(0, parcelFileDescriptor.getStatSize()), source.opaque);
         } finally {
             try {
-                if (fileOutputStream != null) {
-                    fileOutputStream.close();
-                }
+                parcelFileDescriptor.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -375,96 +780,1209 @@ public class CropImageView extends View {
     }
 
     /**
-     * 设置遮罩颜色.
+     * 读取文件开头的EXIF中的方向.
+     * 按位置读取,不改变文件描述符的读取位置;用文件描述符创建的流不拥有它,不会关闭它.读取失败时按没有方向处理
+     */
+    private static int readExif(FileDescriptor fileDescriptor) {
+        ByteBuffer buffer = ByteBuffer.allocate(Orientation.EXIF_LIMIT);
+        FileChannel channel = new FileInputStream(fileDescriptor).getChannel();
+        try {
+            //noinspection StatementWithEmptyBody
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Orientation.EXIF_NORMAL;
+        }
+        return Orientation.readExif(buffer.array(), buffer.position());
+    }
+
+    /**
+     * 磁盘缓存的key:流中数据的哈希,在创建解码器时已经计算.
      *
-     * @param maskColor 遮罩颜色 ARGB
+     * @return 没有设置磁盘缓存时返回null
      */
-    @SuppressWarnings("unused")
-    public void setMaskColor(int maskColor) {
-        this.mMaskColor = maskColor;
-        invalidate();
+    private static Callable<String> digestKeyLoader(final MessageDigest digest) {
+        if (digest == null) {
+            return null;
+        }
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return TileDiskCache.toHex(digest.digest());
+            }
+        };
     }
 
     /**
-     * 设置预览质量.
+     * 磁盘缓存的key:文件内容的哈希,在解码线程中计算.
      *
-     * @param quality 预览质量;0-1
+     * @return 没有设置磁盘缓存时返回null
      */
-    @SuppressWarnings("unused")
-    public void setPreviewQuality(float quality) {
-        this.mDisplayScale = (float) (0.1 + (quality * 0.9));
+    private Callable<String> fileKeyLoader(final File file) {
+        if (mTileDiskCache == null) {
+            return null;
+        }
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return TileDiskCache.hash(file);
+            }
+        };
     }
 
     /**
-     * 计算直角坐标系中两个点的距离.
+     * 磁盘缓存的key:文件内容的哈希,在解码线程中计算.
+     * 调用者设置后就可以关闭文件描述符,所以先复制一个
      *
-     * @param x1 点1的x坐标
-     * @param y1 点1的y坐标
-     * @param x2 点2的x坐标
-     * @param y2 点1的y坐标
-     * @return 两点的距离
+     * @return 没有设置磁盘缓存或者复制失败时返回null
      */
-    private float calculateDistance(float x1, float y1, float x2, float y2) {
-        return (float) Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    private Callable<String> fileDescriptorKeyLoader(FileDescriptor fileDescriptor) {
+        if (mTileDiskCache == null) {
+            return null;
+        }
+        try {
+            return new FileDescriptorKeyLoader(ParcelFileDescriptor.dup(fileDescriptor));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        switch (event.getActionMasked()) {
-            case MotionEvent.ACTION_DOWN:   //第一个点按下,保存坐标
-                mLastTouchPoint.set((int) event.getX(0), (int) event.getY(0));
-                break;
-            case MotionEvent.ACTION_POINTER_DOWN:    //不是第一个点被按下
-                if (event.getActionIndex() == 1) {   //第二个点被按下,记录位置
-                    mLastDoubleTouchPointDistance = calculateDistance(
-                            event.getX(0), event.getY(0),
-                            event.getX(1), event.getY(1));
-                }
-                break;
-            case MotionEvent.ACTION_MOVE:
-                switch (event.getPointerCount()) {
-                    case 1:
-                        mDisplayCenterX -= (event.getX(0) - mLastTouchPoint.x) / mImageScale;
-                        mDisplayCenterY -= (event.getY(0) - mLastTouchPoint.y) / mImageScale;
-                        mLastTouchPoint.set((int) event.getX(0), (int) event.getY(0));
-                        decodeCenter();
-                        invalidate();
-                        break;
-                    case 2:
-                        //计算当前的两个触控点距离
-                        float nowDoubleTouchPointDistance = calculateDistance(
-                                event.getX(0), event.getY(0),
-                                event.getX(1), event.getY(1)
-                        );
-                        mImageScale *= nowDoubleTouchPointDistance / mLastDoubleTouchPointDistance;
-                        onScale();
-                        //保存当前两个触控点的距离,作为下一次缩放的上一次的触控点距离
-                        mLastDoubleTouchPointDistance = nowDoubleTouchPointDistance;
-                        invalidate();
-                        break;
-                    default:
+    /**
+     * 计算复制的文件描述符的内容的哈希.
+     * 可能一直没有计算(比如计算前更换了原图),所以实现了{@link Closeable},由{@link TileManager}在不再使用时关闭
+     */
+    private static final class FileDescriptorKeyLoader implements Callable<String>, Closeable {
+
+        private final ParcelFileDescriptor mCopy;
+
+        FileDescriptorKeyLoader(ParcelFileDescriptor copy) {
+            this.mCopy = copy;
+        }
+
+        @Override
+        public String call() throws Exception {
+            return hashAndClose(mCopy);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCopy.close();  //已经关闭时不做任何事
+        }
+    }
+
+    /**
+     * 磁盘缓存的key:Uri内容的哈希,在解码线程中重新打开计算.
+     *
+     * @return 没有设置磁盘缓存时返回null
+     */
+    private Callable<String> uriKeyLoader(final ContentResolver contentResolver, final Uri uri) {
+        if (mTileDiskCache == null) {
+            return null;
+        }
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                ParcelFileDescriptor parcelFileDescriptor = contentResolver.openFileDescriptor(uri, "r");
+                if (parcelFileDescriptor == null) {
+                    throw new FileNotFoundException(uri.toString());
                 }
-                break;
-            case MotionEvent.ACTION_POINTER_UP:     //不是最后一个触控点释放
-                //这里event.getPointerCount()是包含被释放的触控点的!
-                switch (event.getPointerCount()) {   //判断触控点个数
-                    case 2: //剩余两个触控点,释放后剩下一个,拖拽,记录剩余的触控点坐标
-                        switch (event.getActionIndex()) {
-                            case 0: //第0个触控点被释放,记录第1个触控点的坐标
-                                mLastTouchPoint.set((int) event.getX(1),
-                                        (int) event.getY(1));
-                                break;
-                            case 1: //第1个触控点被释放,记录第0个触控点的坐标
-                                mLastTouchPoint.set((int) event.getX(0),
-                                        (int) event.getY(0));
-                                break;
-                            default:
-                        }
-                        break;
-                    case 3: //剩余三个触控点,释放后剩下两个,缩放,记录两个触控点的距离
-                        switch (event.getActionIndex()) {
-                            case 0: //第0个触控点被释放,记录触控点1,2的距离
-                                mLastDoubleTouchPointDistance = calculateDistance(
+                return hashAndClose(parcelFileDescriptor);
+            }
+        };
+    }
+
+    private static String hashAndClose(ParcelFileDescriptor parcelFileDescriptor) throws IOException {
+        ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                new ParcelFileDescriptor.AutoCloseInputStream(parcelFileDescriptor);
+        try {
+            return TileDiskCache.hash(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * 使用新的解码器,原图尺寸直接从解码器得到,不需要再解码一次;旋转的角度恢复为0,有保存的状态时恢复保存的角度.
+     *
+     * @param source    解码器和EXIF中的方向
+     * @param keyLoader 计算磁盘缓存的key,为null时不使用磁盘缓存
+     */
+    private void setSource(LoadTask.Source source, Callable<String> keyLoader) {
+        if (source == null || source.decoder == null) {
+            TileManager.closeKeyLoader(keyLoader);
+            return;
+        }
+        if (mDecoderPool != null) {
+            mDecoderPool.close();   //之前的原图不再解码,正在进行的解码和裁剪结束后回收所有的解码器
+        }
+        this.mDecoderPool = source.createPool();
+        mSrcWidth = source.decoder.getWidth();
+        mSrcHeight = source.decoder.getHeight();
+        mExifOrientation = Orientation.fromExif(source.orientation);
+        mImageRotation = pendingRotation();
+        //只用于显示的块和缩略图按原图是否透明选择格式,裁剪不受影响
+        mTileManager.setBitmapConfig(mLowMemoryPreview && source.opaque
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888, mLowMemoryPreview);
+        mTileManager.setDecoder(mDecoderPool, mSrcWidth, mSrcHeight, keyLoader);
+        updateOrientation();
+    }
+
+    /**
+     * 按照EXIF中的方向和旋转的角度更新显示方向,并重新初始化显示.已经解码的块不受影响
+     */
+    private void updateOrientation() {
+        mOrientation = mExifOrientation.rotate(mImageRotation);
+        mGeometry.setSourceSize(mOrientation.displayWidth(mSrcWidth, mSrcHeight),
+                mOrientation.displayHeight(mSrcWidth, mSrcHeight));
+        initDisplay();
+    }
+
+    /**
+     * 初始化显示.
+     */
+    private void initDisplay() {
+        mGeometry.setViewport(mWidth, mHeight, mPreviewWidth, mPreviewHeight);
+        if (!mGeometry.isReady()) {
+            return;
+        }
+        finishAnimation();
+        mGeometry.reset();  //图片的短边刚好填满预览窗口,显示图片的中心
+        restoreViewport();
+        decodeCenter();
+        invalidate();
+    }
+
+    /**
+     * 绘制已经解码的图像.
+     * 图像分块解码,每个块根据它对应的原图区域和当前的显示中心,缩放比例绘制;所以在新的块解码出来之前,已经解码
+     * 的块依然能跟随手指移动和缩放.
+     * 有方向时把画布绕控件中心旋转(和翻转),块仍然按原始方向的坐标绘制
+     *
+     * @param canvas canvas
+     */
+    private void drawBitmap(Canvas canvas) {
+        if (mOrientation.isIdentity()) {
+            mTileManager.draw(canvas, mBitmapPaint, mGeometry.getCenterX(), mGeometry.getCenterY(),
+                    mGeometry.getImageScale(), mWidth, mHeight);
+            return;
+        }
+        mOrientation.toRaw(mGeometry.getCenterX(), mGeometry.getCenterY(), mSrcWidth, mSrcHeight, mRawPoint);
+        //旋转后的画布上控件的宽高
+        int width = mOrientation.isTransposed() ? mHeight : mWidth;
+        int height = mOrientation.isTransposed() ? mWidth : mHeight;
+        int saveCount = canvas.save();
+        canvas.translate(mWidth / 2f, mHeight / 2f);
+        canvas.rotate(mOrientation.getDegrees());
+        if (mOrientation.isFlipped()) {
+            canvas.scale(-1, 1);
+        }
+        canvas.translate(-width / 2f, -height / 2f);
+        mTileManager.draw(canvas, mBitmapPaint, mRawPoint[0], mRawPoint[1], mGeometry.getImageScale(),
+                width, height);
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void drawPlaceholder(Canvas canvas) {
+        if (mPlaceholder == null) {
+            return;
+        }
+        mPlaceholder.setBounds(Math.round(mPreviewRect.left), Math.round(mPreviewRect.top),
+                Math.round(mPreviewRect.right), Math.round(mPreviewRect.bottom));
+        mPlaceholder.draw(canvas);
+    }
+
+    /**
+     * 绘制遮罩.遮罩的Bitmap不变时硬件加速只需要上传一次纹理,每一帧只是合成
+     */
+    private void drawMask(Canvas canvas) {
+        if (mMaskDirty || mMaskBitmap == null) {
+            buildMask();
+        }
+        if (mMaskBitmap != null) {
+            canvas.drawBitmap(mMaskBitmap, 0, 0, mMaskPaint);
+        }
+    }
+
+    /**
+     * 重新绘制遮罩:整个控件不透明,预览窗口的部分透明;颜色在绘制时由画笔决定.
+     */
+    private void buildMask() {
+        mMaskDirty = false;
+        if (mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        if (mMaskBitmap == null
+                || mMaskBitmap.getWidth() != mWidth || mMaskBitmap.getHeight() != mHeight) {
+            if (mMaskBitmap != null) {
+                mMaskBitmap.recycle();
+            }
+            mMaskBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ALPHA_8);
+        }
+        Canvas canvas = new Canvas(mMaskBitmap);
+        canvas.drawColor(Color.BLACK, PorterDuff.Mode.SRC);
+        mMaskPath.rewind();
+        switch (mCropShape) {
+            case RECT:
+                mMaskPath.addRect(mPreviewRect, Path.Direction.CW);
+                break;
+            case ROUNDED_RECT:
+                float maxRadius = Math.min(mPreviewWidth, mPreviewHeight) / 2f;
+                float radius = mCornerRadius >= 0 ? Math.min(mCornerRadius, maxRadius)
+                        : maxRadius * 2 * DEFAULT_CORNER_RATIO;
+                mMaskPath.addRoundRect(mPreviewRect, radius, radius, Path.Direction.CW);
+                break;
+            default:
+                mMaskPath.addOval(mPreviewRect, Path.Direction.CW);
+        }
+        canvas.drawPath(mMaskPath, mMaskClearPaint);
+    }
+
+    /**
+     * 解码当前显示中心的合适大小的图片.
+     * 大小:控件可以放下的部分
+     * 这里只计算控件范围对应的原图区域并交给{@link TileManager},只有新进入控件范围的块会被解码,不会阻塞主线程
+     */
+    private void decodeCenter() {
+        if (mDecoderPool != null && mGeometry.isReady()) {
+            //超出原图的部分由TileManager裁掉
+            mGeometry.getVisibleRect(mVisibleRect);
+            mOrientation.toRaw(mVisibleRect, mSrcWidth, mSrcHeight, mVisibleRect, mRawPoint);
+            mTileManager.update(mGeometry.getSampleSize(), mVisibleRect.left, mVisibleRect.top,
+                    mVisibleRect.right, mVisibleRect.bottom);
+        }
+    }
+
+    /**
+     * 按照拖动和缩放的速度预测一段时间后的控件范围,预先解码其中还没有缓存的块,包括缩放后的压缩倍数的块.
+     * 停止移动,方向反转或者松手时放弃还没有开始的预先解码.每一帧调用一次,不分配对象
+     *
+     * @param dragging  手指是否正在拖动或缩放
+     * @param frameTime 这一帧的时间(ns)
+     */
+    private void prefetchAhead(boolean dragging, long frameTime) {
+        if (!dragging || !mPrefetchEnabled || mDecoderPool == null || !mGeometry.isReady()) {
+            mMotionPredictor.reset();
+            mTileManager.cancelPrefetch();
+            return;
+        }
+        boolean reversed = mMotionPredictor.addSample(mGeometry.getCenterX(), mGeometry.getCenterY(),
+                mGeometry.getImageScale(), frameTime);
+        if (reversed || !mMotionPredictor.isMoving()) {
+            mTileManager.cancelPrefetch();  //之前预测的区域不会进入控件范围了
+            return;
+        }
+        long lookahead = MotionPredictor.LOOKAHEAD_NANOS;
+        float scale = mMotionPredictor.predictScale(lookahead);
+        float centerX = mMotionPredictor.predictCenterX(lookahead);
+        float centerY = mMotionPredictor.predictCenterY(lookahead);
+        //和CropGeometry一样按测量的控件尺寸计算,预先解码的块和之后decodeCenter()需要的块相同
+        float halfWidth = mWidth / scale / 2;
+        float halfHeight = mHeight / scale / 2;
+        mPrefetchRect.set(centerX - halfWidth, centerY - halfHeight, centerX + halfWidth, centerY + halfHeight);
+        mOrientation.toRaw(mPrefetchRect, mSrcWidth, mSrcHeight, mPrefetchRect, mRawPoint);
+        mTileManager.prefetch(mGeometry.sampleSizeFor(scale), mPrefetchRect.left, mPrefetchRect.top,
+                mPrefetchRect.right, mPrefetchRect.bottom);
+    }
+
+    /**
+     * 裁剪图片.
+     * 裁剪区域分条解码并逐条写入PNG文件,不会把整个裁剪结果解码到内存中,裁剪原始分辨率的大图也不会内存溢出.
+     * 会阻塞调用的线程直到文件写入完成,在主线程中应该使用{@link #cropAsync(File, int, CropCallback)}
+     *
+     * @param file       存放的文件
+     * @param resolution 裁剪的分辨率.(取一个最接近的有效分辨率,为负则取原始的分辨率)
+     */
+    public void crop(File file, int resolution) {
+        crop(file, resolution, null);
+    }
+
+    /**
+     * 裁剪图片.
+     * 会阻塞调用的线程直到文件写入完成,在主线程中应该使用{@link #cropAsync(File, int, CropOptions, boolean,
+     * CropCallback)}
+     *
+     * @param file       存放的文件
+     * @param resolution 裁剪的分辨率.(取一个最接近的有效分辨率,为负则取原始的分辨率)
+     * @param options    输出格式,质量等设置,为null时输出PNG
+     * @return 裁剪结果, 没有设置原始图片或者裁剪失败时返回null
+     */
+    public CropResult crop(File file, int resolution, @Nullable CropOptions options) {
+        DecoderPool decoderPool = mDecoderPool;
+        StripCropper cropper = createCropper(resolution, options);
+        if (cropper == null) {
+            return null;
+        }
+        try {
+            return cropper.writeFile(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            decoderPool.removeUser();
+        }
+    }
+
+    /**
+     * 一次裁剪多个尺寸,比如同时生成几种尺寸的头像.
+     * 按最大的尺寸只解码一次裁剪区域,更小的尺寸从同一份像素逐级缩小得到,各个尺寸并行编码和写入;
+     * 所有输出都是精确尺寸.整个裁剪区域会解码到内存中,裁剪原始分辨率的大图时应该使用{@link #crop(File, int)}.
+     * 会阻塞调用的线程直到所有文件写入完成,应该在工作线程中调用
+     *
+     * @param outputs 输出的文件,分辨率和输出设置
+     * @return 和outputs顺序相同的裁剪结果, 没有设置原始图片或者裁剪失败时返回null; 失败时所有输出的文件都会被删除
+     */
+    @SuppressWarnings("unused")
+    public List<CropResult> crop(List<OutputSpec> outputs) {
+        DecoderPool decoderPool = mDecoderPool;
+        if (decoderPool == null || mLoadTask != null || outputs.isEmpty()) {
+            return null;
+        }
+        if (!decoderPool.addUser()) {
+            return null;    //在其他线程调用时原图已经更换
+        }
+        try {
+            MultiCropper cropper = new MultiCropper(decoderPool, getCropRect(), outputs);
+            cropper.setOrientation(mOrientation, mSrcWidth, mSrcHeight);
+            return cropper.writeFiles();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            decoderPool.removeUser();
+        }
+    }
+
+    /**
+     * 异步裁剪图片,输出PNG.
+     *
+     * @see #cropAsync(File, int, CropOptions, boolean, CropCallback)
+     */
+    @SuppressWarnings("unused")
+    public Future<CropResult> cropAsync(File file, int resolution, @Nullable CropCallback callback) {
+        return cropAsync(file, resolution, null, false, callback);
+    }
+
+    /**
+     * 异步裁剪图片.
+     * 裁剪范围在调用时确定,之后移动或缩放图片不会影响这次裁剪;裁剪在工作线程进行,所有回调都在主线程.
+     * 通过返回的Future可以取消裁剪,取消后不会再有任何回调,写了一半的文件会被删除
+     *
+     * @param file         存放的文件
+     * @param resolution   裁剪的分辨率.(取一个最接近的有效分辨率,为负则取原始的分辨率)
+     * @param options      输出格式,质量等设置,为null时输出PNG
+     * @param returnBitmap 是否在结果中同时返回裁剪结果的Bitmap,避免再从文件解码一次
+     * @param callback     回调,可以为null
+     * @return 裁剪任务, 没有设置原始图片时返回null
+     */
+    public Future<CropResult> cropAsync(File file, int resolution, @Nullable CropOptions options,
+                                        boolean returnBitmap, @Nullable CropCallback callback) {
+        StripCropper cropper = createCropper(resolution, options);
+        if (cropper == null) {
+            return null;
+        }
+        cropper.setKeepResult(returnBitmap);
+        CropTask task = new CropTask(cropper, mDecoderPool, file, callback);
+        getCropExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * 根据当前的显示中心和缩放比例创建裁剪器.
+     *
+     * @param resolution 裁剪的分辨率.(取一个最接近的有效分辨率,为负则取原始的分辨率)
+     * @param options    输出设置,可以为null
+     * @return 裁剪器, 没有设置原始图片或者正在加载时返回null; 不为null时已经增加了解码器池的使用者,
+     * 裁剪结束后由调用者{@link DecoderPool#removeUser()}
+     */
+    private StripCropper createCropper(int resolution, CropOptions options) {
+        if (mDecoderPool == null || mLoadTask != null || !mDecoderPool.addUser()) {
+            return null;
+        }
+        Rect rect = getCropRect();
+        StripCropper cropper = new StripCropper(mDecoderPool, rect,
+                mGeometry.getCropSampleSize(resolution));
+        cropper.setOrientation(mOrientation, mSrcWidth, mSrcHeight);
+        cropper.setOptions(options);
+        if (options != null && options.isExactSize() && resolution > 0) {
+            cropper.setTargetSize(resolution,
+                    CropGeometry.scaleHeight(resolution, rect.width(), rect.height()));
+        }
+        return cropper;
+    }
+
+    /**
+     * 计算当前的裁剪范围(显示方向的坐标),边界都是整数.
+     */
+    private Rect getCropRect() {
+        GeometryRect cropRect = new GeometryRect();
+        mGeometry.getCropRect(cropRect);
+        return new Rect((int) cropRect.left, (int) cropRect.top, (int) cropRect.right, (int) cropRect.bottom);
+    }
+
+    /**
+     * 获取裁剪线程,所有控件共用一个线程.
+     */
+    private static synchronized ExecutorService getCropExecutor() {
+        if (sCropExecutor == null) {
+            sCropExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "CropView-crop");
+                }
+            });
+        }
+        return sCropExecutor;
+    }
+
+    private static synchronized ExecutorService getLoadExecutor() {
+        if (sLoadExecutor == null) {
+            sLoadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "CropView-load");
+                }
+            });
+        }
+        return sLoadExecutor;
+    }
+
+    /**
+     * 设置遮罩颜色.
+     *
+     * @param maskColor 遮罩颜色 ARGB
+     */
+    @SuppressWarnings("unused")
+    public void setMaskColor(int maskColor) {
+        this.mMaskColor = maskColor;
+        mMaskPaint.setColor(maskColor);  //遮罩的Bitmap只有透明通道,颜色改变时不需要重新绘制
+        invalidate();
+    }
+
+    /**
+     * 设置预览窗口的形状.
+     *
+     * @param shape 形状,默认圆形
+     */
+    @SuppressWarnings("unused")
+    public void setCropShape(Shape shape) {
+        this.mCropShape = shape;
+        mMaskDirty = true;
+        invalidate();
+    }
+
+    /**
+     * 设置预览窗口的宽高比,裁剪结果的宽高比相同;裁剪时的分辨率是输出的宽度.
+     * 预览窗口在控件中尽量大,宽高都不超过控件的80%;设置后图片回到初始显示
+     *
+     * @param width  宽度的比例,大于0
+     * @param height 高度的比例,大于0
+     */
+    @SuppressWarnings("unused")
+    public void setCropAspectRatio(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("aspect ratio must be > 0");
+        }
+        this.mAspectX = width;
+        this.mAspectY = height;
+        if (mWidth > 0 && mHeight > 0) {
+            updatePreviewSize();
+            initDisplay();
+        }
+        invalidate();
+    }
+
+    /**
+     * 设置圆角矩形的圆角半径.
+     *
+     * @param radius 圆角半径(px),最大是预览窗口短边的一半;为负时使用默认值,短边的10%
+     */
+    @SuppressWarnings("unused")
+    public void setCornerRadius(float radius) {
+        this.mCornerRadius = radius;
+        mMaskDirty = true;
+        invalidate();
+    }
+
+    /**
+     * 顺时针旋转图片,多次调用时累加;设置新的图片时恢复为0.
+     * 只改变显示和裁剪的方向:已经解码的块按原始方向缓存,旋转后直接旋转画布绘制,不需要重新解码,也不占用额外的内存.
+     * 旋转后图片回到初始显示
+     *
+     * @param degrees 旋转的角度,必须是90的整数倍,为负时逆时针旋转
+     */
+    @SuppressWarnings("unused")
+    public void rotateImage(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("degrees must be a multiple of 90: " + degrees);
+        }
+        mImageRotation = ((mImageRotation + degrees) % 360 + 360) % 360;
+        if (mDecoderPool != null) {
+            updateOrientation();
+        }
+    }
+
+    /**
+     * @return 通过{@link #rotateImage(int)}旋转的角度, 0, 90, 180或270; 不包括EXIF中的方向
+     */
+    @SuppressWarnings("unused")
+    public int getImageRotation() {
+        return mImageRotation;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        Parcelable superState = super.onSaveInstanceState();
+        if (mDecoderPool == null || !mGeometry.isReady()) {
+            //还没有显示图片,保留还没有恢复的状态
+            return mPendingViewport != null ? mPendingViewport.copy(superState) : superState;
+        }
+        return captureViewport(superState);
+    }
+
+    /**
+     * 当前的显示状态.缩放和显示中心使用限制后的值,手势进行中保存时恢复到松手后回弹的位置附近
+     */
+    private SavedState captureViewport(Parcelable superState) {
+        return new SavedState(superState, mSrcWidth, mSrcHeight, mImageRotation,
+                mGeometry.getClampedScale() / mGeometry.getMinScale(),
+                mGeometry.getCenterX(), mGeometry.getCenterY());
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+        mPendingViewport = savedState;
+        //在onCreate中同步设置了图片时已经显示,立即恢复;否则等图片加载完成
+        if (mDecoderPool != null && mLoadTask == null) {
+            mImageRotation = pendingRotation();
+            updateOrientation();
+        }
+    }
+
+    /**
+     * @return 保存的状态和当前的图片相同时返回保存的旋转角度, 否则返回0
+     */
+    private int pendingRotation() {
+        if (mPendingViewport != null && mPendingViewport.matches(mSrcWidth, mSrcHeight)) {
+            return mPendingViewport.rotation;
+        }
+        return 0;
+    }
+
+    /**
+     * 恢复保存的显示中心和缩放.只恢复一次;图片或者旋转的角度不同时丢弃
+     */
+    private void restoreViewport() {
+        SavedState state = mPendingViewport;
+        mPendingViewport = null;
+        if (state != null && state.matches(mSrcWidth, mSrcHeight) && state.rotation == mImageRotation) {
+            //缩放按相对最小缩放比例的倍数恢复,控件尺寸改变(比如屏幕旋转)后仍然在限制的范围内
+            float scale = mGeometry.getMinScale() * Math.max(1, state.zoom);
+            mGeometry.setTransform(scale, state.centerX, state.centerY);
+        }
+    }
+
+    /**
+     * 交出当前的图片:已经打开的解码器,解码的块,显示中心和缩放,用于配置改变(比如屏幕旋转)时
+     * 在{@link android.app.Activity#onRetainNonConfigurationInstance()}或者ViewModel中保留,
+     * 之后交给新创建的控件{@link #setRetainedSource(RetainedSource)},不需要重新打开和解码.
+     * 调用后这个控件不再显示图片
+     *
+     * @return 保留的图片, 没有图片或者正在加载时返回null
+     */
+    @Nullable
+    public RetainedSource retainSource() {
+        if (mDecoderPool == null || mLoadTask != null) {
+            return null;
+        }
+        SavedState viewport = mGeometry.isReady() ? captureViewport(BaseSavedState.EMPTY_STATE) : null;
+        RetainedSource retained = new RetainedSource(mTileManager, mDecoderPool, mSrcWidth, mSrcHeight,
+                mExifOrientation, viewport);
+        mTileManager.pause();
+        mTileManager.setCallback(null);     //不再引用这个控件
+        mTileManager = new TileManager(mTileCallback);
+        mTileManager.setDiskCache(mTileDiskCache);
+        if (isAttachedToWindow()) {
+            mTileManager.start();
+        }
+        mDecoderPool = null;
+        mSrcWidth = 0;
+        mSrcHeight = 0;
+        mGeometry.setSourceSize(0, 0);
+        invalidate();
+        return retained;
+    }
+
+    /**
+     * 使用{@link #retainSource()}保留的图片,恢复显示中心,缩放和旋转的角度.
+     * 已经解码的块直接显示,不需要重新打开和解码;正在进行的异步加载会被取消
+     *
+     * @param retained 保留的图片,只能使用一次
+     */
+    public void setRetainedSource(@NonNull RetainedSource retained) {
+        TileManager tileManager = retained.takeTileManager();
+        if (tileManager == null) {
+            throw new IllegalStateException("retained source already used");
+        }
+        cancelLoad();
+        if (mDecoderPool != null) {
+            mDecoderPool.close();
+        }
+        mTileManager.stop();
+        mTileManager = tileManager;
+        mTileManager.setCallback(mTileCallback);
+        if (isAttachedToWindow()) {
+            mTileManager.start();
+        }
+        mLastDecodeTime = mTileManager.getTotalDecodeTime();
+        mLastDecodeCount = mTileManager.getTotalDecodeCount();
+        mDecoderPool = retained.mDecoderPool;
+        mSrcWidth = retained.mSrcWidth;
+        mSrcHeight = retained.mSrcHeight;
+        mExifOrientation = retained.mExifOrientation;
+        if (retained.mViewport != null) {
+            mPendingViewport = retained.mViewport;
+        }
+        mImageRotation = pendingRotation();
+        updateOrientation();
+        invalidate();
+    }
+
+    /**
+     * 设置每一帧的统计监听,用来确认拖动和缩放时没有分配对象.
+     * 设置后开始统计分配的对象数,有一定的性能开销,只在需要统计时设置
+     *
+     * @param listener 监听,为null时停止统计
+     */
+    @SuppressWarnings({"unused", "deprecation"})
+    public void setFrameStatsListener(@Nullable FrameStatsListener listener) {
+        if (listener != null && mFrameStatsListener == null) {
+            Debug.startAllocCounting();
+            mLastAllocCount = Debug.getThreadAllocCount();
+        } else if (listener == null && mFrameStatsListener != null) {
+            Debug.stopAllocCounting();
+        }
+        mTileManager.takeDecodeTime();  //只统计设置之后的解码耗时
+        this.mFrameStatsListener = listener;
+    }
+
+    /**
+     * 设置预览质量.
+     * 只影响清晰的分块图像;加载后立即显示的缩略图质量是固定的
+     *
+     * @param quality 预览质量;0-1
+     */
+    @SuppressWarnings("unused")
+    public void setPreviewQuality(float quality) {
+        mQualityController.setBaseScale((float) (0.1 + (quality * 0.9)));
+        mGeometry.setDisplayScale(mQualityController.getDisplayScale());
+    }
+
+    /**
+     * 开启或关闭自适应预览质量.
+     * 开启后测量每一帧的绘制耗时和块的解码耗时:手势和动画进行时降低预览质量(压缩倍数更大,块更少),
+     * 绘制或解码超出预算时降得更多;停止后回到{@link #setPreviewQuality(float)}设置的质量.
+     * 内存不足时在一段时间内限制预览质量;无论是否开启,内存不足时都会释放块的缓存
+     *
+     * @param enabled 是否开启,默认关闭
+     */
+    @SuppressWarnings("unused")
+    public void setAdaptivePreviewQuality(boolean enabled) {
+        mQualityController.setEnabled(enabled);
+        mLastDecodeTime = mTileManager.getTotalDecodeTime();  //只统计开启之后的解码耗时
+        mLastDecodeCount = mTileManager.getTotalDecodeCount();
+        if (updatePreviewQuality(mTouching || mAnimating)) {
+            decodeCenter();
+            invalidate();
+        }
+    }
+
+    /**
+     * 设置自适应预览质量改变的监听,可以用来根据实际的耗时调整预览质量.
+     *
+     * @param listener 监听,可以为null
+     */
+    @SuppressWarnings("unused")
+    public void setPreviewQualityListener(@Nullable PreviewQualityListener listener) {
+        this.mPreviewQualityListener = listener;
+    }
+
+    /**
+     * @return 当前的预览质量等级, 没有开启自适应预览质量时总是{@link #PREVIEW_QUALITY_FULL}
+     */
+    @SuppressWarnings("unused")
+    public int getPreviewQualityLevel() {
+        return mQualityController.getLevel();
+    }
+
+    /**
+     * 记录上一帧之后解码的块的耗时,重新选择预览质量等级,改变时更新压缩倍数并通知监听.
+     * 不会解码,由调用者决定是否解码
+     *
+     * @param interacting 手势或动画是否正在进行
+     * @return 等级是否改变
+     */
+    private boolean updatePreviewQuality(boolean interacting) {
+        if (mQualityController.isEnabled()) {
+            long decodeTime = mTileManager.getTotalDecodeTime();
+            int decodeCount = mTileManager.getTotalDecodeCount();
+            mQualityController.onTilesDecoded(decodeTime - mLastDecodeTime, decodeCount - mLastDecodeCount);
+            mLastDecodeTime = decodeTime;
+            mLastDecodeCount = decodeCount;
+        }
+        if (!mQualityController.update(interacting, System.nanoTime())) {
+            return false;
+        }
+        mGeometry.setDisplayScale(mQualityController.getDisplayScale());
+        if (mPreviewQualityListener != null) {
+            mPreviewQualityListener.onPreviewQualityChanged(mQualityController.getLevel(),
+                    mQualityController.getReason(), mQualityController.getDisplayScale(),
+                    mQualityController.getAverageDrawTime(), mQualityController.getAverageDecodeTime());
+        }
+        return true;
+    }
+
+    /**
+     * 内存不足.刚刚不可见时只释放其他层的块,回到前台时不需要重新解码;
+     * 不可见并且进程可能被杀死时释放所有的块,只保留缩略图,回到前台时重新解码;运行时内存不足释放更多的块,并暂时降低预览质量.
+     *
+     * @param level {@link ComponentCallbacks2}的内存等级
+     */
+    private void trimMemory(int level) {
+        int qualityLevel;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mTileManager.trimMemory(false);
+            return;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mTileManager.trimMemory(true);
+            return;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mTileManager.trimMemory(false);
+            qualityLevel = QualityController.LEVEL_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mTileManager.trimMemory(true);
+            qualityLevel = QualityController.LEVEL_REDUCED;
+        } else {
+            return;
+        }
+        mQualityController.onMemoryPressure(qualityLevel, System.nanoTime());
+        updatePreviewQuality(mTouching || mAnimating);
+        removeCallbacks(mQualityRunnable);
+        postDelayed(mQualityRunnable, QualityController.MEMORY_PRESSURE_NANOS / 1000000 + 1);
+        decodeCenter();  //释放的块按照新的质量重新解码
+        invalidate();
+    }
+
+    /**
+     * 设置预览图片缓存的内存上限.
+     * 解码过的块会被缓存,来回移动或者在两个缩放级别之间切换时不需要重新解码
+     *
+     * @param maxBytes 内存上限(字节),默认是最大可用内存的1/8;至少要能放下控件范围内所有的块,否则会反复解码
+     */
+    @SuppressWarnings("unused")
+    public void setTileCacheSize(int maxBytes) {
+        mTileManager.setCacheSize(maxBytes);
+        decodeCenter();
+        invalidate();
+    }
+
+    /**
+     * 设置预览图片的磁盘缓存.
+     * 解码出的块和缩略图以原图内容的哈希为key保存到磁盘,再次打开同一张图片时直接读取,不需要重新解码.
+     * 哈希在解码线程中计算;只对之后设置的原始图片有效
+     *
+     * @param cache 磁盘缓存,多个控件可以共用;为null时不使用
+     */
+    @SuppressWarnings("unused")
+    public void setTileDiskCache(@Nullable TileDiskCache cache) {
+        this.mTileDiskCache = cache;
+        mTileManager.setDiskCache(cache);
+    }
+
+    /**
+     * 设置是否用省内存的格式预览.
+     * 开启后加载时判断原图是否有透明通道,不透明的原图(比如JPEG)的块用{@link Bitmap.Config#RGB_565}解码,内存减半,
+     * 同样的缓存上限可以放下两倍的块;Android 8.0及以上缩略图转为只占用显存的{@link Bitmap.Config#HARDWARE}.
+     * 裁剪仍然按{@link CropOptions}解码,默认是ARGB_8888.只对之后设置的原始图片有效
+     *
+     * @param enabled 是否开启,默认开启;渐变较多的图片RGB_565可能出现色带,可以关闭
+     */
+    @SuppressWarnings("unused")
+    public void setLowMemoryPreview(boolean enabled) {
+        this.mLowMemoryPreview = enabled;
+    }
+
+    /**
+     * 获取预览图片的块使用的格式.
+     *
+     * @return {@link Bitmap.Config#RGB_565}或{@link Bitmap.Config#ARGB_8888}
+     */
+    @SuppressWarnings("unused")
+    public Bitmap.Config getPreviewBitmapConfig() {
+        return mTileManager.getTileConfig();
+    }
+
+    /**
+     * 获取预览图片缩略图使用的格式.
+     *
+     * @return 缩略图的格式, 还没有解码时为null
+     */
+    @SuppressWarnings("unused")
+    @Nullable
+    public Bitmap.Config getPreviewThumbnailConfig() {
+        return mTileManager.getPreviewConfig();
+    }
+
+    /**
+     * 获取预览图片占用的内存.
+     *
+     * @return 缓存的块和缩略图占用的内存(字节), HARDWARE的缩略图占用的是显存
+     */
+    @SuppressWarnings("unused")
+    public int getPreviewBitmapBytes() {
+        return mTileManager.getCacheBytes() + mTileManager.getPreviewBytes();
+    }
+
+    /**
+     * 获取预览图片缓存的命中次数.
+     *
+     * @return 新进入控件范围的块已经在缓存中的次数
+     */
+    @SuppressWarnings("unused")
+    public int getTileCacheHitCount() {
+        return mTileManager.getHitCount();
+    }
+
+    /**
+     * 获取预览图片缓存的未命中次数.
+     *
+     * @return 新进入控件范围的块需要解码的次数
+     */
+    @SuppressWarnings("unused")
+    public int getTileCacheMissCount() {
+        return mTileManager.getMissCount();
+    }
+
+    /**
+     * 获取预览图片缓存的淘汰次数.
+     *
+     * @return 被淘汰的块的个数
+     */
+    @SuppressWarnings("unused")
+    public int getTileCacheEvictionCount() {
+        return mTileManager.getEvictionCount();
+    }
+
+    /**
+     * 开启或关闭预先解码.
+     * 开启后拖动和缩放时根据最近几帧的速度预测控件范围,在后台预先解码即将进入控件范围的块,优先级低于控件范围内的块,
+     * 每次最多预先解码几个块;方向改变或者松手时放弃还没有开始的预先解码
+     *
+     * @param enabled 是否开启,默认开启
+     */
+    @SuppressWarnings("unused")
+    public void setPrefetchEnabled(boolean enabled) {
+        this.mPrefetchEnabled = enabled;
+        if (!enabled) {
+            mMotionPredictor.reset();
+            mTileManager.cancelPrefetch();
+        }
+    }
+
+    /**
+     * 获取预先解码的块数.
+     *
+     * @return 预先解码的块数, 命中率是{@link #getPrefetchHitCount()}除以这个数
+     */
+    @SuppressWarnings("unused")
+    public int getPrefetchCount() {
+        return mTileManager.getPrefetchCount();
+    }
+
+    /**
+     * 获取预先解码的命中次数.
+     *
+     * @return 预先解码的块在被淘汰前进入控件范围的次数
+     */
+    @SuppressWarnings("unused")
+    public int getPrefetchHitCount() {
+        return mTileManager.getPrefetchHitCount();
+    }
+
+    /**
+     * 获取浪费的预先解码次数.
+     *
+     * @return 预先解码的块没有进入过控件范围就被淘汰的次数
+     */
+    @SuppressWarnings("unused")
+    public int getPrefetchWasteCount() {
+        return mTileManager.getPrefetchWasteCount();
+    }
+
+    /**
+     * 获取当前的裁剪参数,交给{@link CropEngine}可以在没有控件的情况下按照相同的范围重新裁剪.
+     * 手势或者动画进行时取限制后的值
+     *
+     * @return 裁剪参数, 没有原始图片或者正在加载时为null
+     */
+    @Nullable
+    @SuppressWarnings("unused")
+    public CropParams getCropParams() {
+        if (mLoadTask != null || !mGeometry.isReady()) {
+            return null;
+        }
+        float scale = mGeometry.getClampedScale();
+        return new CropParams(mGeometry.clampCenterX(mGeometry.getCenterX(), scale),
+                mGeometry.clampCenterY(mGeometry.getCenterY(), scale), scale,
+                mPreviewWidth, mPreviewHeight, mOrientation.toExif());
+    }
+
+    /**
+     * 计算直角坐标系中两个点的距离.
+     *
+     * @param x1 点1的x坐标
+     * @param y1 点1的y坐标
+     * @param x2 点2的x坐标
+     * @param y2 点1的y坐标
+     * @return 两点的距离
+     */
+    private float calculateDistance(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * 单指拖动到新的位置,只更新显示中心.
+     */
+    private void dragTo(float x, float y) {
+        mGeometry.translate(x - mLastTouchX, y - mLastTouchY);
+        mLastTouchX = x;
+        mLastTouchY = y;
+    }
+
+    /**
+     * 两指缩放到新的距离,只更新缩放比例.
+     */
+    private void pinchTo(float distance) {
+        mGeometry.scale(distance / mLastDoubleTouchPointDistance);
+        //保存当前两个触控点的距离,作为下一次缩放的上一次的触控点距离
+        mLastDoubleTouchPointDistance = distance;
+    }
+
+    /**
+     * 在下一次垂直同步时解码并重绘,这一帧已经安排过时不做任何事.
+     */
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * 双击时以双击的点为中心放大,已经放大时缩小到最小缩放比例.
+     */
+    private void zoomAt(float x, float y) {
+        float scale = mGeometry.getImageScale();
+        float zoomScale = mGeometry.getMinScale() * DOUBLE_TAP_ZOOM;
+        float endScale = scale < zoomScale * 0.99f ? zoomScale : mGeometry.getMinScale();
+        //双击的点对应的原图位置在动画结束时不变
+        float offsetX = x - mWidth / 2f;
+        float offsetY = y - mHeight / 2f;
+        float endCenterX = mGeometry.getCenterX() + offsetX / scale - offsetX / endScale;
+        float endCenterY = mGeometry.getCenterY() + offsetY / scale - offsetY / endScale;
+        animateTo(endScale, mGeometry.clampCenterX(endCenterX, endScale),
+                mGeometry.clampCenterY(endCenterY, endScale));
+    }
+
+    /**
+     * 松手.越过边界时回弹,否则按照松手时的速度惯性滑动;都没有时在下一帧解码停下的位置.
+     */
+    private void release() {
+        if (mAnimating) {
+            return; //双击的缩放动画正在进行
+        }
+        if (!mGeometry.isInBounds()) {
+            float scale = mGeometry.getClampedScale();
+            animateTo(scale, mGeometry.clampCenterX(mGeometry.getCenterX(), scale),
+                    mGeometry.clampCenterY(mGeometry.getCenterY(), scale));
+            return;
+        }
+        mGeometry.setClampEnabled(true);
+        if (mVelocityTracker != null) {
+            mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+            float velocityX = mVelocityTracker.getXVelocity();
+            float velocityY = mVelocityTracker.getYVelocity();
+            if (Math.abs(velocityX) >= mMinFlingVelocity || Math.abs(velocityY) >= mMinFlingVelocity) {
+                //在控件像素的坐标中滑动,显示中心乘缩放比例
+                float scale = mGeometry.getImageScale();
+                mGeometry.getCenterRange(mCenterRange);
+                mScroller.fling(
+                        Math.round(mGeometry.getCenterX() * scale), Math.round(mGeometry.getCenterY() * scale),
+                        -Math.round(velocityX), -Math.round(velocityY),
+                        Math.round(mCenterRange.left * scale), Math.round(mCenterRange.right * scale),
+                        Math.round(mCenterRange.top * scale), Math.round(mCenterRange.bottom * scale));
+            }
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * 开始缩放或者回弹动画,动画时不限制缩放比例和显示中心,结束时刚好到达限制的范围内.
+     */
+    private void animateTo(float scale, float centerX, float centerY) {
+        mScroller.forceFinished(true);
+        mGeometry.setClampEnabled(false);
+        mStartScale = mGeometry.getImageScale();
+        mStartCenterX = mGeometry.getCenterX();
+        mStartCenterY = mGeometry.getCenterY();
+        mEndScale = scale;
+        mEndCenterX = centerX;
+        mEndCenterY = centerY;
+        mAnimationStartTime = AnimationUtils.currentAnimationTimeMillis();
+        mAnimating = true;
+        scheduleFrame();
+    }
+
+    /**
+     * 计算动画这一帧的位置.
+     *
+     * @return 动画是否还在进行, 结束或者没有动画时返回false
+     */
+    private boolean stepAnimation() {
+        if (mScroller.computeScrollOffset()) {
+            float scale = mGeometry.getImageScale();
+            mGeometry.setTransform(scale, mScroller.getCurrX() / scale, mScroller.getCurrY() / scale);
+            return !mScroller.isFinished();
+        }
+        if (!mAnimating) {
+            return false;
+        }
+        float progress = (float) (AnimationUtils.currentAnimationTimeMillis() - mAnimationStartTime)
+                / ANIMATION_DURATION;
+        if (progress >= 1) {
+            finishAnimation();
+            return false;
+        }
+        float fraction = mInterpolator.getInterpolation(progress);
+        mGeometry.setTransform(mStartScale + (mEndScale - mStartScale) * fraction,
+                mStartCenterX + (mEndCenterX - mStartCenterX) * fraction,
+                mStartCenterY + (mEndCenterY - mStartCenterY) * fraction);
+        return true;
+    }
+
+    /**
+     * 停止动画,停在当前的位置;用于手指重新按下.
+     */
+    private void stopAnimation() {
+        mScroller.forceFinished(true);
+        mAnimating = false;
+    }
+
+    /**
+     * 立即结束动画,直接到达结束的位置并恢复限制.
+     */
+    private void finishAnimation() {
+        mScroller.forceFinished(true);
+        mGeometry.setClampEnabled(true);
+        if (mAnimating) {
+            mAnimating = false;
+            mGeometry.setTransform(mEndScale, mEndCenterX, mEndCenterY);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mLoadTask != null) {
+            return true;    //加载时没有可以移动的图片
+        }
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            mTouching = true;
+            stopAnimation();    //先停止上一次的动画,双击时新的缩放动画在下面开始
+            mGeometry.setClampEnabled(false);
+            if (mVelocityTracker == null) {
+                mVelocityTracker = VelocityTracker.obtain();
+            } else {
+                mVelocityTracker.clear();
+            }
+        }
+        mGestureDetector.onTouchEvent(event);
+        if (mVelocityTracker != null) {
+            mVelocityTracker.addMovement(event);
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:   //第一个点按下,保存坐标
+                mLastTouchX = event.getX(0);
+                mLastTouchY = event.getY(0);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:    //不是第一个点被按下
+                if (mVelocityTracker != null) {
+                    mVelocityTracker.clear();   //缩放时的移动不计入惯性滑动的速度
+                }
+                if (event.getActionIndex() == 1) {   //第二个点被按下,记录位置
+                    mLastDoubleTouchPointDistance = calculateDistance(
+                            event.getX(0), event.getY(0),
+                            event.getX(1), event.getY(1));
+                }
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mAnimating) {
+                    break;  //双击的缩放动画正在进行
+                }
+                switch (event.getPointerCount()) {
+                    case 1:
+                        //一个事件中可能合并了上一帧之后的多个采样点,依次处理,到达边界时的调整和逐个处理时相同
+                        for (int h = 0; h < event.getHistorySize(); h++) {
+                            dragTo(event.getHistoricalX(0, h), event.getHistoricalY(0, h));
+                        }
+                        dragTo(event.getX(0), event.getY(0));
+                        scheduleFrame();
+                        break;
+                    case 2:
+                        for (int h = 0; h < event.getHistorySize(); h++) {
+                            pinchTo(calculateDistance(
+                                    event.getHistoricalX(0, h), event.getHistoricalY(0, h),
+                                    event.getHistoricalX(1, h), event.getHistoricalY(1, h)));
+                        }
+                        pinchTo(calculateDistance(
+                                event.getX(0), event.getY(0),
+                                event.getX(1), event.getY(1)));
+                        scheduleFrame();
+                        break;
+                    default:
+                }
+                break;
+            case MotionEvent.ACTION_POINTER_UP:     //不是最后一个触控点释放
+                if (mVelocityTracker != null) {
+                    mVelocityTracker.clear();
+                }
+                //这里event.getPointerCount()是包含被释放的触控点的!
+                switch (event.getPointerCount()) {   //判断触控点个数
+                    case 2: //剩余两个触控点,释放后剩下一个,拖拽,记录剩余的触控点坐标
+                        switch (event.getActionIndex()) {
+                            case 0: //第0个触控点被释放,记录第1个触控点的坐标
+                                mLastTouchX = event.getX(1);
+                                mLastTouchY = event.getY(1);
+                                break;
+                            case 1: //第1个触控点被释放,记录第0个触控点的坐标
+                                mLastTouchX = event.getX(0);
+                                mLastTouchY = event.getY(0);
+                                break;
+                            default:
+                        }
+                        break;
+                    case 3: //剩余三个触控点,释放后剩下两个,缩放,记录两个触控点的距离
+                        switch (event.getActionIndex()) {
+                            case 0: //第0个触控点被释放,记录触控点1,2的距离
+                                mLastDoubleTouchPointDistance = calculateDistance(
                                         event.getX(1), event.getY(1),
                                         event.getX(2), event.getY(2));
                                 break;
@@ -484,9 +2002,126 @@ public class CropImageView extends View {
                 }
                 break;
             case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mTouching = false;  //惯性滑动和动画结束后恢复预览质量
+                release();
+                if (mVelocityTracker != null) {
+                    mVelocityTracker.recycle();
+                    mVelocityTracker = null;
+                }
                 break;
         }
         return true;
         //return super.onTouchEvent(event);
     }
+
+    /**
+     * 保存的显示状态:原图尺寸用来确认是同一张图片,缩放是相对最小缩放比例的倍数,显示中心是显示方向的原图坐标.
+     */
+    static class SavedState extends BaseSavedState {
+
+        final int srcWidth;
+        final int srcHeight;
+        final int rotation;
+        final float zoom;
+        final float centerX;
+        final float centerY;
+
+        SavedState(Parcelable superState, int srcWidth, int srcHeight, int rotation, float zoom,
+                   float centerX, float centerY) {
+            super(superState);
+            this.srcWidth = srcWidth;
+            this.srcHeight = srcHeight;
+            this.rotation = rotation;
+            this.zoom = zoom;
+            this.centerX = centerX;
+            this.centerY = centerY;
+        }
+
+        private SavedState(Parcel source) {
+            super(source);
+            srcWidth = source.readInt();
+            srcHeight = source.readInt();
+            rotation = source.readInt();
+            zoom = source.readFloat();
+            centerX = source.readFloat();
+            centerY = source.readFloat();
+        }
+
+        /**
+         * @return 相同的状态, 父类的状态替换为superState
+         */
+        SavedState copy(Parcelable superState) {
+            return new SavedState(superState, srcWidth, srcHeight, rotation, zoom, centerX, centerY);
+        }
+
+        boolean matches(int srcWidth, int srcHeight) {
+            return this.srcWidth == srcWidth && this.srcHeight == srcHeight;
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(srcWidth);
+            out.writeInt(srcHeight);
+            out.writeInt(rotation);
+            out.writeFloat(zoom);
+            out.writeFloat(centerX);
+            out.writeFloat(centerY);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel source) {
+                return new SavedState(source);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
+
+    /**
+     * {@link #retainSource()}保留的图片:解码器,解码的块和缩略图,显示状态.
+     * 不引用任何控件或Activity,可以跨越Activity的重新创建保存;不再使用时调用{@link #release()}释放
+     */
+    public static final class RetainedSource {
+
+        private TileManager mTileManager;   //交给新的控件后为null
+        private final DecoderPool mDecoderPool;
+        private final int mSrcWidth;
+        private final int mSrcHeight;
+        private final Orientation mExifOrientation;
+        private final SavedState mViewport;     //可以为null
+
+        RetainedSource(TileManager tileManager, DecoderPool decoderPool, int srcWidth, int srcHeight,
+                       Orientation exifOrientation, SavedState viewport) {
+            this.mTileManager = tileManager;
+            this.mDecoderPool = decoderPool;
+            this.mSrcWidth = srcWidth;
+            this.mSrcHeight = srcHeight;
+            this.mExifOrientation = exifOrientation;
+            this.mViewport = viewport;
+        }
+
+        synchronized TileManager takeTileManager() {
+            TileManager tileManager = mTileManager;
+            mTileManager = null;
+            return tileManager;
+        }
+
+        /**
+         * 释放解码的块和解码器,用于保留之后不再需要(比如Activity结束).已经交给控件时不做任何事.
+         * 所有的解码器(包括第一个)在正在进行的解码和裁剪结束后回收
+         */
+        public void release() {
+            TileManager tileManager = takeTileManager();
+            if (tileManager != null) {
+                tileManager.release();
+                mDecoderPool.close();
+            }
+        }
+    }
 }
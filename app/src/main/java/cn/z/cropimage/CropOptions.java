@@ -0,0 +1,133 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * 裁剪结果的输出设置.
+ * 默认输出无损的PNG,和{@link CropImageView#crop(java.io.File, int)}相同
+ */
+public class CropOptions {
+
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.PNG;  //输出格式
+    private int mQuality = 100;         //输出质量,0-100,PNG忽略这个值
+    private long mTargetByteSize;       //期望的文件大小(字节),0表示不限制
+    private boolean mOpaque;            //是否丢弃透明通道
+    private boolean mRgb565;            //原图没有透明通道时是否用RGB_565解码
+    private boolean mExactSize;         //是否精确输出请求的分辨率
+    private boolean mMultiStepFilter;   //精确输出时是否多级减半缩小
+
+    public Bitmap.CompressFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * 设置输出格式.
+     * JPEG和WEBP比PNG编码更快,文件也小很多;但是需要把整个裁剪结果解码到内存中再编码,PNG则是分条写入的
+     *
+     * @param format 输出格式,默认PNG
+     * @return this
+     */
+    public CropOptions setFormat(Bitmap.CompressFormat format) {
+        this.mFormat = format;
+        return this;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * 设置输出质量.
+     *
+     * @param quality 输出质量,0-100,默认100;PNG忽略这个值.设置了期望的文件大小时,这是允许的最高质量
+     * @return this
+     */
+    public CropOptions setQuality(int quality) {
+        this.mQuality = Math.max(0, Math.min(100, quality));
+        return this;
+    }
+
+    public long getTargetByteSize() {
+        return mTargetByteSize;
+    }
+
+    /**
+     * 设置期望的文件大小.
+     * 只对JPEG和WEBP有效;会在不超过{@link #getQuality()}的范围内二分查找文件大小不超过这个值的最高质量,
+     * 最低质量也超过时使用最低质量
+     *
+     * @param targetByteSize 期望的文件大小(字节),0表示不限制
+     * @return this
+     */
+    public CropOptions setTargetByteSize(long targetByteSize) {
+        this.mTargetByteSize = Math.max(0, targetByteSize);
+        return this;
+    }
+
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * 设置是否丢弃透明通道.
+     * 丢弃后PNG按RGB输出,WEBP按不透明输出;JPEG本来就没有透明通道
+     *
+     * @param opaque 是否丢弃透明通道,默认false;原图没有透明通道时总是按不透明输出
+     * @return this
+     */
+    public CropOptions setOpaque(boolean opaque) {
+        this.mOpaque = opaque;
+        return this;
+    }
+
+    public boolean isRgb565() {
+        return mRgb565;
+    }
+
+    /**
+     * 设置原图没有透明通道时是否用{@link Bitmap.Config#RGB_565}解码.
+     * 解码占用的内存减半,但是颜色精度会降低;原图有透明通道时这个设置无效
+     *
+     * @param rgb565 是否用RGB_565解码,默认false
+     * @return this
+     */
+    public CropOptions setRgb565(boolean rgb565) {
+        this.mRgb565 = rgb565;
+        return this;
+    }
+
+    public boolean isExactSize() {
+        return mExactSize;
+    }
+
+    /**
+     * 设置是否精确输出请求的分辨率.
+     * 不设置时压缩倍数直接取整,请求100的分辨率实际可能输出100到接近200之间的任意尺寸;设置后先用不小于请求分辨率的
+     * 最大的2的幂压缩倍数解码,再用区域平均缩放到请求的分辨率.解码的尺寸不超过请求分辨率的2倍,所以占用的内存仍然很少.
+     * 裁剪结果需要整个在内存中缩放,PNG也不再分条写入
+     *
+     * @param exactSize 是否精确输出,默认false;请求的分辨率为负时无效
+     * @return this
+     */
+    public CropOptions setExactSize(boolean exactSize) {
+        this.mExactSize = exactSize;
+        return this;
+    }
+
+    public boolean isMultiStepFilter() {
+        return mMultiStepFilter;
+    }
+
+    /**
+     * 设置精确输出时是否多级缩小.
+     * 解码器压缩时只是跳过像素,缩小倍数很大时细节会产生锯齿和摩尔纹;设置后用更小的压缩倍数解码,
+     * 再每次用2x2的盒子滤波缩小一半,最后缩放到请求的分辨率.画质更好,但是解码更慢,占用的内存也更多
+     *
+     * @param multiStepFilter 是否多级缩小,默认false;只在{@link #setExactSize(boolean)}时有效
+     * @return this
+     */
+    public CropOptions setMultiStepFilter(boolean multiStepFilter) {
+        this.mMultiStepFilter = multiStepFilter;
+        return this;
+    }
+}
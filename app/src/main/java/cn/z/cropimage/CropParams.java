@@ -0,0 +1,107 @@
+package cn.z.cropimage;
+
+/**
+ * 裁剪参数:显示中心,缩放比例,预览窗口的尺寸和图片的方向.
+ * 由{@link CropImageView#getCropParams()}得到,保存后可以交给{@link CropEngine}在没有控件的情况下重新裁剪,
+ * 裁剪范围和在控件上裁剪时相同
+ */
+public class CropParams {
+
+    private final float mCenterX;
+    private final float mCenterY;
+    private final float mScale;
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mOrientation;
+
+    /**
+     * @param centerX       显示中心的x坐标(原图分辨率的坐标)
+     * @param centerY       显示中心的y坐标
+     * @param scale         缩放比例(放大比例)
+     * @param previewRadius 圆形(正方形)预览窗口的半径(控件像素)
+     */
+    public CropParams(float centerX, float centerY, float scale, int previewRadius) {
+        this(centerX, centerY, scale, previewRadius * 2, previewRadius * 2);
+    }
+
+    /**
+     * @param centerX       显示中心的x坐标(原图分辨率的坐标)
+     * @param centerY       显示中心的y坐标
+     * @param scale         缩放比例(放大比例)
+     * @param previewWidth  预览窗口的宽度(控件像素)
+     * @param previewHeight 预览窗口的高度(控件像素)
+     */
+    public CropParams(float centerX, float centerY, float scale, int previewWidth, int previewHeight) {
+        this(centerX, centerY, scale, previewWidth, previewHeight, Orientation.EXIF_NORMAL);
+    }
+
+    /**
+     * @param centerX       显示中心的x坐标(原图分辨率,显示方向的坐标)
+     * @param centerY       显示中心的y坐标
+     * @param scale         缩放比例(放大比例)
+     * @param previewWidth  预览窗口的宽度(控件像素)
+     * @param previewHeight 预览窗口的高度(控件像素)
+     * @param orientation   图片的方向,和EXIF的Orientation标签相同,1-8;包括EXIF的方向和控件上的旋转
+     */
+    public CropParams(float centerX, float centerY, float scale, int previewWidth, int previewHeight,
+                      int orientation) {
+        if (scale <= 0 || previewWidth <= 0 || previewHeight <= 0) {
+            throw new IllegalArgumentException("scale and preview size must be > 0");
+        }
+        this.mCenterX = centerX;
+        this.mCenterY = centerY;
+        this.mScale = scale;
+        this.mPreviewWidth = previewWidth;
+        this.mPreviewHeight = previewHeight;
+        this.mOrientation = orientation;
+    }
+
+    public float getCenterX() {
+        return mCenterX;
+    }
+
+    public float getCenterY() {
+        return mCenterY;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    /**
+     * @return 图片的方向, 和EXIF的Orientation标签相同
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * 计算裁剪范围,和{@link CropGeometry#getCropRect(GeometryRect)}相同;超出原图时调整到原图范围内.
+     *
+     * @param srcWidth  原图显示方向的宽度
+     * @param srcHeight 原图显示方向的高度
+     * @param out       结果
+     */
+    void getCropRect(int srcWidth, int srcHeight, GeometryRect out) {
+        CropGeometry geometry = new CropGeometry();
+        geometry.setSourceSize(srcWidth, srcHeight);
+        geometry.setViewport(mPreviewWidth, mPreviewHeight, mPreviewWidth, mPreviewHeight);
+        geometry.reset();
+        geometry.setTransform(mScale, mCenterX, mCenterY);
+        geometry.getCropRect(out);
+    }
+
+    @Override
+    public String toString() {
+        return "CropParams(" + mCenterX + ", " + mCenterY + ", " + mScale + ", "
+                + mPreviewWidth + "x" + mPreviewHeight + ", " + mOrientation + ")";
+    }
+}
@@ -0,0 +1,88 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+
+/**
+ * 裁剪结果.
+ */
+public class CropResult {
+
+    private final File mFile;
+    private final Bitmap mBitmap;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+    private final long mByteSize;
+    private final long mEncodeTime;
+    private final long mTotalTime;
+
+    CropResult(File file, Bitmap bitmap, int width, int height, int quality, long byteSize,
+               long encodeTime, long totalTime) {
+        this.mFile = file;
+        this.mBitmap = bitmap;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mQuality = quality;
+        this.mByteSize = byteSize;
+        this.mEncodeTime = encodeTime;
+        this.mTotalTime = totalTime;
+    }
+
+    /**
+     * @return 存放裁剪结果的文件
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return 裁剪结果, 只有要求返回Bitmap时才有, 否则为null
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * @return 输出图片的宽度
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return 输出图片的高度
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return 实际使用的输出质量, 设置了期望的文件大小时是查找到的质量
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return 输出文件的大小(字节)
+     */
+    public long getByteSize() {
+        return mByteSize;
+    }
+
+    /**
+     * @return 编码耗时(ms), 包括查找输出质量时的试编码
+     */
+    public long getEncodeTime() {
+        return mEncodeTime;
+    }
+
+    /**
+     * @return 解码和编码的总耗时(ms)
+     */
+    public long getTotalTime() {
+        return mTotalTime;
+    }
+}
@@ -0,0 +1,107 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 异步裁剪任务.
+ * 在工作线程中分条裁剪并写入文件,进度和结果都回调到主线程;任务被取消后不会再有任何回调,写了一半的文件会被删除
+ */
+class CropTask extends FutureTask<CropResult> {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final CropImageView.CropCallback mCallback;
+    private final DecoderPool mDecoderPool;
+
+    /**
+     * @param cropper     裁剪器,裁剪参数在创建任务时就已经确定,之后移动或缩放图片不会影响这次裁剪
+     * @param decoderPool 裁剪器使用的解码器池,调用者已经{@link DecoderPool#addUser()},任务结束或取消时减少使用者
+     * @param file        存放的文件
+     * @param callback    回调,可以为null
+     */
+    CropTask(final StripCropper cropper, DecoderPool decoderPool, final File file,
+             CropImageView.CropCallback callback) {
+        super(new Callable<CropResult>() {
+            @Override
+            public CropResult call() throws Exception {
+                return cropper.writeFile(file);
+            }
+        });
+        this.mDecoderPool = decoderPool;
+        this.mCallback = callback;
+        cropper.setProgressListener(new StripCropper.ProgressListener() {
+            @Override
+            public void onProgress(final int finishedStrips, final int totalStrips) {
+                if (mCallback == null) {
+                    return;
+                }
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            mCallback.onProgress((float) finishedStrips / totalStrips);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 工作线程裁剪结束后交出结果.
+     * 取消后结果不会被接受,由工作线程回收;接受后结果只属于{@link #done()}回调的一方,不会再被取消
+     */
+    @Override
+    protected void set(CropResult result) {
+        super.set(result);
+        if (isCancelled()) {
+            recycle(result);
+        }
+    }
+
+    @Override
+    protected void done() {
+        //取消时可能还在解码,正在使用的解码器在归还后才会被回收;结果由工作线程在set()中回收
+        mDecoderPool.removeUser();
+        if (isCancelled()) {
+            return;
+        }
+        CropResult result = null;
+        Exception exception = null;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            exception = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            exception = e;
+        }
+        final CropResult cropResult = result;
+        final Exception resultException = exception;
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback == null) {
+                    recycle(cropResult);
+                } else if (resultException != null) {
+                    mCallback.onFailed(resultException);
+                } else {
+                    mCallback.onCropped(cropResult);
+                }
+            }
+        });
+    }
+
+    private static void recycle(CropResult result) {
+        Bitmap bitmap = result != null ? result.getBitmap() : null;
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 同一个原图的多个局部解码器.
+ * 同一个{@link BitmapRegionDecoder}的解码是串行的,多个线程同时解码也只能用到一个核;池中按需打开更多的解码器,
+ * 每个线程取出一个独占使用,不同的块和区域可以在多个核上同时解码.
+ * 解码器个数不超过CPU核数,每个解码器会在native内存中保留一份原始文件,所以总大小也不超过{@link #MAX_POOL_BYTES}.
+ * 较大的区域({@link #decodeRegion})按行分成若干条,在解码线程中同时解码后拼接成一张图片,结果和一次解码完全相同.
+ * 不能重新打开的原图(比如流)只有一个解码器,和直接使用解码器相同.
+ * {@link #close()}后多余的解码器立即回收,第一个解码器在没有正在进行的解码和{@link #addUser()}的使用者(比如裁剪任务)后
+ * 回收,之后不能再解码.可以在多个线程中使用
+ */
+class DecoderPool {
+
+    static final int CPU_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final long MAX_POOL_BYTES = 64 << 20;    //所有解码器保留的原始文件的总大小上限
+    private static final int MIN_SPLIT_PIXELS = 2 << 20;    //每一条至少包含的原图像素数,太小时拆分的开销更大
+    private static final int MCU_SIZE = 16;                 //JPEG最大的MCU高度,每一条的原图高度是它的整数倍
+
+    private static ExecutorService sRegionExecutor;
+
+    private final BitmapRegionDecoder mPrimary;     //第一个解码器,关闭后仍然可以使用,直到没有使用者时回收
+    private final Callable<BitmapRegionDecoder> mOpener;    //打开更多的解码器,为null时不能重新打开
+    private int mMaxSize;                           //最多的解码器个数,打开失败后减少
+
+    private final ArrayDeque<BitmapRegionDecoder> mIdle = new ArrayDeque<>();   //空闲的解码器
+    private int mSize = 1;                          //已经打开的解码器个数
+    private int mUsers;                             //取出还没有归还的解码器数加上addUser的使用者数
+    private boolean mClosed;
+    private boolean mPrimaryRecycled;               //关闭后没有使用者,第一个解码器已经回收
+
+    /**
+     * 只有一个解码器的池.
+     */
+    DecoderPool(BitmapRegionDecoder decoder) {
+        this(decoder, null, 1);
+    }
+
+    /**
+     * @param primary 已经打开的解码器
+     * @param opener  在解码线程中打开同一个原图的新的解码器,为null时只使用primary
+     * @param maxSize 最多的解码器个数,见{@link #defaultSize(long)}
+     */
+    DecoderPool(BitmapRegionDecoder primary, Callable<BitmapRegionDecoder> opener, int maxSize) {
+        this.mPrimary = primary;
+        this.mOpener = opener;
+        this.mMaxSize = opener == null ? 1 : Math.max(1, maxSize);
+        mIdle.add(primary);
+    }
+
+    /**
+     * 默认的解码器个数:不超过CPU核数,所有解码器保留的原始文件不超过{@link #MAX_POOL_BYTES}.
+     *
+     * @param sourceBytes 原始文件的大小(字节),未知时为0
+     */
+    static int defaultSize(long sourceBytes) {
+        if (sourceBytes <= 0) {
+            return CPU_COUNT;
+        }
+        return (int) Math.max(1, Math.min(CPU_COUNT, MAX_POOL_BYTES / sourceBytes));
+    }
+
+    synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return 已经打开的解码器个数
+     */
+    synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * 增加一个使用者,在{@link #removeUser()}之前关闭也不会回收第一个解码器,用于在关闭前创建的裁剪任务.
+     *
+     * @return 是否成功, 第一个解码器已经回收时返回false
+     */
+    synchronized boolean addUser() {
+        if (mPrimaryRecycled) {
+            return false;
+        }
+        mUsers++;
+        return true;
+    }
+
+    /**
+     * 减少一个{@link #addUser()}的使用者;已经关闭并且没有其他使用者时回收第一个解码器.
+     */
+    void removeUser() {
+        boolean recyclePrimary;
+        synchronized (this) {
+            mUsers--;
+            recyclePrimary = takePrimaryForRecycle();
+        }
+        if (recyclePrimary) {
+            mPrimary.recycle();
+        }
+    }
+
+    /**
+     * 取出一个解码器独占使用,用完后必须{@link #release}.
+     * 没有空闲的解码器时打开新的解码器,已经达到上限时等待;打开失败时不再打开.关闭后总是返回第一个解码器
+     *
+     * @return 解码器, 关闭后第一个解码器已经回收时返回null
+     */
+    BitmapRegionDecoder acquire() {
+        synchronized (this) {
+            boolean interrupted = false;
+            while (!mClosed && mIdle.isEmpty() && mSize >= mMaxSize) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; //解码不响应中断,等到解码器后恢复中断状态,由调用者处理
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mPrimaryRecycled) {
+                return null;
+            }
+            mUsers++;
+            if (mClosed) {
+                return mPrimary;    //解码器本身可以在多个线程中使用,只是不能并行
+            }
+            if (!mIdle.isEmpty()) {
+                return mIdle.poll();
+            }
+            mSize++;
+        }
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = mOpener.call();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (decoder == null) {
+            synchronized (this) {
+                mSize--;
+                mUsers--;
+                mMaxSize = mSize;   //之后不再尝试打开
+            }
+            return acquire();
+        }
+        return decoder;
+    }
+
+    /**
+     * 归还{@link #acquire()}取出的解码器;关闭后归还的解码器会被回收,第一个解码器在没有使用者时回收.
+     */
+    void release(BitmapRegionDecoder decoder) {
+        boolean recyclePrimary;
+        synchronized (this) {
+            mUsers--;
+            if (!mClosed) {
+                mIdle.push(decoder);
+                notifyAll();
+                return;
+            }
+            if (decoder != mPrimary) {
+                mSize--;
+            }
+            recyclePrimary = takePrimaryForRecycle();
+        }
+        if (decoder != mPrimary) {
+            decoder.recycle();
+        }
+        if (recyclePrimary) {
+            mPrimary.recycle();
+        }
+    }
+
+    /**
+     * 关闭池,回收除了第一个以外的空闲的解码器;正在使用的解码器在归还时回收.
+     * 之后正在进行的解码和{@link #addUser()}的使用者仍然可以解码,都使用第一个解码器;没有使用者时回收第一个解码器
+     */
+    void close() {
+        List<BitmapRegionDecoder> idle = new ArrayList<>();
+        boolean recyclePrimary;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            for (BitmapRegionDecoder decoder : mIdle) {
+                if (decoder != mPrimary) {
+                    idle.add(decoder);
+                    mSize--;
+                }
+            }
+            mIdle.clear();
+            notifyAll();
+            recyclePrimary = takePrimaryForRecycle();
+        }
+        for (BitmapRegionDecoder decoder : idle) {
+            decoder.recycle();
+        }
+        if (recyclePrimary) {
+            mPrimary.recycle();
+        }
+    }
+
+    /**
+     * 已经关闭并且没有使用者时标记第一个解码器已经回收,由调用者在锁外回收.
+     *
+     * @return 是否需要回收第一个解码器
+     */
+    private boolean takePrimaryForRecycle() {
+        if (!mClosed || mUsers > 0 || mPrimaryRecycled) {
+            return false;
+        }
+        mPrimaryRecycled = true;
+        return true;
+    }
+
+    /**
+     * 解码一个区域,和{@link BitmapRegionDecoder#decodeRegion}相同.
+     * 区域较大并且可以打开多个解码器时,按行分成若干条同时解码,再拼接成一张图片;每一条的原图高度是压缩倍数的整数倍,
+     * 采样位置和一次解码时相同.拼接时{@link BitmapFactory.Options#inBitmap}尺寸和格式都相同才会复用
+     *
+     * @return 解码结果, 解码失败或者关闭后第一个解码器已经回收时返回null
+     * @throws InterruptedIOException 等待其他条解码时线程被中断
+     */
+    Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) throws InterruptedIOException {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int bandUnit = MCU_SIZE * sampleSize;
+        int count = (int) Math.min(getMaxSize(), (long) rect.width() * rect.height() / MIN_SPLIT_PIXELS);
+        count = Math.min(count, (rect.height() + bandUnit - 1) / bandUnit);
+        if (count <= 1) {
+            BitmapRegionDecoder decoder = acquire();
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                return decoder.decodeRegion(rect, options);
+            } finally {
+                release(decoder);
+            }
+        }
+        //每一条的原图高度向上取整到MCU高度和压缩倍数的整数倍,最后一条可能更矮
+        int bandHeight = ((rect.height() + count - 1) / count + bandUnit - 1) / bandUnit * bandUnit;
+        count = (rect.height() + bandHeight - 1) / bandHeight;
+        List<Future<Bitmap>> futures = new ArrayList<>(count);
+        Bitmap[] bands = new Bitmap[count];
+        boolean success = false;
+        try {
+            for (int i = 1; i < count; i++) {
+                futures.add(getRegionExecutor().submit(new BandTask(rect, i, bandHeight, options)));
+            }
+            bands[0] = new BandTask(rect, 0, bandHeight, options).call();
+            for (int i = 1; i < count; i++) {
+                bands[i] = futures.get(i - 1).get();
+            }
+            for (Bitmap band : bands) {
+                if (band == null) {
+                    return null;
+                }
+            }
+            Bitmap result = stitch(bands, options.inBitmap);
+            success = true;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("decode cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (!success) {
+                for (Future<Bitmap> future : futures) {
+                    future.cancel(false);
+                }
+            }
+            recycleBands(bands, futures);
+        }
+    }
+
+    /**
+     * 解码其中一条的任务,使用独立的解码设置和解码器.
+     */
+    private class BandTask implements Callable<Bitmap> {
+
+        private final Rect mBandRect;
+        private final BitmapFactory.Options mBandOptions = new BitmapFactory.Options();
+
+        BandTask(Rect rect, int index, int bandHeight, BitmapFactory.Options options) {
+            mBandRect = new Rect(rect.left, rect.top + index * bandHeight,
+                    rect.right, Math.min(rect.bottom, rect.top + (index + 1) * bandHeight));
+            mBandOptions.inSampleSize = options.inSampleSize;
+            mBandOptions.inPreferredConfig = options.inPreferredConfig;
+        }
+
+        @Override
+        public Bitmap call() {
+            BitmapRegionDecoder decoder = acquire();
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                return decoder.decodeRegion(mBandRect, mBandOptions);
+            } finally {
+                release(decoder);
+            }
+        }
+    }
+
+    /**
+     * 按顺序把每一条绘制到一张图片中.
+     *
+     * @param reuse 尺寸和格式都相同时绘制到其中,可以为null
+     */
+    private static Bitmap stitch(Bitmap[] bands, Bitmap reuse) {
+        int width = bands[0].getWidth();
+        int height = 0;
+        for (Bitmap band : bands) {
+            height += band.getHeight();
+        }
+        Bitmap.Config config = bands[0].getConfig();
+        Bitmap result;
+        if (reuse != null && reuse.isMutable() && reuse.getWidth() == width && reuse.getHeight() == height
+                && reuse.getConfig() == config) {
+            result = reuse;
+            result.eraseColor(0);
+        } else {
+            result = Bitmap.createBitmap(width, height, config);
+        }
+        result.setHasAlpha(bands[0].hasAlpha());
+        Canvas canvas = new Canvas(result);
+        int top = 0;
+        for (Bitmap band : bands) {
+            canvas.drawBitmap(band, 0, top, null);
+            top += band.getHeight();
+        }
+        return result;
+    }
+
+    /**
+     * 回收所有已经得到的条;失败时已经开始解码而没有取回的条交给垃圾回收.
+     */
+    private static void recycleBands(Bitmap[] bands, List<Future<Bitmap>> futures) {
+        for (int i = 0; i < bands.length; i++) {
+            if (bands[i] == null && i > 0 && i - 1 < futures.size()) {
+                Future<Bitmap> future = futures.get(i - 1);
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        bands[i] = future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        //没有结果,不需要回收
+                    }
+                }
+            }
+            if (bands[i] != null) {
+                bands[i].recycle();
+            }
+        }
+    }
+
+    /**
+     * 获取拆分解码的线程,所有控件共用.
+     */
+    private static synchronized ExecutorService getRegionExecutor() {
+        if (sRegionExecutor == null) {
+            sRegionExecutor = Executors.newFixedThreadPool(CPU_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "CropView-region");
+                }
+            });
+        }
+        return sRegionExecutor;
+    }
+}
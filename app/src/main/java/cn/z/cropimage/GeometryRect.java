@@ -0,0 +1,32 @@
+package cn.z.cropimage;
+
+/**
+ * 不依赖Android的矩形,作为{@link CropGeometry}的输出,可以反复使用.
+ */
+class GeometryRect {
+
+    float left;
+    float top;
+    float right;
+    float bottom;
+
+    void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    float width() {
+        return right - left;
+    }
+
+    float height() {
+        return bottom - top;
+    }
+
+    @Override
+    public String toString() {
+        return "GeometryRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+    }
+}
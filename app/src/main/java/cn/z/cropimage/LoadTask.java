@@ -0,0 +1,147 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 异步加载原始图片的任务.
+ * 在工作线程中创建局部解码器并读取图片的方向,结果回调到主线程;任务被取消后不会再有回调,已经创建的解码器会被释放
+ */
+class LoadTask extends FutureTask<LoadTask.Source> {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final int ALPHA_PROBE_SIZE = 16;     //判断透明通道时解码的左上角区域的边长
+
+    /**
+     * 加载的结果.
+     */
+    static class Source {
+
+        final BitmapRegionDecoder decoder;  //解码器,不支持的格式为null
+        final int orientation;              //EXIF的Orientation标签
+        final Callable<BitmapRegionDecoder> reopener;   //打开同一个原图的更多解码器,不能重新打开时为null
+        final long byteSize;                //原始文件的大小(字节),未知时为0
+        final boolean opaque;               //原图是否没有透明通道
+
+        Source(BitmapRegionDecoder decoder, int orientation) {
+            this(decoder, orientation, null, 0);
+        }
+
+        Source(BitmapRegionDecoder decoder, int orientation, Callable<BitmapRegionDecoder> reopener,
+               long byteSize) {
+            this(decoder, orientation, reopener, byteSize, isOpaque(decoder));
+        }
+
+        Source(BitmapRegionDecoder decoder, int orientation, Callable<BitmapRegionDecoder> reopener,
+               long byteSize, boolean opaque) {
+            this.decoder = decoder;
+            this.orientation = orientation;
+            this.reopener = reopener;
+            this.byteSize = byteSize;
+            this.opaque = opaque;
+        }
+
+        /**
+         * 创建解码器池:可以重新打开时按CPU核数和文件大小决定解码器个数,否则只有一个解码器.
+         */
+        DecoderPool createPool() {
+            return new DecoderPool(decoder, reopener, DecoderPool.defaultSize(byteSize));
+        }
+    }
+
+    /**
+     * 判断原图是否没有透明通道.
+     * 解码左上角很小的区域:解码器按原图的格式决定结果是否有透明通道(JPEG总是不透明,带透明通道的PNG和WebP总是透明,
+     * 即使所有像素都不透明),所以一个区域就能代表整张原图.解码失败时按有透明通道处理
+     */
+    static boolean isOpaque(BitmapRegionDecoder decoder) {
+        if (decoder == null) {
+            return false;
+        }
+        try {
+            Bitmap probe = decoder.decodeRegion(new Rect(0, 0, Math.min(decoder.getWidth(), ALPHA_PROBE_SIZE),
+                    Math.min(decoder.getHeight(), ALPHA_PROBE_SIZE)), null);
+            if (probe == null) {
+                return false;
+            }
+            boolean opaque = !probe.hasAlpha();
+            probe.recycle();
+            return opaque;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 加载结束的监听,在主线程调用.
+     */
+    interface Listener {
+        /**
+         * @param task      加载任务
+         * @param source    加载的结果,失败时为null
+         * @param e         失败的原因,成功时为null
+         * @param loadTime  从创建任务到加载结束的耗时(ms)
+         */
+        void onLoadFinished(LoadTask task, Source source, Exception e, long loadTime);
+    }
+
+    private final Listener mListener;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * @param opener   在工作线程中创建解码器并读取图片的方向
+     * @param listener 监听
+     */
+    LoadTask(Callable<Source> opener, Listener listener) {
+        super(opener);
+        this.mListener = listener;
+    }
+
+    @Override
+    protected void set(Source source) {
+        super.set(source);
+        if (isCancelled() && source != null && source.decoder != null) {
+            source.decoder.recycle();   //创建的过程中被取消,结果已经没有人使用
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            return;
+        }
+        Source result = null;
+        Exception exception = null;
+        try {
+            result = get();
+            if (result == null || result.decoder == null) {
+                result = null;
+                exception = new IOException("unsupported image");
+            }
+        } catch (ExecutionException e) {
+            exception = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            exception = e;
+        }
+        final Source source = result;
+        final Exception loadException = exception;
+        final long loadTime = SystemClock.elapsedRealtime() - mStartTime;
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onLoadFinished(LoadTask.this, source, loadException, loadTime);
+            }
+        });
+    }
+}
@@ -1,37 +1,68 @@
 package cn.z.cropimage;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.ColorDrawable;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Future;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
 
+    private static final String TAG = "MainActivity";
+    private static final String KEY_ASSETS_FILE_INDEX = "assets_file_index";
+
     private ImageView mIvResult;
     private Button mBtLoadOther;
     private Button mBtCrop;
     private CropImageView mCiv;
 
     private File mResultFile;
+    private Future<CropResult> mCropFuture;   //正在进行的裁剪
     private String[] mAssetsFile;
     private int mAssetsFileIndex;
+    private long mCreateTime;   //onCreate的时间,用来统计冷启动到图片可以操作的耗时
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_main);
 
         findView();
         mAssetsFile = new String[]{"image.jpg", "square0.png", "square1.png", "square2.png"};
         mAssetsFileIndex = 0;
         setViewClickListener();
-        load();
+        //屏幕旋转时直接使用上一个Activity保留的解码器和块;进程被回收后重新加载同一张图片,控件自己恢复显示中心和缩放
+        Object retained = getLastCustomNonConfigurationInstance();
+        if (retained instanceof CropImageView.RetainedSource) {
+            mAssetsFileIndex = savedInstanceState.getInt(KEY_ASSETS_FILE_INDEX);
+            mCiv.setRetainedSource((CropImageView.RetainedSource) retained);
+            mCreateTime = 0;
+        } else if (savedInstanceState != null) {
+            mAssetsFileIndex = savedInstanceState.getInt(KEY_ASSETS_FILE_INDEX);
+            loadCurrent();
+        } else {
+            load();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(KEY_ASSETS_FILE_INDEX, mAssetsFileIndex);
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mCiv.retainSource();
     }
 
     private void findView() {
@@ -39,6 +70,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         mBtLoadOther = findViewById(R.id.bt_load);
         mBtCrop = findViewById(R.id.bt_crop);
         mCiv = findViewById(R.id.civ_crop);
+        mCiv.setPlaceholder(new ColorDrawable(0xff808080));
     }
 
     private void setViewClickListener() {
@@ -52,25 +84,76 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         } else {
             mAssetsFileIndex = 0;
         }
+        loadCurrent();
+    }
+
+    private void loadCurrent() {
         try {
-            mCiv.setSrcImage(getAssets().open(mAssetsFile[mAssetsFileIndex]));
+            //在后台线程加载,连续点击时上一次还没有完成的加载会被取消
+            InputStream inputStream = getAssets().open(mAssetsFile[mAssetsFileIndex]);
+            mCiv.setSrcImageAsync(inputStream, new CropImageView.LoadCallback() {
+                @Override
+                public void onLoadStarted() {
+                    mBtCrop.setEnabled(false);
+                }
+
+                @Override
+                public void onLoaded(long loadTime) {
+                    mBtCrop.setEnabled(true);
+                    if (mCreateTime != 0) {
+                        Log.i(TAG, "first image ready " + (SystemClock.elapsedRealtime() - mCreateTime)
+                                + "ms after onCreate, load " + loadTime + "ms");
+                        mCreateTime = 0;
+                    } else {
+                        Log.i(TAG, "image loaded in " + loadTime + "ms");
+                    }
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    mBtCrop.setEnabled(true);
+                    e.printStackTrace();
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
-
     }
 
     private void cropAndShow() {
         if (mResultFile == null) {
             mResultFile = new File(getCacheDir(), "crop.png");
         }
-        mCiv.crop(mResultFile, 100);
-        Bitmap cropBitmap = BitmapFactory.decodeFile(mResultFile.getPath());
-        if (cropBitmap != null) {
-            mCiv.invalidate();
-            //mIvResult.setImageBitmap(cropBitmap);
-            ((ImageView) findViewById(R.id.iv_result)).setImageBitmap(cropBitmap);
-            new ImageView(this).setImageBitmap(cropBitmap);
+        if (mCropFuture != null) {
+            mCropFuture.cancel(true);   //连续点击时取消上一次还没有完成的裁剪
+        }
+        mCropFuture = mCiv.cropAsync(mResultFile, 100, null, true, new CropImageView.CropCallback() {
+            @Override
+            public void onProgress(float progress) {
+            }
+
+            @Override
+            public void onCropped(CropResult result) {
+                mCropFuture = null;
+                if (result.getBitmap() != null) {
+                    mIvResult.setImageBitmap(result.getBitmap());
+                }
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                mCropFuture = null;
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCiv.cancelLoad();
+        if (mCropFuture != null) {
+            mCropFuture.cancel(true);
         }
     }
 
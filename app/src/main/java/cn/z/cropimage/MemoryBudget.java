@@ -0,0 +1,45 @@
+package cn.z.cropimage;
+
+/**
+ * 多个线程共享的内存上限.
+ * 解码前申请需要的内存,超出上限时等待其它线程释放;只有一个申请时总是允许,避免单个超过上限的申请永远等待
+ */
+class MemoryBudget {
+
+    private final long mMaxBytes;
+    private long mUsedBytes;
+
+    /**
+     * @param maxBytes 内存上限(字节)
+     */
+    MemoryBudget(long maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 申请内存,超出上限时阻塞直到足够.
+     *
+     * @param bytes 申请的字节数
+     * @throws InterruptedException 等待时被中断
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (mUsedBytes > 0 && mUsedBytes + bytes > mMaxBytes) {
+            wait();
+        }
+        mUsedBytes += bytes;
+    }
+
+    /**
+     * 释放申请的内存.
+     *
+     * @param bytes 和申请时相同的字节数
+     */
+    synchronized void release(long bytes) {
+        mUsedBytes -= bytes;
+        notifyAll();
+    }
+
+    synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+}
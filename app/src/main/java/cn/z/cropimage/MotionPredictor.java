@@ -0,0 +1,114 @@
+package cn.z.cropimage;
+
+/**
+ * 根据最近几帧显示中心和缩放比例的变化预测一段时间后的位置,用于预先解码即将进入控件范围的块.
+ * 速度经过平滑;移动方向反转时丢弃之前的速度,立即按新的方向预测.
+ * 只在主线程使用,时间由调用者传入,不依赖Android,可以在JVM上测试
+ */
+class MotionPredictor {
+
+    static final long LOOKAHEAD_NANOS = 200000000;          //预测的时长
+    private static final long MAX_SAMPLE_GAP_NANOS = 100000000; //两次采样的最大间隔,超过时认为是新的移动
+    private static final float SMOOTHING = 0.5f;            //速度的平滑系数,新的测量值所占的比例
+    private static final float MIN_SPEED = 100;             //控件上移动的最小速度(px/s),更慢时不预测
+    private static final float MIN_SCALE_SPEED = 0.2f;      //缩放比例对数的最小变化速度(1/s)
+
+    private boolean mHasSample;
+    private long mLastTime;
+    private float mLastCenterX;
+    private float mLastCenterY;
+    private float mLastScale;
+
+    private float mVelocityX;       //显示中心的速度(原图像素/s)
+    private float mVelocityY;
+    private float mScaleVelocity;   //缩放比例对数的变化速度(1/s),正数表示放大
+    private int mReverseCount;      //移动方向反转的次数
+
+    /**
+     * 清除之前的采样,用于移动停止.
+     */
+    void reset() {
+        mHasSample = false;
+        mVelocityX = 0;
+        mVelocityY = 0;
+        mScaleVelocity = 0;
+    }
+
+    /**
+     * 记录一帧的显示中心和缩放比例.
+     *
+     * @param centerX 显示中心的x坐标
+     * @param centerY 显示中心的y坐标
+     * @param scale   缩放比例
+     * @param time    这一帧的时间(ns)
+     * @return 移动或缩放的方向是否反转, 反转时之前的预测已经没有用了
+     */
+    boolean addSample(float centerX, float centerY, float scale, long time) {
+        long interval = time - mLastTime;
+        boolean reversed = false;
+        if (mHasSample && interval > 0 && interval <= MAX_SAMPLE_GAP_NANOS) {
+            float seconds = interval / 1e9f;
+            float velocityX = (centerX - mLastCenterX) / seconds;
+            float velocityY = (centerY - mLastCenterY) / seconds;
+            float scaleVelocity = (float) Math.log(scale / mLastScale) / seconds;
+            boolean moved = velocityX != 0 || velocityY != 0;
+            reversed = moved && velocityX * mVelocityX + velocityY * mVelocityY < 0
+                    || scaleVelocity * mScaleVelocity < 0;
+            if (reversed) {
+                mReverseCount++;
+                mVelocityX = velocityX;
+                mVelocityY = velocityY;
+                mScaleVelocity = scaleVelocity;
+            } else {
+                mVelocityX += (velocityX - mVelocityX) * SMOOTHING;
+                mVelocityY += (velocityY - mVelocityY) * SMOOTHING;
+                mScaleVelocity += (scaleVelocity - mScaleVelocity) * SMOOTHING;
+            }
+        } else if (interval != 0) {
+            mVelocityX = 0;
+            mVelocityY = 0;
+            mScaleVelocity = 0;
+        }
+        mHasSample = true;
+        mLastTime = time;
+        mLastCenterX = centerX;
+        mLastCenterY = centerY;
+        mLastScale = scale;
+        return reversed;
+    }
+
+    /**
+     * @return 是否正在足够快地移动或缩放, 太慢时预测的位置和当前位置几乎相同
+     */
+    boolean isMoving() {
+        float speed = (float) Math.hypot(mVelocityX, mVelocityY) * mLastScale;
+        return mHasSample && (speed >= MIN_SPEED || Math.abs(mScaleVelocity) >= MIN_SCALE_SPEED);
+    }
+
+    float predictCenterX(long lookahead) {
+        return mLastCenterX + mVelocityX * (lookahead / 1e9f);
+    }
+
+    float predictCenterY(long lookahead) {
+        return mLastCenterY + mVelocityY * (lookahead / 1e9f);
+    }
+
+    float predictScale(long lookahead) {
+        return mLastScale * (float) Math.exp(mScaleVelocity * (lookahead / 1e9f));
+    }
+
+    float getVelocityX() {
+        return mVelocityX;
+    }
+
+    float getVelocityY() {
+        return mVelocityY;
+    }
+
+    /**
+     * @return 移动方向反转的总次数
+     */
+    int getReverseCount() {
+        return mReverseCount;
+    }
+}
@@ -0,0 +1,240 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 一次裁剪多个尺寸.
+ * 按最大的输出尺寸解码一次裁剪区域,更小的尺寸由{@link Resampler.Progressive}从同一份像素逐级缩小得到,
+ * 不需要每个尺寸都解码一次;各个输出在编码线程中并行编码和写入.
+ * 所有输出都是精确尺寸;整个裁剪区域解码到内存中,原始分辨率的大图应该用{@link StripCropper}分条裁剪.
+ * 有一个输出失败时删除所有输出的文件;裁剪的线程被中断时停止裁剪并抛出{@link InterruptedIOException}
+ */
+class MultiCropper {
+
+    private static final int ENCODE_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));   //编码线程数
+
+    private static ExecutorService sEncodeExecutor;
+
+    private final DecoderPool mDecoder;
+    private final Rect mRect;
+    private final List<OutputSpec> mOutputs;
+    private Orientation mOrientation = Orientation.NORMAL;  //图片的方向
+    private int mSrcWidth;          //原图原始方向的宽度,设置了方向时才需要
+    private int mSrcHeight;
+
+    /**
+     * @param decoder 原始文件的解码器池,较大的区域会在多个核上同时解码
+     * @param rect    裁剪区域(原图分辨率的坐标,设置了方向时是显示方向的坐标)
+     * @param outputs 输出,不能为空
+     */
+    MultiCropper(DecoderPool decoder, Rect rect, List<OutputSpec> outputs) {
+        this.mDecoder = decoder;
+        this.mRect = new Rect(rect);
+        this.mOutputs = new ArrayList<>(outputs);
+    }
+
+    /**
+     * 设置图片的方向,解码后先把裁剪区域的像素变换为显示方向再缩放.
+     *
+     * @param orientation 图片的方向
+     * @param srcWidth    原图原始方向的宽度
+     * @param srcHeight   原图原始方向的高度
+     */
+    void setOrientation(Orientation orientation, int srcWidth, int srcHeight) {
+        this.mOrientation = orientation;
+        this.mSrcWidth = srcWidth;
+        this.mSrcHeight = srcHeight;
+    }
+
+    /**
+     * 裁剪并写入所有文件.
+     *
+     * @return 和输出的顺序相同的裁剪结果
+     * @throws IOException 解码或者写入失败;线程被中断时抛出{@link InterruptedIOException}
+     */
+    List<CropResult> writeFiles() throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        int count = mOutputs.size();
+        //从大到小缩小,每个尺寸都从上一个尺寸的中间结果继续
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return getOutputWidth(mOutputs.get(b)) - getOutputWidth(mOutputs.get(a));
+            }
+        });
+        OutputSpec largest = mOutputs.get(order[0]);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Resampler.exactSampleSize(mRect.width(), mRect.height(),
+                getOutputWidth(largest), getOutputHeight(largest));
+        if (isAllRgb565()) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        Rect rawRect = StripCropper.toRaw(mOrientation, mRect, mSrcWidth, mSrcHeight);
+        Bitmap decoded = mDecoder.decodeRegion(rawRect, options);
+        if (decoded == null) {
+            throw new IOException("decode failed: " + rawRect);
+        }
+        final boolean hasAlpha = decoded.hasAlpha();
+        int rawWidth = decoded.getWidth();
+        int rawHeight = decoded.getHeight();
+        int[] pixels = new int[rawWidth * rawHeight];
+        decoded.getPixels(pixels, 0, rawWidth, 0, 0, rawWidth, rawHeight);
+        decoded.recycle();
+        pixels = mOrientation.apply(pixels, rawWidth, rawHeight);
+        int width = mOrientation.displayWidth(rawWidth, rawHeight);
+        int height = mOrientation.displayHeight(rawWidth, rawHeight);
+        if (!hasAlpha) {
+            //丢弃透明通道,避免缩放时按照alpha加权
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] |= 0xff000000;
+            }
+        }
+
+        Resampler.Progressive progressive = new Resampler.Progressive(pixels, width, height);
+        List<Future<CropResult>> futures =
+                new ArrayList<>(Collections.<Future<CropResult>>nCopies(count, null));
+        boolean success = false;
+        try {
+            for (int index : order) {
+                checkInterrupted();
+                final OutputSpec output = mOutputs.get(index);
+                final int outputWidth = getOutputWidth(output);
+                final int outputHeight = getOutputHeight(output);
+                final int[] outputPixels = progressive.next(outputWidth, outputHeight);
+                futures.set(index, getEncodeExecutor().submit(new Callable<CropResult>() {
+                    @Override
+                    public CropResult call() throws Exception {
+                        StripCropper cropper = new StripCropper(mDecoder, mRect, 1);
+                        cropper.setOptions(output.getOptions());
+                        CropResult result = cropper.writeFile(output.getFile(), outputPixels,
+                                outputWidth, outputHeight, hasAlpha);
+                        //总耗时从解码开始计算
+                        return new CropResult(result.getFile(), null, result.getWidth(),
+                                result.getHeight(), result.getQuality(), result.getByteSize(),
+                                result.getEncodeTime(), SystemClock.elapsedRealtime() - start);
+                    }
+                }));
+            }
+            List<CropResult> results = new ArrayList<>(count);
+            for (Future<CropResult> future : futures) {
+                results.add(getResult(future));
+            }
+            success = true;
+            return results;
+        } finally {
+            if (!success) {
+                deleteAll(futures);
+            }
+        }
+    }
+
+    /**
+     * 取消还没有开始的编码,等待已经开始的编码结束后删除所有输出的文件.
+     */
+    private void deleteAll(List<Future<CropResult>> futures) {
+        boolean interrupted = false;
+        for (Future<CropResult> future : futures) {
+            if (future == null || future.cancel(false)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        for (OutputSpec output : mOutputs) {
+            //noinspection ResultOfMethodCallIgnored
+            output.getFile().delete();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CropResult getResult(Future<CropResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("crop cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private int getOutputWidth(OutputSpec output) {
+        return output.getResolution() > 0 ? output.getResolution() : mRect.width();
+    }
+
+    private int getOutputHeight(OutputSpec output) {
+        return output.getResolution() > 0
+                ? CropGeometry.scaleHeight(output.getResolution(), mRect.width(), mRect.height())
+                : mRect.height();
+    }
+
+    /**
+     * 所有输出都允许RGB_565时才用RGB_565解码.
+     */
+    private boolean isAllRgb565() {
+        for (OutputSpec output : mOutputs) {
+            if (output.getOptions() == null || !output.getOptions().isRgb565()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("crop cancelled");
+        }
+    }
+
+    /**
+     * 获取编码线程,所有控件共用.
+     */
+    private static synchronized ExecutorService getEncodeExecutor() {
+        if (sEncodeExecutor == null) {
+            sEncodeExecutor = Executors.newFixedThreadPool(ENCODE_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "CropView-encode");
+                }
+            });
+        }
+        return sEncodeExecutor;
+    }
+}
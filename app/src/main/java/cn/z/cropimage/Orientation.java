@@ -0,0 +1,345 @@
+package cn.z.cropimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 图片的方向:原始像素怎样变换后显示,和EXIF的Orientation标签相同.
+ * 表示为先水平翻转(可选),再顺时针旋转0,90,180或270度.
+ * 原图始终按原始的方向解码和缓存,显示和裁剪使用变换后的坐标(显示坐标);需要解码时把显示坐标的区域映射回原始坐标,
+ * 只对解码出的小区域变换像素,不需要把整张图片旋转后重新编码.不依赖Android,可以在JVM上测试
+ */
+final class Orientation {
+
+    static final int EXIF_NORMAL = 1;
+    static final int EXIF_LIMIT = 64 * 1024;    //读取EXIF时最多读取的字节数
+
+    static final Orientation NORMAL = new Orientation(0, false);
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    private final int mDegrees;         //顺时针旋转的角度,0,90,180,270
+    private final boolean mFlip;        //旋转之前是否水平翻转
+
+    private Orientation(int degrees, boolean flip) {
+        this.mDegrees = degrees;
+        this.mFlip = flip;
+    }
+
+    /**
+     * @param exifOrientation EXIF的Orientation标签,1-8;无效的值按1处理
+     */
+    static Orientation fromExif(int exifOrientation) {
+        switch (exifOrientation) {
+            case 2:
+                return new Orientation(0, true);
+            case 3:
+                return new Orientation(180, false);
+            case 4:
+                return new Orientation(180, true);
+            case 5:
+                return new Orientation(270, true);
+            case 6:
+                return new Orientation(90, false);
+            case 7:
+                return new Orientation(90, true);
+            case 8:
+                return new Orientation(270, false);
+            default:
+                return NORMAL;
+        }
+    }
+
+    /**
+     * @return 对应的EXIF的Orientation标签, 1-8
+     */
+    int toExif() {
+        switch (mDegrees) {
+            case 90:
+                return mFlip ? 7 : 6;
+            case 180:
+                return mFlip ? 4 : 3;
+            case 270:
+                return mFlip ? 5 : 8;
+            default:
+                return mFlip ? 2 : 1;
+        }
+    }
+
+    /**
+     * 在当前方向的基础上继续顺时针旋转.
+     *
+     * @param degrees 旋转的角度,必须是90的整数倍,可以为负
+     */
+    Orientation rotate(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("degrees must be a multiple of 90: " + degrees);
+        }
+        int result = ((mDegrees + degrees) % 360 + 360) % 360;
+        return result == mDegrees ? this : new Orientation(result, mFlip);
+    }
+
+    int getDegrees() {
+        return mDegrees;
+    }
+
+    boolean isFlipped() {
+        return mFlip;
+    }
+
+    boolean isIdentity() {
+        return mDegrees == 0 && !mFlip;
+    }
+
+    /**
+     * @return 是否交换宽高
+     */
+    boolean isTransposed() {
+        return mDegrees == 90 || mDegrees == 270;
+    }
+
+    int displayWidth(int rawWidth, int rawHeight) {
+        return isTransposed() ? rawHeight : rawWidth;
+    }
+
+    int displayHeight(int rawWidth, int rawHeight) {
+        return isTransposed() ? rawWidth : rawHeight;
+    }
+
+    /**
+     * 把显示坐标的点映射到原始坐标.
+     *
+     * @param out 结果,out[0]是x,out[1]是y
+     */
+    void toRaw(float x, float y, int rawWidth, int rawHeight, float[] out) {
+        //先逆向旋转,再逆向翻转
+        int width = displayWidth(rawWidth, rawHeight);
+        int height = displayHeight(rawWidth, rawHeight);
+        float rawX;
+        float rawY;
+        switch (mDegrees) {
+            case 90:
+                rawX = y;
+                rawY = width - x;
+                break;
+            case 180:
+                rawX = width - x;
+                rawY = height - y;
+                break;
+            case 270:
+                rawX = height - y;
+                rawY = x;
+                break;
+            default:
+                rawX = x;
+                rawY = y;
+        }
+        out[0] = mFlip ? rawWidth - rawX : rawX;
+        out[1] = rawY;
+    }
+
+    /**
+     * 把显示坐标的区域映射到原始坐标.
+     *
+     * @param in  显示坐标的区域
+     * @param out 结果,可以和in是同一个对象
+     * @param tmp 长度至少为2的临时数组,避免分配
+     */
+    void toRaw(GeometryRect in, int rawWidth, int rawHeight, GeometryRect out, float[] tmp) {
+        float right = in.right;
+        float bottom = in.bottom;
+        toRaw(in.left, in.top, rawWidth, rawHeight, tmp);
+        float x1 = tmp[0];
+        float y1 = tmp[1];
+        toRaw(right, bottom, rawWidth, rawHeight, tmp);
+        out.set(Math.min(x1, tmp[0]), Math.min(y1, tmp[1]), Math.max(x1, tmp[0]), Math.max(y1, tmp[1]));
+    }
+
+    /**
+     * 把原始方向的像素变换为显示方向.
+     *
+     * @param pixels 原始方向的像素,按行存放
+     * @param width  原始方向的宽度
+     * @param height 原始方向的高度
+     * @return 显示方向的像素, 宽高是{@link #displayWidth(int, int)}和{@link #displayHeight(int, int)};
+     * 不需要变换时直接返回pixels
+     */
+    int[] apply(int[] pixels, int width, int height) {
+        if (isIdentity()) {
+            return pixels;
+        }
+        int[] result = new int[width * height];
+        apply(pixels, width, height, result);
+        return result;
+    }
+
+    /**
+     * 把原始方向的像素变换为显示方向,写入已有的数组,用于逐条变换时复用.
+     *
+     * @param pixels 原始方向的像素,按行存放
+     * @param width  原始方向的宽度
+     * @param height 原始方向的高度
+     * @param out    结果,显示方向按行存放,不能和pixels是同一个数组
+     */
+    void apply(int[] pixels, int width, int height, int[] out) {
+        int displayWidth = displayWidth(width, height);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int sx = mFlip ? width - 1 - x : x;
+                int dx;
+                int dy;
+                switch (mDegrees) {
+                    case 90:
+                        dx = height - 1 - y;
+                        dy = sx;
+                        break;
+                    case 180:
+                        dx = width - 1 - sx;
+                        dy = height - 1 - y;
+                        break;
+                    case 270:
+                        dx = y;
+                        dy = width - 1 - sx;
+                        break;
+                    default:
+                        dx = sx;
+                        dy = y;
+                }
+                out[dy * displayWidth + dx] = pixels[row + x];
+            }
+        }
+    }
+
+    /**
+     * 读取JPEG的EXIF中的Orientation标签.
+     * 最多读取{@link #EXIF_LIMIT}个字节,不会关闭流
+     *
+     * @return Orientation标签, 不是JPEG或者没有这个标签时返回{@link #EXIF_NORMAL}
+     */
+    static int readExif(InputStream inputStream) throws IOException {
+        byte[] data = new byte[EXIF_LIMIT];
+        int length = 0;
+        int read;
+        while (length < data.length && (read = inputStream.read(data, length, data.length - length)) != -1) {
+            length += read;
+        }
+        return readExif(data, length);
+    }
+
+    /**
+     * 从文件开头的数据中读取JPEG的EXIF中的Orientation标签.
+     *
+     * @param data   文件开头的数据
+     * @param length 有效的字节数
+     * @return Orientation标签, 不是JPEG, 数据不完整或者没有这个标签时返回{@link #EXIF_NORMAL}
+     */
+    static int readExif(byte[] data, int length) {
+        if (length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            return EXIF_NORMAL;
+        }
+        int offset = 2;
+        //依次查找每个段,直到APP1(EXIF)或者图像数据开始
+        while (offset + 4 <= length) {
+            if ((data[offset] & 0xff) != 0xff) {
+                return EXIF_NORMAL;
+            }
+            int marker = data[offset + 1] & 0xff;
+            if (marker == 0xff) {
+                offset++;   //填充字节
+                continue;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                return EXIF_NORMAL; //图像数据开始,后面不会再有EXIF
+            }
+            int segmentLength = readShort(data, offset + 2, false);
+            int start = offset + 4;
+            int end = Math.min(length, offset + 2 + segmentLength);
+            if (marker == 0xe1 && end - start >= 14 && data[start] == 'E' && data[start + 1] == 'x'
+                    && data[start + 2] == 'i' && data[start + 3] == 'f' && data[start + 4] == 0
+                    && data[start + 5] == 0) {
+                int orientation = readTiffOrientation(data, start + 6, end);
+                if (orientation != 0) {
+                    return orientation;
+                }
+            }
+            if (segmentLength < 2) {
+                return EXIF_NORMAL;
+            }
+            offset += 2 + segmentLength;
+        }
+        return EXIF_NORMAL;
+    }
+
+    /**
+     * 在TIFF结构的第一个IFD中查找Orientation标签.
+     *
+     * @param tiff TIFF头的位置
+     * @param end  数据的结束位置
+     * @return Orientation标签, 没有找到时返回0
+     */
+    private static int readTiffOrientation(byte[] data, int tiff, int end) {
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+        if (readShort(data, tiff + 2, littleEndian) != 42) {
+            return 0;
+        }
+        long ifdOffset = readInt(data, tiff + 4, littleEndian) & 0xffffffffL;
+        int ifd = (int) Math.min(Integer.MAX_VALUE, tiff + ifdOffset);
+        if (ifdOffset < 8 || ifd + 2 > end) {
+            return 0;
+        }
+        int count = readShort(data, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 0;
+            }
+            if (readShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+                int value = readShort(data, entry + 8, littleEndian);
+                return value >= 1 && value <= 8 ? value : 0;
+            }
+        }
+        return 0;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xff;
+        int b1 = data[offset + 1] & 0xff;
+        return littleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int high = readShort(data, offset + (littleEndian ? 2 : 0), littleEndian);
+        int low = readShort(data, offset + (littleEndian ? 0 : 2), littleEndian);
+        return high << 16 | low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Orientation)) {
+            return false;
+        }
+        Orientation that = (Orientation) o;
+        return mDegrees == that.mDegrees && mFlip == that.mFlip;
+    }
+
+    @Override
+    public int hashCode() {
+        return mDegrees * 2 + (mFlip ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "Orientation(" + mDegrees + (mFlip ? ", flipped)" : ")");
+    }
+}
@@ -0,0 +1,49 @@
+package cn.z.cropimage;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * 一次裁剪多个尺寸时的一个输出,见{@link CropImageView#crop(java.util.List)}.
+ */
+public class OutputSpec {
+
+    private final File mFile;
+    private final int mResolution;
+    private final CropOptions mOptions;
+
+    /**
+     * 输出PNG.
+     *
+     * @param file       存放的文件
+     * @param resolution 输出的宽度,高度按裁剪区域的宽高比;为负则取原始的分辨率
+     */
+    public OutputSpec(File file, int resolution) {
+        this(file, resolution, null);
+    }
+
+    /**
+     * @param file       存放的文件
+     * @param resolution 输出的宽度,高度按裁剪区域的宽高比;为负则取原始的分辨率
+     * @param options    输出格式,质量等设置,为null时输出PNG;精确尺寸和多级缩小的设置被忽略,总是精确输出
+     */
+    public OutputSpec(File file, int resolution, @Nullable CropOptions options) {
+        this.mFile = file;
+        this.mResolution = resolution;
+        this.mOptions = options;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getResolution() {
+        return mResolution;
+    }
+
+    @Nullable
+    public CropOptions getOptions() {
+        return mOptions;
+    }
+}
@@ -0,0 +1,268 @@
+package cn.z.cropimage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 逐行写入的PNG编码器.
+ * 像素可以分多次写入,编码器只保存上一行像素用于过滤,所以编码占用的内存和图片大小无关,适合一条一条解码再写入的场景.
+ * 像素格式和{@link android.graphics.Bitmap#getPixels}一致,是非预乘的ARGB;输出8位RGB或者RGBA.
+ * 压缩使用zlib的原生内存,{@link #finish()}时释放;失败或者取消时必须{@link #close()}
+ */
+class PngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int IDAT_SIZE = 32 * 1024;     //每个IDAT块的最大数据长度
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final OutputStream mOutputStream;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBytesPerPixel;   //RGB是3,RGBA是4
+
+    private final Deflater mDeflater = new Deflater();
+    private final DeflaterOutputStream mDeflaterOutputStream;
+
+    private byte[] mPreviousRow;        //上一行的原始数据,第一行时全为0
+    private byte[] mCurrentRow;         //当前行的原始数据
+    private final byte[][] mFiltered;   //当前行按每种过滤方式过滤后的数据,第一个字节是过滤方式
+    private final long[] mFilterSums = new long[5]; //每种过滤方式过滤后字节绝对值之和
+    private int mWrittenRows;           //已经写入的行数
+    private boolean mClosed;            //是否已经释放压缩器
+
+    /**
+     * 创建编码器并写入PNG文件头.
+     *
+     * @param outputStream 输出流,编码结束后不会被关闭
+     * @param width        图片宽度
+     * @param height       图片高度
+     * @param hasAlpha     是否包含透明通道;不包含时忽略像素的alpha
+     * @throws IOException 写入失败
+     */
+    PngEncoder(OutputStream outputStream, int width, int height, boolean hasAlpha) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be > 0");
+        }
+        this.mOutputStream = outputStream;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mBytesPerPixel = hasAlpha ? 4 : 3;
+        int rowBytes = width * mBytesPerPixel;
+        mPreviousRow = new byte[rowBytes];
+        mCurrentRow = new byte[rowBytes];
+        mFiltered = new byte[5][rowBytes + 1];
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;                          //每个通道8位
+        header[9] = (byte) (hasAlpha ? 6 : 2);  //颜色类型:6是RGBA,2是RGB
+        header[10] = 0;                         //压缩方式
+        header[11] = 0;                         //过滤方式
+        header[12] = 0;                         //不交错
+        try {
+            mOutputStream.write(SIGNATURE);
+            writeChunk("IHDR", header, 0, header.length);
+        } catch (IOException e) {
+            mDeflater.end();    //调用者拿不到编码器,不能close
+            throw e;
+        }
+        mDeflaterOutputStream = new DeflaterOutputStream(new IdatOutputStream(), mDeflater, IDAT_SIZE);
+    }
+
+    /**
+     * 写入若干行像素.
+     *
+     * @param pixels 非预乘的ARGB像素
+     * @param offset 第一个像素在pixels中的位置
+     * @param stride pixels中每一行的长度,不能小于图片宽度
+     * @param rows   写入的行数
+     * @throws IOException 写入失败
+     */
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        checkOpen();
+        if (mWrittenRows + rows > mHeight) {
+            throw new IllegalStateException("too many rows: " + (mWrittenRows + rows) + " > " + mHeight);
+        }
+        for (int row = 0; row < rows; row++) {
+            int start = offset + row * stride;
+            int index = 0;
+            for (int x = 0; x < mWidth; x++) {
+                int color = pixels[start + x];
+                mCurrentRow[index++] = (byte) (color >> 16);
+                mCurrentRow[index++] = (byte) (color >> 8);
+                mCurrentRow[index++] = (byte) color;
+                if (mBytesPerPixel == 4) {
+                    mCurrentRow[index++] = (byte) (color >>> 24);
+                }
+            }
+            byte[] filtered = filterRow();
+            mDeflaterOutputStream.write(filtered, 0, filtered.length);
+            byte[] swap = mPreviousRow;
+            mPreviousRow = mCurrentRow;
+            mCurrentRow = swap;
+            mWrittenRows++;
+        }
+    }
+
+    /**
+     * 结束编码,写入剩余的数据和文件尾.
+     *
+     * @throws IOException 写入失败
+     */
+    void finish() throws IOException {
+        checkOpen();
+        if (mWrittenRows != mHeight) {
+            throw new IllegalStateException("only " + mWrittenRows + " of " + mHeight + " rows written");
+        }
+        mDeflaterOutputStream.finish();
+        mDeflaterOutputStream.flush();
+        close();
+        writeChunk("IEND", new byte[0], 0, 0);
+        mOutputStream.flush();
+    }
+
+    /**
+     * 释放压缩器的原生内存,不再写入剩余的数据,用于编码失败或者取消.
+     * 可以多次调用,{@link #finish()}之后调用不做任何事;不会关闭输出流
+     */
+    void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mDeflater.end();
+        }
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("encoder closed");
+        }
+    }
+
+    /**
+     * 对当前行使用所有过滤方式过滤,选择过滤后字节绝对值之和最小的一种.
+     *
+     * @return 过滤后的数据, 第一个字节是过滤方式
+     */
+    private byte[] filterRow() {
+        int bpp = mBytesPerPixel;
+        byte[] current = mCurrentRow;
+        byte[] previous = mPreviousRow;
+        long[] sums = mFilterSums;
+        for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+            sums[filter] = 0;
+        }
+        for (int i = 0; i < current.length; i++) {
+            int raw = current[i] & 0xff;
+            int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+            int up = previous[i] & 0xff;
+            int upLeft = i >= bpp ? previous[i - bpp] & 0xff : 0;
+            byte none = (byte) raw;
+            byte sub = (byte) (raw - left);
+            byte upFiltered = (byte) (raw - up);
+            byte average = (byte) (raw - ((left + up) >> 1));
+            byte paeth = (byte) (raw - paethPredictor(left, up, upLeft));
+            mFiltered[FILTER_NONE][i + 1] = none;
+            mFiltered[FILTER_SUB][i + 1] = sub;
+            mFiltered[FILTER_UP][i + 1] = upFiltered;
+            mFiltered[FILTER_AVERAGE][i + 1] = average;
+            mFiltered[FILTER_PAETH][i + 1] = paeth;
+            sums[FILTER_NONE] += Math.abs(none);
+            sums[FILTER_SUB] += Math.abs(sub);
+            sums[FILTER_UP] += Math.abs(upFiltered);
+            sums[FILTER_AVERAGE] += Math.abs(average);
+            sums[FILTER_PAETH] += Math.abs(paeth);
+        }
+        int best = FILTER_NONE;
+        for (int filter = FILTER_SUB; filter <= FILTER_PAETH; filter++) {
+            if (sums[filter] < sums[best]) {
+                best = filter;
+            }
+        }
+        mFiltered[best][0] = (byte) best;
+        return mFiltered[best];
+    }
+
+    private static int paethPredictor(int left, int up, int upLeft) {
+        int p = left + up - upLeft;
+        int pa = Math.abs(p - left);
+        int pb = Math.abs(p - up);
+        int pc = Math.abs(p - upLeft);
+        if (pa <= pb && pa <= pc) {
+            return left;
+        }
+        return pb <= pc ? up : upLeft;
+    }
+
+    private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] lengthBytes = new byte[4];
+        writeInt(lengthBytes, 0, length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(typeBytes);
+        crc32.update(data, offset, length);
+        byte[] crcBytes = new byte[4];
+        writeInt(crcBytes, 0, (int) crc32.getValue());
+        mOutputStream.write(lengthBytes);
+        mOutputStream.write(typeBytes);
+        mOutputStream.write(data, offset, length);
+        mOutputStream.write(crcBytes);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 把压缩后的数据分成IDAT块写入输出流.
+     */
+    private class IdatOutputStream extends OutputStream {
+
+        private final byte[] mBuffer = new byte[IDAT_SIZE];
+        private int mCount;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushChunk();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mCount == mBuffer.length) {
+                    flushChunk();
+                }
+                int count = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (mCount > 0) {
+                writeChunk("IDAT", mBuffer, 0, mCount);
+                mCount = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package cn.z.cropimage;
+
+/**
+ * 自适应预览质量.
+ * 根据运行时测量的绘制耗时和块的解码耗时,以及内存压力,在几个质量等级之间切换:等级越高,解码使用的放大比例越小,
+ * 压缩倍数越大,块越少也越快.手势和动画进行时降低质量,设备较慢时降得更多;停止后回到完整质量.
+ * 内存不足时在一段时间内限制最高质量.只在主线程使用,时间由调用者传入,不依赖Android,可以在JVM上测试
+ */
+class QualityController {
+
+    static final int LEVEL_FULL = 0;        //完整质量,使用设置的预览质量
+    static final int LEVEL_REDUCED = 1;     //放大比例减半
+    static final int LEVEL_LOW = 2;         //放大比例为1/4
+
+    static final int REASON_IDLE = 0;       //停止操作,回到完整质量
+    static final int REASON_GESTURE = 1;    //手势或动画进行中
+    static final int REASON_SLOW = 2;       //手势进行中并且绘制或解码超出预算
+    static final int REASON_MEMORY = 3;     //内存不足
+
+    private static final float[] LEVEL_FACTORS = {1f, 0.5f, 0.25f};     //每个等级的放大比例相对完整质量的倍数
+    private static final long FRAME_BUDGET_NANOS = 8000000;         //一帧绘制耗时的预算,超过时认为设备较慢
+    private static final long TILE_DECODE_BUDGET_NANOS = 30000000;  //一个块解码耗时的预算
+    static final long MEMORY_PRESSURE_NANOS = 10000000000L;         //内存不足后限制质量的时长
+    private static final float SMOOTHING = 0.2f;    //平均耗时的平滑系数,新的测量值所占的比例
+
+    private float mBaseScale;               //完整质量的放大比例
+    private boolean mEnabled;
+    private int mLevel = LEVEL_FULL;
+    private int mReason = REASON_IDLE;
+
+    private boolean mInteracting;           //手势或动画是否正在进行
+    private long mAverageDrawNanos;         //平均每帧的绘制耗时,还没有测量时为0
+    private long mAverageDecodeNanos;       //平均每个块的解码耗时,还没有测量时为0
+    private int mMemoryLevel = LEVEL_FULL;  //内存不足时限制的最低等级
+    private long mMemoryPressureTime;       //最近一次内存不足的时间(ns)
+
+    /**
+     * @param baseScale 完整质量的放大比例
+     */
+    QualityController(float baseScale) {
+        this.mBaseScale = baseScale;
+    }
+
+    void setBaseScale(float baseScale) {
+        this.mBaseScale = baseScale;
+    }
+
+    /**
+     * 开启或关闭自适应;关闭时总是完整质量.
+     */
+    void setEnabled(boolean enabled) {
+        this.mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return 当前等级的放大比例
+     */
+    float getDisplayScale() {
+        return mBaseScale * LEVEL_FACTORS[mLevel];
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return 最近一次改变等级的原因
+     */
+    int getReason() {
+        return mReason;
+    }
+
+    long getAverageDrawTime() {
+        return mAverageDrawNanos;
+    }
+
+    long getAverageDecodeTime() {
+        return mAverageDecodeNanos;
+    }
+
+    /**
+     * 记录一帧的绘制耗时.
+     *
+     * @param drawNanos 绘制耗时(ns)
+     */
+    void onFrame(long drawNanos) {
+        mAverageDrawNanos = smooth(mAverageDrawNanos, drawNanos);
+    }
+
+    /**
+     * 记录解码线程解码块的耗时.
+     *
+     * @param decodeNanos 解码的总耗时(ns)
+     * @param count       解码的块数,为0时不记录
+     */
+    void onTilesDecoded(long decodeNanos, int count) {
+        if (count > 0) {
+            mAverageDecodeNanos = smooth(mAverageDecodeNanos, decodeNanos / count);
+        }
+    }
+
+    /**
+     * 内存不足,在{@link #MEMORY_PRESSURE_NANOS}内质量不高于level.
+     *
+     * @param level 限制的最低等级
+     * @param now   当前时间(ns)
+     */
+    void onMemoryPressure(int level, long now) {
+        mMemoryLevel = Math.max(mMemoryLevel, level);
+        mMemoryPressureTime = now;
+    }
+
+    /**
+     * 按照当前的状态重新选择等级.
+     * 手势进行时只会降低等级,避免来回切换;停止后没有内存压力时回到完整质量
+     *
+     * @param interacting 手势或动画是否正在进行
+     * @param now         当前时间(ns)
+     * @return 等级是否改变
+     */
+    boolean update(boolean interacting, long now) {
+        if (mMemoryLevel != LEVEL_FULL && now - mMemoryPressureTime >= MEMORY_PRESSURE_NANOS) {
+            mMemoryLevel = LEVEL_FULL;
+        }
+        int level = LEVEL_FULL;
+        int reason = REASON_IDLE;
+        if (mEnabled) {
+            if (interacting) {
+                boolean slow = mAverageDrawNanos > FRAME_BUDGET_NANOS
+                        || mAverageDecodeNanos > TILE_DECODE_BUDGET_NANOS;
+                level = slow ? LEVEL_LOW : LEVEL_REDUCED;
+                reason = slow ? REASON_SLOW : REASON_GESTURE;
+                if (mInteracting && mLevel > level) {
+                    level = mLevel;
+                    reason = mReason;
+                }
+            }
+            if (mMemoryLevel > level) {
+                level = mMemoryLevel;
+                reason = REASON_MEMORY;
+            }
+        }
+        mInteracting = interacting;
+        if (level == mLevel) {
+            return false;
+        }
+        mLevel = level;
+        mReason = reason;
+        return true;
+    }
+
+    private static long smooth(long average, long value) {
+        return average == 0 ? value : (long) (average + (value - average) * SMOOTHING);
+    }
+}
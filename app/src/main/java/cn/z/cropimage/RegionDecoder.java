@@ -0,0 +1,71 @@
+package cn.z.cropimage;
+
+import java.io.IOException;
+
+/**
+ * 局部解码器,{@link CropEngine}通过它读取原图.
+ * Android上由{@link AndroidRegionDecoder}包装{@link android.graphics.BitmapRegionDecoder};
+ * 其它平台(比如JVM上的测试)可以用任何能按区域解码的方式实现.需要能在多个线程中同时使用
+ */
+public interface RegionDecoder {
+
+    /**
+     * 打开原图并创建解码器.
+     */
+    interface Factory {
+        /**
+         * @return 解码器, 使用结束后由调用者{@link RegionDecoder#recycle()}
+         * @throws IOException 原图无法打开或者格式不支持
+         */
+        RegionDecoder open() throws IOException;
+    }
+
+    /**
+     * 解码后的像素,非预乘的ARGB,按行存放.
+     */
+    final class Pixels {
+
+        public final int[] pixels;
+        public final int width;
+        public final int height;
+        public final boolean hasAlpha;
+
+        public Pixels(int[] pixels, int width, int height, boolean hasAlpha) {
+            if (pixels.length < width * height) {
+                throw new IllegalArgumentException("pixels too short: " + pixels.length);
+            }
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.hasAlpha = hasAlpha;
+        }
+    }
+
+    /**
+     * @return 原图宽度
+     */
+    int getWidth();
+
+    /**
+     * @return 原图高度
+     */
+    int getHeight();
+
+    /**
+     * 解码原图的一个区域.
+     *
+     * @param left       区域的左边界(原图分辨率的坐标)
+     * @param top        区域的上边界
+     * @param right      区域的右边界,不包含
+     * @param bottom     区域的下边界,不包含
+     * @param sampleSize 压缩倍数,2的整数次幂;解码后的尺寸由实现决定,和系统解码器一样大约是区域尺寸除以压缩倍数
+     * @return 解码后的像素
+     * @throws IOException 解码失败
+     */
+    Pixels decodeRegion(int left, int top, int right, int bottom, int sampleSize) throws IOException;
+
+    /**
+     * 释放解码器.
+     */
+    void recycle();
+}
@@ -0,0 +1,175 @@
+package cn.z.cropimage;
+
+/**
+ * 缩放像素数组.
+ * 缩小时使用区域平均(盒子滤波):每个输出像素是它覆盖的原像素按照覆盖面积加权的平均值,非整数倍缩小也不会丢失像素;
+ * 放大时使用双线性插值.
+ * 像素是非预乘的ARGB,和{@link android.graphics.Bitmap#getPixels}一致;颜色按照alpha加权平均,透明像素的颜色
+ * 不会渗入不透明像素的边缘
+ */
+class Resampler {
+
+    private Resampler() {
+    }
+
+    /**
+     * 缩放到指定的尺寸.
+     *
+     * @param src       原像素,按行存放
+     * @param srcWidth  原宽度
+     * @param srcHeight 原高度
+     * @param dstWidth  目标宽度
+     * @param dstHeight 目标高度
+     * @return 缩放后的像素, 按行存放; 尺寸不变时直接返回src
+     */
+    static int[] resize(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("size must be > 0");
+        }
+        if (srcWidth == dstWidth && srcHeight == dstHeight) {
+            return src;
+        }
+        Weights horizontal = new Weights(srcWidth, dstWidth);
+        Weights vertical = new Weights(srcHeight, dstHeight);
+        //先水平缩放,结果是预乘alpha的浮点数,每个像素4个通道
+        float[] temp = new float[dstWidth * srcHeight * 4];
+        for (int y = 0; y < srcHeight; y++) {
+            int srcRow = y * srcWidth;
+            int tempIndex = y * dstWidth * 4;
+            for (int x = 0; x < dstWidth; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                int start = horizontal.starts[x];
+                float[] weights = horizontal.weights[x];
+                for (int i = 0; i < weights.length; i++) {
+                    int color = src[srcRow + start + i];
+                    float alpha = (color >>> 24) * weights[i];
+                    a += alpha;
+                    r += ((color >> 16) & 0xff) * alpha;
+                    g += ((color >> 8) & 0xff) * alpha;
+                    b += (color & 0xff) * alpha;
+                }
+                temp[tempIndex++] = a;
+                temp[tempIndex++] = r;
+                temp[tempIndex++] = g;
+                temp[tempIndex++] = b;
+            }
+        }
+        //再垂直缩放,同时还原为非预乘的颜色
+        int[] dst = new int[dstWidth * dstHeight];
+        for (int y = 0; y < dstHeight; y++) {
+            int start = vertical.starts[y];
+            float[] weights = vertical.weights[y];
+            for (int x = 0; x < dstWidth; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    int tempIndex = ((start + i) * dstWidth + x) * 4;
+                    float weight = weights[i];
+                    a += temp[tempIndex] * weight;
+                    r += temp[tempIndex + 1] * weight;
+                    g += temp[tempIndex + 2] * weight;
+                    b += temp[tempIndex + 3] * weight;
+                }
+                int color = 0;
+                if (a > 0) {
+                    color = clamp(a) << 24 | clamp(r / a) << 16 | clamp(g / a) << 8 | clamp(b / a);
+                }
+                dst[y * dstWidth + x] = color;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * 精确缩放时解码的压缩倍数.
+     *
+     * @return 解码后的尺寸不小于输出尺寸的最大的2的幂, 至少为1
+     */
+    static int exactSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= dstWidth && srcHeight / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 从一张图片依次缩小出多个尺寸.
+     * 每次先把上一次的中间结果减半,直到再减半就小于目标尺寸,再缩放到目标尺寸;后面更小的尺寸从减半后的中间结果继续,
+     * 不需要每次都从最大的图片缩小.目标尺寸从大到小时效果最好
+     */
+    static class Progressive {
+
+        private int[] mPixels;      //当前的中间结果
+        private int mWidth;
+        private int mHeight;
+
+        Progressive(int[] pixels, int width, int height) {
+            this.mPixels = pixels;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+
+        /**
+         * 缩放到下一个尺寸.
+         *
+         * @return 缩放后的像素, 按行存放; 可能和中间结果是同一个数组, 调用者不能修改
+         */
+        int[] next(int dstWidth, int dstHeight) {
+            while (mWidth / 2 >= dstWidth && mHeight / 2 >= dstHeight) {
+                int halfWidth = mWidth / 2;
+                int halfHeight = mHeight / 2;
+                mPixels = resize(mPixels, mWidth, mHeight, halfWidth, halfHeight);
+                mWidth = halfWidth;
+                mHeight = halfHeight;
+            }
+            return resize(mPixels, mWidth, mHeight, dstWidth, dstHeight);
+        }
+    }
+
+    private static int clamp(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+    /**
+     * 一个方向上每个输出像素对应的原像素范围和权重.
+     */
+    private static class Weights {
+
+        final int[] starts;         //每个输出像素对应的第一个原像素
+        final float[][] weights;    //每个输出像素对应的原像素的权重,和为1
+
+        Weights(int srcSize, int dstSize) {
+            starts = new int[dstSize];
+            weights = new float[dstSize][];
+            double scale = (double) srcSize / dstSize;
+            for (int d = 0; d < dstSize; d++) {
+                if (scale >= 1) {
+                    //缩小:输出像素覆盖原图的[begin,end)区间,每个原像素的权重是被覆盖的长度
+                    double begin = d * scale;
+                    double end = Math.min(srcSize, begin + scale);
+                    int first = (int) begin;
+                    int last = Math.min(srcSize, (int) Math.ceil(end));
+                    float[] w = new float[last - first];
+                    for (int i = 0; i < w.length; i++) {
+                        w[i] = (float) ((Math.min(end, first + i + 1) - Math.max(begin, first + i)) / scale);
+                    }
+                    starts[d] = first;
+                    weights[d] = w;
+                } else {
+                    //放大:输出像素中心对应的原图位置两侧的两个原像素线性插值
+                    double center = Math.max(0, Math.min(srcSize - 1, (d + 0.5) * scale - 0.5));
+                    int first = Math.min((int) center, Math.max(0, srcSize - 2));
+                    if (srcSize == 1) {
+                        starts[d] = 0;
+                        weights[d] = new float[]{1};
+                    } else {
+                        float fraction = (float) (center - first);
+                        starts[d] = first;
+                        weights[d] = new float[]{1 - fraction, fraction};
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,576 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * 分条裁剪.
+ * PNG:把裁剪区域按行分成若干条,逐条解码并写入编码器;同一时间只有一条在内存中,占用的内存只和每一条的大小有关,
+ * 和输出图片的大小无关.每一条的原图高度是压缩倍数的整数倍,所以每一条的采样位置和整个区域一次解码时完全相同,
+ * 输出的像素也相同.
+ * JPEG和WEBP:系统的编码器只能编码整个Bitmap,所以整个区域一次解码后再编码.
+ * 精确尺寸:用不小于输出尺寸的最大的2的幂压缩倍数解码整个区域,再用{@link Resampler}缩放到输出尺寸后编码.
+ * 设置了图片方向时,裁剪区域和每一条都是显示方向的坐标,解码前映射回原始方向,解码后只变换这一部分的像素;
+ * 旋转了90度时每一条对应原图的一列.
+ * 每写完一条通知一次进度;裁剪的线程被中断时停止裁剪并抛出{@link InterruptedIOException}
+ */
+class StripCropper {
+
+    private static final int STRIP_PIXELS = 1 << 20;    //每一条解码后最多包含的像素数
+    private static final int MCU_SIZE = 16;             //JPEG最大的MCU高度,每一条的行数是它的整数倍
+    private static final int MAX_FILTER_STEPS = 2;      //多级缩小时最多额外减半的次数
+    private static final int MAX_FILTER_PIXELS = 1 << 22;   //多级缩小时解码后最多包含的像素数
+
+    /**
+     * 进度监听,在裁剪的线程调用.
+     */
+    interface ProgressListener {
+        /**
+         * @param finishedStrips 已经写入的条数
+         * @param totalStrips    总条数
+         */
+        void onProgress(int finishedStrips, int totalStrips);
+    }
+
+    private final DecoderPool mDecoder;
+    private final Rect mRect;
+    private final int mSampleSize;
+    private int mTargetWidth;       //精确输出的宽度,0表示按压缩倍数输出
+    private int mTargetHeight;      //精确输出的高度
+    private Orientation mOrientation = Orientation.NORMAL;  //图片的方向
+    private int mSrcWidth;          //原图原始方向的宽度,设置了方向时才需要
+    private int mSrcHeight;
+
+    private CropOptions mOptions = new CropOptions();
+    private ProgressListener mProgressListener;
+    private boolean mKeepResult;    //是否同时把裁剪结果保存在内存中
+    private Bitmap mResult;         //裁剪结果,只有mKeepResult为true时才有
+
+    //裁剪完成后的统计
+    private int mOutputWidth;       //输出图片的宽度
+    private int mOutputHeight;      //输出图片的高度
+    private int mOutputQuality;     //实际使用的输出质量
+    private long mEncodeNanos;      //编码耗时
+
+    /**
+     * @param decoder    原始文件的解码器池,较大的区域会在多个核上同时解码
+     * @param rect       裁剪区域(原图分辨率的坐标,设置了方向时是显示方向的坐标)
+     * @param sampleSize 压缩倍数,和{@link BitmapFactory.Options#inSampleSize}相同,小于1时按1处理
+     */
+    StripCropper(DecoderPool decoder, Rect rect, int sampleSize) {
+        this.mDecoder = decoder;
+        this.mRect = new Rect(rect);
+        this.mSampleSize = Math.max(1, sampleSize);
+    }
+
+    /**
+     * 设置输出设置,null时使用默认设置.
+     */
+    void setOptions(CropOptions options) {
+        this.mOptions = options == null ? new CropOptions() : options;
+    }
+
+    /**
+     * 设置精确的输出尺寸.设置后忽略构造时的压缩倍数,输出图片的尺寸总是等于设置的尺寸
+     *
+     * @param width  输出宽度,小于等于0时按压缩倍数输出
+     * @param height 输出高度,小于等于0时按压缩倍数输出
+     */
+    void setTargetSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            width = 0;
+            height = 0;
+        }
+        this.mTargetWidth = width;
+        this.mTargetHeight = height;
+    }
+
+    /**
+     * 设置图片的方向,设置后构造时的裁剪区域是显示方向的坐标.
+     *
+     * @param orientation 图片的方向
+     * @param srcWidth    原图原始方向的宽度
+     * @param srcHeight   原图原始方向的高度
+     */
+    void setOrientation(Orientation orientation, int srcWidth, int srcHeight) {
+        this.mOrientation = orientation;
+        this.mSrcWidth = srcWidth;
+        this.mSrcHeight = srcHeight;
+    }
+
+    void setProgressListener(ProgressListener progressListener) {
+        this.mProgressListener = progressListener;
+    }
+
+    /**
+     * 设置是否同时把裁剪结果保存在内存中.
+     * 保存时会分配一个和输出图片一样大的Bitmap,调用者不需要再从文件解码一次
+     */
+    void setKeepResult(boolean keepResult) {
+        this.mKeepResult = keepResult;
+    }
+
+    int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    int getOutputQuality() {
+        return mOutputQuality;
+    }
+
+    /**
+     * @return 编码耗时(ms)
+     */
+    long getEncodeTime() {
+        return mEncodeNanos / 1000000;
+    }
+
+    /**
+     * 裁剪并写入文件.失败时写了一半的文件会被删除.
+     *
+     * @param file 存放的文件
+     * @return 裁剪结果
+     * @throws IOException 解码或者写入失败;线程被中断时抛出{@link InterruptedIOException}
+     */
+    CropResult writeFile(File file) throws IOException {
+        return writeFile(file, null, 0, 0, false);
+    }
+
+    /**
+     * 不解码,按照输出设置把已经解码和缩放好的像素写入文件,用于{@link MultiCropper}.失败时写了一半的文件会被删除.
+     *
+     * @param file     存放的文件
+     * @param pixels   非预乘的ARGB像素,按行存放
+     * @param hasAlpha 是否输出透明通道,设置了丢弃透明通道时忽略
+     * @return 裁剪结果
+     * @throws IOException 写入失败
+     */
+    CropResult writeFile(File file, int[] pixels, int width, int height, boolean hasAlpha)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        OutputStream outputStream = null;
+        boolean success = false;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            if (pixels == null) {
+                write(outputStream);
+            } else {
+                mEncodeNanos = 0;
+                encode(pixels, width, height, hasAlpha && !mOptions.isOpaque(), outputStream);
+            }
+            outputStream.close();
+            outputStream = null;
+            success = true;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        return new CropResult(file, mResult, mOutputWidth, mOutputHeight, mOutputQuality, file.length(),
+                getEncodeTime(), SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * 裁剪并按照输出设置写入输出流.
+     *
+     * @param outputStream 输出流,写入结束后不会被关闭
+     * @throws IOException 解码或者写入失败;线程被中断时抛出{@link InterruptedIOException}
+     */
+    void write(OutputStream outputStream) throws IOException {
+        mEncodeNanos = 0;
+        if (mTargetWidth > 0) {
+            writeExact(outputStream);
+        } else if (mOptions.getFormat() == Bitmap.CompressFormat.PNG) {
+            writePng(outputStream);
+        } else {
+            writeCompressed(outputStream);
+        }
+    }
+
+    private BitmapFactory.Options createDecodeOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mSampleSize;
+        options.inMutable = true;   //可变的Bitmap才能作为inBitmap复用,也才能修改透明通道
+        if (mOptions.isRgb565()) {
+            //原图有透明通道时解码器不会使用RGB_565,仍然解码为ARGB_8888
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        return options;
+    }
+
+    /**
+     * 分条解码并写入PNG.
+     */
+    private void writePng(OutputStream outputStream) throws IOException {
+        //按照整个区域一次解码时的宽度计算每一条的行数
+        int estimatedWidth = Math.max(1, mRect.width() / mSampleSize);
+        int stripRows = Math.max(MCU_SIZE, STRIP_PIXELS / estimatedWidth / MCU_SIZE * MCU_SIZE);
+        int stripSrcHeight = stripRows * mSampleSize;
+        int stripCount = (mRect.height() + stripSrcHeight - 1) / stripSrcHeight;
+        BitmapFactory.Options options = createDecodeOptions();
+        //最后一条的原图高度不一定是压缩倍数的整数倍,解码后的尺寸和解码器的取整方式有关,所以先解码最后一条,
+        // 得到输出图片的宽度和总高度之后才能写入文件头
+        Rect stripRect = new Rect(mRect.left, mRect.top + (stripCount - 1) * stripSrcHeight,
+                mRect.right, mRect.bottom);
+        Bitmap lastStrip = decodeRegion(stripRect, options);
+        int width = mOrientation.displayWidth(lastStrip.getWidth(), lastStrip.getHeight());
+        int lastRows = mOrientation.displayHeight(lastStrip.getWidth(), lastStrip.getHeight());
+        int height = (stripCount - 1) * stripRows + lastRows;
+        boolean hasAlpha = lastStrip.hasAlpha() && !mOptions.isOpaque();
+        int[] pixels = new int[width * Math.max(stripRows, lastRows)];
+        int[] rawPixels = mOrientation.isIdentity() ? pixels : new int[pixels.length];
+        Bitmap strip = null;
+        Bitmap result = null;
+        PngEncoder encoder = null;
+        try {
+            long start = System.nanoTime();
+            encoder = new PngEncoder(outputStream, width, height, hasAlpha);
+            mEncodeNanos += System.nanoTime() - start;
+            if (mKeepResult) {
+                result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                result.setHasAlpha(hasAlpha);
+            }
+            for (int i = 0; i < stripCount - 1; i++) {
+                checkInterrupted();
+                stripRect.set(mRect.left, mRect.top + i * stripSrcHeight,
+                        mRect.right, mRect.top + (i + 1) * stripSrcHeight);
+                options.inBitmap = strip;   //除了最后一条,每一条的尺寸都相同,复用上一条的Bitmap
+                strip = decodeRegion(stripRect, options);
+                getPixels(strip, rawPixels, pixels);
+                start = System.nanoTime();
+                encoder.writeRows(pixels, 0, width, stripRows);
+                mEncodeNanos += System.nanoTime() - start;
+                if (result != null) {
+                    result.setPixels(pixels, 0, width, 0, i * stripRows, width, stripRows);
+                }
+                notifyProgress(i + 1, stripCount);
+            }
+            checkInterrupted();
+            getPixels(lastStrip, rawPixels, pixels);
+            start = System.nanoTime();
+            encoder.writeRows(pixels, 0, width, lastRows);
+            encoder.finish();
+            mEncodeNanos += System.nanoTime() - start;
+            if (result != null) {
+                result.setPixels(pixels, 0, width, 0, height - lastRows, width, lastRows);
+            }
+            notifyProgress(stripCount, stripCount);
+            mOutputWidth = width;
+            mOutputHeight = height;
+            mOutputQuality = 100;
+            mResult = result;
+            result = null;
+        } finally {
+            if (encoder != null) {
+                encoder.close();    //失败或取消时释放压缩器
+            }
+            if (result != null) {
+                result.recycle();   //裁剪失败,不保留结果
+            }
+            lastStrip.recycle();
+            if (strip != null) {
+                strip.recycle();
+            }
+        }
+    }
+
+    /**
+     * 整个区域一次解码,再用系统的编码器编码为JPEG或者WEBP.
+     */
+    private void writeCompressed(OutputStream outputStream) throws IOException {
+        Bitmap bitmap = applyOrientation(decodeRegion(mRect, createDecodeOptions()));
+        try {
+            notifyProgress(1, 2);
+            if (mOptions.isOpaque()) {
+                bitmap.setHasAlpha(false);
+            }
+            checkInterrupted();
+            mOutputQuality = compress(bitmap, outputStream);
+            notifyProgress(2, 2);
+            mOutputWidth = bitmap.getWidth();
+            mOutputHeight = bitmap.getHeight();
+            if (mKeepResult) {
+                mResult = bitmap;   //整个结果本来就在内存中,直接返回
+                bitmap = null;
+            }
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * 解码后缩放到精确的输出尺寸再编码.
+     */
+    private void writeExact(OutputStream outputStream) throws IOException {
+        //不小于输出尺寸的最大的2的幂压缩倍数,解码后的尺寸不超过输出尺寸的2倍
+        int sampleSize = Resampler.exactSampleSize(mRect.width(), mRect.height(),
+                mTargetWidth, mTargetHeight);
+        //多级缩小时用更小的压缩倍数解码,解码器少跳过一些像素,之后每一级用盒子滤波缩小一半
+        int steps = 0;
+        if (mOptions.isMultiStepFilter()) {
+            while (steps < MAX_FILTER_STEPS && sampleSize > 1
+                    && (long) (mRect.width() / (sampleSize / 2)) * (mRect.height() / (sampleSize / 2))
+                    <= MAX_FILTER_PIXELS) {
+                sampleSize /= 2;
+                steps++;
+            }
+        }
+        BitmapFactory.Options options = createDecodeOptions();
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = decodeRegion(mRect, options);
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        boolean hasAlpha = decoded.hasAlpha() && !mOptions.isOpaque();
+        int[] pixels = new int[width * height];
+        decoded.getPixels(pixels, 0, width, 0, 0, width, height);
+        decoded.recycle();
+        pixels = mOrientation.apply(pixels, width, height);
+        int rawWidth = width;
+        width = mOrientation.displayWidth(rawWidth, height);
+        height = mOrientation.displayHeight(rawWidth, height);
+        notifyProgress(1, 3);
+        if (!hasAlpha) {
+            //丢弃透明通道,避免缩放时按照alpha加权
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] |= 0xff000000;
+            }
+        }
+        for (int i = 0; i < steps; i++) {
+            checkInterrupted();
+            int halfWidth = Math.max(mTargetWidth, width / 2);
+            int halfHeight = Math.max(mTargetHeight, height / 2);
+            pixels = Resampler.resize(pixels, width, height, halfWidth, halfHeight);
+            width = halfWidth;
+            height = halfHeight;
+        }
+        checkInterrupted();
+        pixels = Resampler.resize(pixels, width, height, mTargetWidth, mTargetHeight);
+        notifyProgress(2, 3);
+        checkInterrupted();
+        encode(pixels, mTargetWidth, mTargetHeight, hasAlpha, outputStream);
+        notifyProgress(3, 3);
+    }
+
+    /**
+     * 解码显示方向的区域,结果仍然是原始方向.
+     *
+     * @param rect 显示方向的区域
+     */
+    private Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) throws IOException {
+        Rect rawRect = toRaw(mOrientation, rect, mSrcWidth, mSrcHeight);
+        Bitmap bitmap = mDecoder.decodeRegion(rawRect, options);
+        if (bitmap == null) {
+            throw new IOException("decode failed: " + rawRect);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 把显示方向的区域映射到原始方向.
+     *
+     * @return 原始方向的区域, 不需要映射时直接返回rect
+     */
+    static Rect toRaw(Orientation orientation, Rect rect, int srcWidth, int srcHeight) {
+        if (orientation.isIdentity()) {
+            return rect;
+        }
+        GeometryRect rawRect = new GeometryRect();
+        rawRect.set(rect.left, rect.top, rect.right, rect.bottom);
+        orientation.toRaw(rawRect, srcWidth, srcHeight, rawRect, new float[2]);
+        return new Rect(Math.round(rawRect.left), Math.round(rawRect.top),
+                Math.round(rawRect.right), Math.round(rawRect.bottom));
+    }
+
+    /**
+     * 取出解码结果的像素并变换为显示方向.
+     *
+     * @param rawPixels 存放原始方向的像素的临时数组,没有设置方向时和pixels是同一个数组
+     * @param pixels    结果,显示方向按行存放
+     */
+    private void getPixels(Bitmap bitmap, int[] rawPixels, int[] pixels) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        bitmap.getPixels(rawPixels, 0, width, 0, 0, width, height);
+        if (rawPixels != pixels) {
+            mOrientation.apply(rawPixels, width, height, pixels);
+        }
+    }
+
+    /**
+     * 把整个解码结果变换为显示方向,用于系统的编码器.
+     *
+     * @return 变换后的Bitmap, 不需要变换时直接返回bitmap, 否则bitmap会被回收
+     */
+    private Bitmap applyOrientation(Bitmap bitmap) {
+        if (mOrientation.isIdentity()) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        if (mOrientation.isFlipped()) {
+            matrix.postScale(-1, 1);
+        }
+        matrix.postRotate(mOrientation.getDegrees());
+        Bitmap result = null;
+        try {
+            result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+            result.setHasAlpha(bitmap.hasAlpha());
+        } finally {
+            if (result != bitmap) {
+                bitmap.recycle();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按照输出设置编码已经解码和缩放好的像素.
+     *
+     * @param pixels   非预乘的ARGB像素,按行存放
+     * @param hasAlpha 是否输出透明通道
+     */
+    private void encode(int[] pixels, int width, int height, boolean hasAlpha,
+                        OutputStream outputStream) throws IOException {
+        Bitmap bitmap = null;
+        PngEncoder encoder = null;
+        try {
+            if (mKeepResult || mOptions.getFormat() != Bitmap.CompressFormat.PNG) {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+                bitmap.setHasAlpha(hasAlpha);
+            }
+            if (mOptions.getFormat() == Bitmap.CompressFormat.PNG) {
+                long start = System.nanoTime();
+                encoder = new PngEncoder(outputStream, width, height, hasAlpha);
+                encoder.writeRows(pixels, 0, width, height);
+                encoder.finish();
+                mEncodeNanos += System.nanoTime() - start;
+                mOutputQuality = 100;
+            } else {
+                //noinspection ConstantConditions
+                mOutputQuality = compress(bitmap, outputStream);
+            }
+            mOutputWidth = width;
+            mOutputHeight = height;
+            if (mKeepResult) {
+                mResult = bitmap;
+                bitmap = null;
+            }
+        } finally {
+            if (encoder != null) {
+                encoder.close();
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * 用系统的编码器编码,设置了期望的文件大小时先查找合适的质量.
+     *
+     * @return 实际使用的质量
+     */
+    private int compress(Bitmap bitmap, OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        int quality = mOptions.getQuality();
+        if (mOptions.getTargetByteSize() > 0) {
+            quality = searchQuality(bitmap, quality, mOptions.getTargetByteSize());
+        }
+        if (!bitmap.compress(mOptions.getFormat(), quality, outputStream)) {
+            throw new IOException("encode failed");
+        }
+        mEncodeNanos += System.nanoTime() - start;
+        return quality;
+    }
+
+    /**
+     * 二分查找文件大小不超过期望值的最高质量.
+     *
+     * @param bitmap         要编码的图片
+     * @param maxQuality     允许的最高质量
+     * @param targetByteSize 期望的文件大小(字节)
+     * @return 最高质量, 最低质量也超过期望值时返回0
+     */
+    private int searchQuality(Bitmap bitmap, int maxQuality, long targetByteSize) throws IOException {
+        CountingOutputStream countingOutputStream = new CountingOutputStream();
+        int low = 0;
+        int high = maxQuality;
+        int best = 0;
+        while (low <= high) {
+            checkInterrupted();
+            int quality = (low + high) >>> 1;
+            countingOutputStream.reset();
+            bitmap.compress(mOptions.getFormat(), quality, countingOutputStream);
+            if (countingOutputStream.getCount() <= targetByteSize) {
+                best = quality;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+        return best;
+    }
+
+    private void notifyProgress(int finishedStrips, int totalStrips) {
+        if (mProgressListener != null) {
+            mProgressListener.onProgress(finishedStrips, totalStrips);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("crop cancelled");
+        }
+    }
+
+    /**
+     * 只统计写入的字节数,不保存数据的输出流,用来试编码.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        void reset() {
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 解码后的块和缩略图的磁盘缓存.
+ * 以原图内容的哈希,压缩倍数和块的位置为key,每个块一个文件,保存Bitmap的原始像素,读取时映射到内存后直接复制到Bitmap中,
+ * 不需要再解码;再次打开同一张图片时,显示区域内的块可以立即显示.
+ * 文件总大小有上限,超过时淘汰最久没有使用的文件;使用顺序通过文件的修改时间保存,重新创建缓存后仍然有效.
+ * 多个控件可以共用一个缓存,同一个目录只应该创建一个缓存对象;可以在多个线程中使用
+ */
+public class TileDiskCache {
+
+    private static final String SUFFIX = ".tile";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x43495431;    //"CIT1"
+    private static final int HEADER_SIZE = 20;      //magic,宽度,高度,是否有透明通道,像素字节数
+    private static final int HASH_CHUNK_SIZE = 8 << 20; //计算哈希时每次映射的字节数
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    private LinkedHashMap<String, Long> mEntries;   //文件名到文件大小,按使用顺序,第一次使用时才读取目录
+    private long mTotalBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    private final Object mWriteLock = new Object();
+    private ByteBuffer mWriteBuffer;                //写入时复用的缓冲区,由mWriteLock保护
+
+    /**
+     * 创建缓存,不会立即读取目录.
+     *
+     * @param directory 缓存目录,不存在时会被创建;目录中的其他文件不受影响
+     * @param maxBytes  所有缓存文件的大小上限(字节)
+     */
+    public TileDiskCache(File directory, long maxBytes) {
+        this.mDirectory = directory;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return 所有缓存文件的总大小(字节)
+     */
+    public synchronized long getSize() {
+        ensureEntries();
+        return mTotalBytes;
+    }
+
+    /**
+     * @return 读取时文件已经在缓存中的次数
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return 读取时文件不在缓存中的次数
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 删除所有的缓存文件.
+     */
+    public synchronized void clear() {
+        ensureEntries();
+        for (String name : mEntries.keySet()) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, name).delete();
+        }
+        mEntries.clear();
+        mTotalBytes = 0;
+    }
+
+    /**
+     * @param sourceKey 原图内容的哈希
+     * @param level     所在的层,压缩倍数是2的level次幂
+     * @return 块的文件名
+     */
+    static String tileName(String sourceKey, int level, int column, int row) {
+        return sourceKey + "_" + level + "_" + column + "_" + row + SUFFIX;
+    }
+
+    /**
+     * @param sourceKey 原图内容的哈希
+     * @return 缩略图的文件名
+     */
+    static String previewName(String sourceKey) {
+        return sourceKey + "_preview" + SUFFIX;
+    }
+
+    /**
+     * 读取缓存的块.
+     *
+     * @param name  文件名
+     * @param reuse 可以复用的Bitmap,尺寸和格式相同时像素直接复制到其中,可以为null
+     * @return 缓存的块, 不在缓存中或者文件损坏时返回null; 没有复用reuse时是新创建的Bitmap
+     */
+    Bitmap get(String name, Bitmap reuse) {
+        synchronized (this) {
+            ensureEntries();
+            if (mEntries.get(name) == null) {   //同时标记为最近使用
+                mMissCount++;
+                return null;
+            }
+        }
+        File file = new File(mDirectory, name);
+        Bitmap bitmap = null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size >= HEADER_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int magic = buffer.getInt();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                boolean hasAlpha = buffer.getInt() != 0;
+                int byteCount = buffer.getInt();
+                //格式由每个像素的字节数决定:4字节是ARGB_8888,2字节是RGB_565
+                Bitmap.Config config = byteCount == width * height * 2
+                        ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                if (magic == MAGIC && width > 0 && height > 0 && byteCount == size - HEADER_SIZE) {
+                    bitmap = canReuse(reuse, width, height, config)
+                            ? reuse : Bitmap.createBitmap(width, height, config);
+                    if (bitmap.getByteCount() == byteCount) {
+                        bitmap.copyPixelsFromBuffer(buffer);
+                        bitmap.setHasAlpha(hasAlpha);
+                    } else {
+                        if (bitmap != reuse) {
+                            bitmap.recycle();
+                        }
+                        bitmap = null;
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            if (bitmap != null && bitmap != reuse) {
+                bitmap.recycle();
+            }
+            bitmap = null;
+        } finally {
+            close(randomAccessFile);
+        }
+        if (bitmap == null) {
+            remove(name);   //文件损坏
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            mHitCount++;
+        }
+        return bitmap;
+    }
+
+    private static boolean canReuse(Bitmap reuse, int width, int height, Bitmap.Config config) {
+        return reuse != null && reuse.isMutable() && reuse.getWidth() == width && reuse.getHeight() == height
+                && reuse.getConfig() == config;
+    }
+
+    /**
+     * 写入一个块,已经存在时覆盖.先写入临时文件再重命名,读取时不会读到写了一半的文件.
+     * 只缓存ARGB_8888和RGB_565的Bitmap
+     *
+     * @param name   文件名
+     * @param bitmap 块
+     */
+    void put(String name, Bitmap bitmap) {
+        Bitmap.Config config = bitmap.getConfig();
+        if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565 || bitmap.isRecycled()) {
+            return;
+        }
+        int byteCount = bitmap.getByteCount();
+        long size = HEADER_SIZE + (long) byteCount;
+        if (size > mMaxBytes) {
+            return;
+        }
+        synchronized (this) {
+            ensureEntries();    //同时创建目录
+        }
+        File file = new File(mDirectory, name);
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        boolean success = false;
+        synchronized (mWriteLock) {
+            if (mWriteBuffer == null || mWriteBuffer.capacity() < size) {
+                mWriteBuffer = ByteBuffer.allocateDirect((int) size);
+            }
+            ByteBuffer buffer = mWriteBuffer;
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight())
+                    .putInt(bitmap.hasAlpha() ? 1 : 0).putInt(byteCount);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.flip();
+            FileOutputStream outputStream = null;
+            try {
+                outputStream = new FileOutputStream(temp);
+                FileChannel channel = outputStream.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                outputStream.close();
+                outputStream = null;
+                success = temp.renameTo(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                close(outputStream);
+                if (!success) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                }
+            }
+        }
+        if (success) {
+            synchronized (this) {
+                Long old = mEntries.put(name, size);
+                mTotalBytes += size - (old == null ? 0 : old);
+                trimToSize();
+            }
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDirectory, name).delete();
+    }
+
+    /**
+     * 淘汰最久没有使用的文件,直到总大小不超过上限.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, entry.getKey()).delete();
+            mTotalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 第一次使用时读取目录,按照修改时间恢复使用顺序,删除上次没有写完的临时文件.
+     */
+    private void ensureEntries() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mTotalBytes = 0;
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        ArrayList<File> tiles = new ArrayList<>();
+        final HashMap<File, Long> lastModified = new HashMap<>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else if (file.getName().endsWith(SUFFIX)) {
+                tiles.add(file);
+                lastModified.put(file, file.lastModified());  //修改时间在排序过程中可能改变,先取出再排序
+            }
+        }
+        Collections.sort(tiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(lastModified.get(a), lastModified.get(b));
+            }
+        });
+        for (File file : tiles) {
+            long size = file.length();
+            mEntries.put(file.getName(), size);
+            mTotalBytes += size;
+        }
+        trimToSize();
+    }
+
+    /**
+     * 计算文件内容的哈希,作为缓存的key.
+     *
+     * @param file 原始图片
+     * @return SHA-1的十六进制字符串
+     */
+    static String hash(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return hash(inputStream.getChannel());
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * 计算文件内容的哈希,作为缓存的key.不会改变流的读取位置
+     *
+     * @param inputStream 原始图片的流,需要是普通文件;不会被关闭
+     * @return SHA-1的十六进制字符串
+     */
+    static String hash(FileInputStream inputStream) throws IOException {
+        return hash(inputStream.getChannel());
+    }
+
+    private static String hash(FileChannel channel) throws IOException {
+        MessageDigest digest = newDigest();
+        long size = channel.size();
+        for (long position = 0; position < size; position += HASH_CHUNK_SIZE) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(HASH_CHUNK_SIZE, size - position)));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return 计算缓存key的哈希算法
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
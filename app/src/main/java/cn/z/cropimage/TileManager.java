@@ -0,0 +1,972 @@
+package cn.z.cropimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 分块解码显示原始图片.
+ * 原图按照压缩倍数(2的整数次幂)分层,每一层划分成解码后边长为{@link #TILE_SIZE}的块;只解码显示区域内还没有解码
+ * 的块,所以移动时只需要解码新进入显示区域的边缘块,而不是整个显示区域.
+ * 解码在后台线程进行,解码完成后通过{@link Callback}通知刷新;除了{@link #decodeNext()},其他方法都应该在主线程调用.
+ * {@link DecoderPool}中有多个解码器时,多个解码线程同时解码不同的块,每个线程使用一个解码器.
+ * 解码出的块放在有内存上限的LRU缓存中,来回移动或者在两个缩放级别之间切换时不需要重新解码;被淘汰的块的Bitmap放入
+ * {@link BitmapPool},解码新的块时复用.
+ * 更换解码器后首先解码一张很小的整图缩略图,绘制在所有块的下面;块还没有解码出来时(刚加载,快速缩放)显示的是缩略图,
+ * 不会出现空白.
+ * 设置了{@link TileDiskCache}时,块和缩略图先从磁盘缓存读取,没有缓存时再解码并写入磁盘缓存;原图内容的哈希在解码线程中
+ * 第一次需要时计算.
+ * 移动和缩放时可以{@link #prefetch 预先解码}预测的显示区域中的块,它们在单独的低优先级队列中,只在显示区域内的块都已经
+ * 开始解码后才解码,并且同时只占用一部分解码线程.
+ * 块的格式由{@link #setBitmapConfig}设置:不透明的原图用RGB_565,内存减半,同样的缓存上限可以放下两倍的块;
+ * 缩略图只解码一次并且不复用,支持时转为只在GPU中的{@link Bitmap.Config#HARDWARE}
+ */
+class TileManager {
+
+    static final int TILE_SIZE = 256;   //块解码后的边长(px),对应原图的边长是TILE_SIZE乘压缩倍数
+
+    private static final int MAX_LEVEL = 31;    //压缩倍数最大为2的30次幂,层数不会超过这个数
+
+    private static final int POOL_SIZE = 16;    //Bitmap池中最多保存的Bitmap个数
+
+    private static final int PREVIEW_SIZE = 512;    //缩略图的最大边长(px)
+
+    private static final int PREFETCH_BUDGET = 8;   //每次预测最多预先解码的块数
+
+    /**
+     * 块解码完成的回调,在解码线程调用,可能同时在多个解码线程调用.
+     */
+    interface Callback {
+        void onTileLoaded();
+    }
+
+    /**
+     * 一个块.
+     * 每个位置的块对象只创建一次,同时也是缓存的key(压缩倍数+原图区域);解码出的Bitmap可以被淘汰,块对象一直复用
+     */
+    private static class Tile {
+        final int level;                    //所在的层,压缩倍数是2的level次幂
+        final Rect srcRect = new Rect();    //对应的原图区域(原图分辨率的坐标)
+        final Rect bitmapRect = new Rect(); //bitmap中有效的区域;边缘的块比TILE_SIZE小,只占用bitmap的左上角
+        Bitmap bitmap;                      //解码出的图像,在缓存中时不为null
+        boolean queued;                     //是否在等待解码的队列中
+        boolean decoding;                   //是否正在被解码线程解码
+        boolean prefetched;                 //是否是预先解码的,并且解码后还没有进入过显示区域
+
+        Tile(int level) {
+            this.level = level;
+        }
+    }
+
+    private volatile Callback mCallback;    //可以为null
+
+    private DecoderPool mDecoderPool;       //原始文件的局部解码器
+    private int mSrcWidth;                  //原始文件的宽度
+    private int mSrcHeight;                 //原始文件的高度
+    private int mGeneration;                //每次更换解码器或者释放所有块时加一,用来丢弃过期的解码结果
+
+    private TileDiskCache mDiskCache;       //磁盘缓存,可以为null
+    private Callable<String> mSourceKeyLoader;  //计算原图内容的哈希,没有时为null
+    private String mSourceKey;              //原图内容的哈希,计算之前或者计算失败时为null
+    private boolean mSourceKeyLoaded;       //是否已经计算过哈希,失败也不再重试
+
+    private final Tile[][] mLevels = new Tile[MAX_LEVEL][];   //每一层的块,按行存放,需要时才创建
+    private final int[] mLevelColumns = new int[MAX_LEVEL];     //每一层的列数
+    private int mCurrentLevel = -1;                 //当前显示的层
+    private final Rect mVisibleTiles = new Rect();  //当前层显示区域内块的范围(列,行),不包含right和bottom
+    private final ArrayDeque<Tile> mQueue = new ArrayDeque<>(); //等待解码的块
+    private final ArrayDeque<Tile> mPrefetchQueue = new ArrayDeque<>(); //等待预先解码的块,优先级低于mQueue
+    private int mPrefetchDecoding;                  //正在预先解码的块数
+    private int mLastLevel = -1;                    //上一次更新时的层,用来判断块是不是新进入显示区域的
+    private final Rect mLastVisibleTiles = new Rect();  //上一次更新时显示区域内块的范围
+
+    private LruCache<Tile, Bitmap> mCache;  //已经解码的块
+    private final BitmapPool mBitmapPool = new BitmapPool(POOL_SIZE);   //被淘汰的块的Bitmap
+
+    private Bitmap.Config mTileConfig = Bitmap.Config.ARGB_8888;   //块的格式,之后解码的块使用
+    private boolean mHardwarePreview;       //支持时是否把缩略图转为HARDWARE
+    private Bitmap mPreview;                //整张原图的缩略图,没有解码时为null
+    private boolean mPreviewRequested;      //是否已经开始解码缩略图,解码失败也不再重试
+    private final Paint mPreviewPaint = new Paint(Paint.FILTER_BITMAP_FLAG);  //缩略图放大很多倍,需要过滤
+    private int mHitCount;                  //新进入显示区域的块已经在缓存中的次数
+    private int mMissCount;                 //新进入显示区域的块需要解码的次数
+    private long mDecodeNanos;              //解码块的累计耗时,取出后清零
+    private long mTotalDecodeNanos;         //解码块的总耗时,不清零
+    private int mTotalDecodeCount;          //解码的总块数,包括从磁盘缓存读取的块
+    private int mPrefetchCount;             //预先解码的块数
+    private int mPrefetchHitCount;          //预先解码的块在被淘汰前进入显示区域的次数
+    private int mPrefetchWasteCount;        //预先解码的块没有进入过显示区域就被淘汰的次数
+
+    private ExecutorService mDecodeExecutor;    //解码线程
+    private int mActiveDrains;              //已经提交到解码线程,还没有结束的解码任务数
+    private final Drain mSyncDrain = new Drain(null);   //在调用的线程中同步解码时使用
+
+    private final RectF mTileDstRect = new RectF(); //绘制时块在控件上的位置,写在成员位置避免绘制时分配内存
+
+    /**
+     * 解码线程的任务,一直解码直到队列为空.
+     * 每个任务有自己的解码设置,多个任务可以在不同的线程中同时解码;设置只创建一次,避免每个块都分配对象
+     */
+    private class Drain implements Runnable {
+
+        final ExecutorService executor;     //提交这个任务的解码线程,重新启动解码线程后旧的任务不再计数
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final Rect rect = new Rect();       //正在解码的区域
+
+        Drain(ExecutorService executor) {
+            this.executor = executor;
+            this.options.inMutable = true;  //只有可变的Bitmap才能被复用
+        }
+
+        @Override
+        public void run() {
+            //暂停时解码线程被中断,队列中的块留到重新启动后解码
+            //noinspection StatementWithEmptyBody
+            while (!Thread.currentThread().isInterrupted() && decodeNext(this)) {
+            }
+        }
+    }
+
+    TileManager(Callback callback) {
+        this.mCallback = callback;
+        //默认使用最大可用内存的1/8作为缓存
+        this.mCache = createCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    /**
+     * 设置缓存的内存上限.已经缓存的块全部淘汰,需要重新{@link #update}.
+     *
+     * @param maxBytes 缓存的块占用内存的上限(字节);至少要能放下显示区域内所有的块,否则会反复解码
+     */
+    synchronized void setCacheSize(int maxBytes) {
+        LruCache<Tile, Bitmap> oldCache = mCache;
+        mCache = createCache(maxBytes);
+        oldCache.evictAll();
+        mLastLevel = -1;
+    }
+
+    /**
+     * @return 新进入显示区域的块已经在缓存中的次数
+     */
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return 新进入显示区域的块需要解码的次数
+     */
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 取出并清零解码耗时.
+     *
+     * @return 上一次调用之后解码块的总耗时(ns)
+     */
+    synchronized long takeDecodeTime() {
+        long decodeNanos = mDecodeNanos;
+        mDecodeNanos = 0;
+        return decodeNanos;
+    }
+
+    /**
+     * @return 解码块的总耗时(ns),不受{@link #takeDecodeTime()}影响
+     */
+    synchronized long getTotalDecodeTime() {
+        return mTotalDecodeNanos;
+    }
+
+    /**
+     * @return 解码的总块数
+     */
+    synchronized int getTotalDecodeCount() {
+        return mTotalDecodeCount;
+    }
+
+    /**
+     * @return 预先解码的块数
+     */
+    synchronized int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    /**
+     * @return 预先解码的块在被淘汰前进入显示区域的次数
+     */
+    synchronized int getPrefetchHitCount() {
+        return mPrefetchHitCount;
+    }
+
+    /**
+     * @return 预先解码的块没有进入过显示区域就被淘汰的次数
+     */
+    synchronized int getPrefetchWasteCount() {
+        return mPrefetchWasteCount;
+    }
+
+    /**
+     * 内存不足时释放缓存.Bitmap池总是被清空.
+     *
+     * @param keepCurrentLevel 是否保留当前层的块;为false时释放所有的块,需要重新{@link #update},缩略图仍然保留
+     */
+    synchronized void trimMemory(boolean keepCurrentLevel) {
+        if (keepCurrentLevel) {
+            for (Tile tile : mCache.snapshot().keySet()) {
+                if (tile.level != mCurrentLevel) {
+                    mCache.remove(tile);
+                }
+            }
+        } else {
+            mCache.evictAll();
+            mLastLevel = -1;
+        }
+        mBitmapPool.clear();
+    }
+
+    /**
+     * @return 缓存淘汰块的次数
+     */
+    synchronized int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * @return 缓存的块当前占用的内存(字节)
+     */
+    synchronized int getCacheBytes() {
+        return mCache.size();
+    }
+
+    /**
+     * 设置块和缩略图的格式,之后解码的块和缩略图使用;已经缓存的块不受影响.
+     *
+     * @param tileConfig      块的格式,原图不透明时可以用{@link Bitmap.Config#RGB_565}
+     * @param hardwarePreview 是否把缩略图转为{@link Bitmap.Config#HARDWARE},Android 8.0以下忽略
+     */
+    synchronized void setBitmapConfig(Bitmap.Config tileConfig, boolean hardwarePreview) {
+        this.mTileConfig = tileConfig;
+        this.mHardwarePreview = hardwarePreview;
+    }
+
+    /**
+     * @return 块的格式
+     */
+    synchronized Bitmap.Config getTileConfig() {
+        return mTileConfig;
+    }
+
+    /**
+     * @return 缩略图的格式, 还没有解码时为null
+     */
+    synchronized Bitmap.Config getPreviewConfig() {
+        return mPreview != null ? mPreview.getConfig() : null;
+    }
+
+    /**
+     * @return 缩略图占用的内存(字节), HARDWARE的缩略图占用的是显存
+     */
+    synchronized int getPreviewBytes() {
+        return mPreview != null ? mPreview.getByteCount() : 0;
+    }
+
+    /**
+     * 设置磁盘缓存,之后设置的解码器才会使用.
+     *
+     * @param diskCache 磁盘缓存,为null时不使用
+     */
+    synchronized void setDiskCache(TileDiskCache diskCache) {
+        this.mDiskCache = diskCache;
+    }
+
+    /**
+     * 设置解码器.之前的块全部释放.
+     *
+     * @param decoderPool     原始文件的局部解码器,可以为null
+     * @param srcWidth        原始文件的宽度
+     * @param srcHeight       原始文件的高度
+     * @param sourceKeyLoader 在解码线程中计算原图内容的哈希,作为磁盘缓存的key;为null时不使用磁盘缓存.
+     *                        实现了{@link Closeable}时,被替换或者{@link #release()}时关闭
+     */
+    synchronized void setDecoder(DecoderPool decoderPool, int srcWidth, int srcHeight,
+                                 Callable<String> sourceKeyLoader) {
+        releaseTiles();
+        if (mSourceKeyLoader != sourceKeyLoader) {
+            closeKeyLoader(mSourceKeyLoader);
+        }
+        this.mDecoderPool = decoderPool;
+        this.mSrcWidth = srcWidth;
+        this.mSrcHeight = srcHeight;
+        this.mSourceKeyLoader = sourceKeyLoader;
+        this.mSourceKey = null;
+        this.mSourceKeyLoaded = false;
+        for (int level = 0; level < MAX_LEVEL; level++) {
+            mLevels[level] = null;
+            mLevelColumns[level] = 0;
+        }
+        scheduleDrain();    //立即开始解码缩略图
+    }
+
+    /**
+     * 启动解码线程,已经启动时不做任何事.
+     * 线程数是CPU核数,实际同时解码的线程数不超过解码器的个数
+     */
+    synchronized void start() {
+        if (mDecodeExecutor == null) {
+            mDecodeExecutor = Executors.newFixedThreadPool(DecoderPool.CPU_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "CropView-decode");
+                }
+            });
+            mActiveDrains = 0;
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * 停止解码线程,保留已经解码的块和等待解码的队列,重新{@link #start()}后继续解码.
+     */
+    synchronized void pause() {
+        if (mDecodeExecutor != null) {
+            mDecodeExecutor.shutdownNow();
+            mDecodeExecutor = null;
+        }
+    }
+
+    /**
+     * 停止解码线程并释放所有的块,Bitmap池也会被清空.正在解码的块解码结束后被丢弃
+     */
+    synchronized void stop() {
+        pause();
+        releaseTiles();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * 停止解码线程,释放所有的块,并关闭计算原图哈希的任务,之后不再使用.
+     */
+    synchronized void release() {
+        stop();
+        closeKeyLoader(mSourceKeyLoader);
+        mSourceKeyLoader = null;
+    }
+
+    /**
+     * 关闭不再使用的计算原图哈希的任务,比如释放复制的文件描述符.没有实现{@link Closeable}时不做任何事
+     */
+    static void closeKeyLoader(Callable<String> loader) {
+        if (loader instanceof Closeable) {
+            try {
+                ((Closeable) loader).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 设置块解码完成的回调,用于把解码器和块交给另一个控件.
+     *
+     * @param callback 回调,为null时不通知
+     */
+    void setCallback(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    /**
+     * 更新显示区域.
+     * 放弃还没有开始解码的请求(包括预先解码的请求),重新把显示区域内没有缓存的块加入队列
+     *
+     * @param sampleSize 压缩倍数,必须是2的整数次幂
+     * @param left       显示区域的左边界(原图分辨率的坐标)
+     * @param top        显示区域的上边界
+     * @param right      显示区域的右边界
+     * @param bottom     显示区域的下边界
+     */
+    synchronized void update(int sampleSize, float left, float top, float right, float bottom) {
+        if (mDecoderPool == null) {
+            return;
+        }
+        int level = Math.min(Integer.numberOfTrailingZeros(sampleSize), MAX_LEVEL - 1);
+        int tileSrcSize = TILE_SIZE << level;
+        int columns = (mSrcWidth + tileSrcSize - 1) / tileSrcSize;
+        int rows = (mSrcHeight + tileSrcSize - 1) / tileSrcSize;
+        if (mLevels[level] == null) {
+            mLevels[level] = new Tile[columns * rows];
+            mLevelColumns[level] = columns;
+        }
+        mCurrentLevel = level;
+        mVisibleTiles.set(
+                Math.max(0, (int) (left / tileSrcSize)),
+                Math.max(0, (int) (top / tileSrcSize)),
+                Math.min(columns, (int) Math.ceil(right / tileSrcSize)),
+                Math.min(rows, (int) Math.ceil(bottom / tileSrcSize)));
+        //还没有开始解码的请求都过期了,清空后重新加入;不用迭代器,避免每次移动都分配对象
+        clearQueue(mQueue);
+        clearQueue(mPrefetchQueue);
+        for (int row = mVisibleTiles.top; row < mVisibleTiles.bottom; row++) {
+            for (int column = mVisibleTiles.left; column < mVisibleTiles.right; column++) {
+                Tile tile = obtainTile(level, column, row);
+                boolean entered = level != mLastLevel || !mLastVisibleTiles.contains(column, row);
+                if (tile.bitmap != null) {
+                    mCache.get(tile);   //标记为最近使用
+                    if (entered) {
+                        mHitCount++;
+                    }
+                    if (tile.prefetched) {
+                        tile.prefetched = false;
+                        mPrefetchHitCount++;
+                    }
+                } else if (!tile.decoding) {
+                    if (entered) {
+                        mMissCount++;
+                    }
+                    tile.queued = true;
+                    mQueue.add(tile);
+                }
+            }
+        }
+        mLastLevel = level;
+        mLastVisibleTiles.set(mVisibleTiles);
+        scheduleDrain();
+    }
+
+    /**
+     * 预先解码预测的显示区域中还没有缓存的块,替换之前的预先解码请求.
+     * 最多{@link #PREFETCH_BUDGET}个块,从靠近当前显示区域的一侧开始,沿移动方向排队;应该在{@link #update}之后调用
+     *
+     * @param sampleSize 预测的压缩倍数,必须是2的整数次幂
+     * @param left       预测的显示区域的左边界(原图分辨率的坐标)
+     * @param top        预测的显示区域的上边界
+     * @param right      预测的显示区域的右边界
+     * @param bottom     预测的显示区域的下边界
+     * @return 加入队列的块数
+     */
+    synchronized int prefetch(int sampleSize, float left, float top, float right, float bottom) {
+        clearQueue(mPrefetchQueue);
+        if (mDecoderPool == null || mCurrentLevel < 0) {
+            return 0;
+        }
+        int level = Math.min(Integer.numberOfTrailingZeros(sampleSize), MAX_LEVEL - 1);
+        int tileSrcSize = TILE_SIZE << level;
+        int columns = (mSrcWidth + tileSrcSize - 1) / tileSrcSize;
+        int rows = (mSrcHeight + tileSrcSize - 1) / tileSrcSize;
+        if (mLevels[level] == null) {
+            mLevels[level] = new Tile[columns * rows];
+            mLevelColumns[level] = columns;
+        }
+        int firstColumn = Math.max(0, (int) (left / tileSrcSize));
+        int firstRow = Math.max(0, (int) (top / tileSrcSize));
+        int lastColumn = Math.min(columns, (int) Math.ceil(right / tileSrcSize)) - 1;
+        int lastRow = Math.min(rows, (int) Math.ceil(bottom / tileSrcSize)) - 1;
+        if (firstColumn > lastColumn || firstRow > lastRow) {
+            return 0;
+        }
+        //移动方向:预测的显示中心相对当前显示中心的位移,移动较多的方向作为外层循环
+        int currentSrcSize = TILE_SIZE << mCurrentLevel;
+        float dx = (left + right) / 2 - mVisibleTiles.exactCenterX() * currentSrcSize;
+        float dy = (top + bottom) / 2 - mVisibleTiles.exactCenterY() * currentSrcSize;
+        boolean columnMajor = Math.abs(dx) >= Math.abs(dy);
+        int outerCount = columnMajor ? lastColumn - firstColumn + 1 : lastRow - firstRow + 1;
+        int innerCount = columnMajor ? lastRow - firstRow + 1 : lastColumn - firstColumn + 1;
+        boolean outerReversed = (columnMajor ? dx : dy) < 0;
+        boolean innerReversed = (columnMajor ? dy : dx) < 0;
+        int count = 0;
+        for (int i = 0; i < outerCount && count < PREFETCH_BUDGET; i++) {
+            int outer = outerReversed ? outerCount - 1 - i : i;
+            for (int j = 0; j < innerCount && count < PREFETCH_BUDGET; j++) {
+                int inner = innerReversed ? innerCount - 1 - j : j;
+                Tile tile = columnMajor
+                        ? obtainTile(level, firstColumn + outer, firstRow + inner)
+                        : obtainTile(level, firstColumn + inner, firstRow + outer);
+                if (tile.bitmap != null) {
+                    mCache.get(tile);   //即将进入显示区域,避免被淘汰
+                } else if (!tile.queued && !tile.decoding) {
+                    tile.queued = true;
+                    mPrefetchQueue.add(tile);
+                    count++;
+                }
+            }
+        }
+        scheduleDrain();
+        return count;
+    }
+
+    /**
+     * 放弃还没有开始的预先解码,用于移动方向改变或者停止移动.已经开始解码的块不能中止,解码后仍然放入缓存
+     */
+    synchronized void cancelPrefetch() {
+        clearQueue(mPrefetchQueue);
+    }
+
+    /**
+     * 绘制所有已经解码的块.
+     * 最下面是缩略图;当前层的块还没有全部解码出来时,先绘制其他层缓存的块暂时填补空白,再绘制当前层的块
+     *
+     * @param canvas  canvas
+     * @param paint   画笔
+     * @param centerX 显示中心的x坐标(原图分辨率的坐标)
+     * @param centerY 显示中心的y坐标
+     * @param scale   原图的缩放比例
+     * @param width   控件宽度
+     * @param height  控件高度
+     */
+    synchronized void draw(Canvas canvas, Paint paint, float centerX, float centerY, float scale,
+                           int width, int height) {
+        //压缩倍数越大越模糊,从最模糊的层开始绘制,清晰的层覆盖在上面
+        boolean complete = isCurrentLevelComplete();
+        if (mPreview != null && !complete && (canvas.isHardwareAccelerated() || !isHardware(mPreview))) {
+            mTileDstRect.set(
+                    width / 2f - centerX * scale,
+                    height / 2f - centerY * scale,
+                    width / 2f + (mSrcWidth - centerX) * scale,
+                    height / 2f + (mSrcHeight - centerY) * scale);
+            canvas.drawBitmap(mPreview, null, mTileDstRect, mPreviewPaint);
+        }
+        for (int level = MAX_LEVEL - 1; level >= 0 && !complete; level--) {
+            Tile[] tiles = mLevels[level];
+            if (tiles == null || level == mCurrentLevel) {
+                continue;
+            }
+            for (Tile tile : tiles) {
+                drawTile(canvas, paint, tile, centerX, centerY, scale, width, height);
+            }
+        }
+        if (mCurrentLevel >= 0 && mLevels[mCurrentLevel] != null) {
+            int columns = mLevelColumns[mCurrentLevel];
+            Tile[] tiles = mLevels[mCurrentLevel];
+            for (int row = mVisibleTiles.top; row < mVisibleTiles.bottom; row++) {
+                for (int column = mVisibleTiles.left; column < mVisibleTiles.right; column++) {
+                    drawTile(canvas, paint, tiles[row * columns + column],
+                            centerX, centerY, scale, width, height);
+                }
+            }
+        }
+    }
+
+    private void drawTile(Canvas canvas, Paint paint, Tile tile, float centerX, float centerY,
+                          float scale, int width, int height) {
+        if (tile == null || tile.bitmap == null) {
+            return;
+        }
+        //块的左上角在原图中相对于显示中心的距离,乘倍率就是在控件上相对于控件中心的距离
+        mTileDstRect.set(
+                width / 2f + (tile.srcRect.left - centerX) * scale,
+                height / 2f + (tile.srcRect.top - centerY) * scale,
+                width / 2f + (tile.srcRect.right - centerX) * scale,
+                height / 2f + (tile.srcRect.bottom - centerY) * scale);
+        if (mTileDstRect.right < 0 || mTileDstRect.bottom < 0
+                || mTileDstRect.left > width || mTileDstRect.top > height) {
+            return; //不在控件范围内
+        }
+        canvas.drawBitmap(tile.bitmap, tile.bitmapRect, mTileDstRect, paint);
+    }
+
+    /**
+     * 从队列中取出一个块并解码.
+     * 测试时可以在没有调用{@link #start()}的情况下,在任意线程直接调用来同步解码
+     *
+     * @return 是否解码了一个块, 队列为空时返回false
+     */
+    boolean decodeNext() {
+        synchronized (mSyncDrain) {
+            return decodeNext(mSyncDrain);
+        }
+    }
+
+    /**
+     * 从队列中取出一个块,用池中的一个解码器解码.
+     * 显示区域内的块优先;队列为空时才预先解码,同时预先解码的块数不超过解码器个数的一半,为新进入显示区域的块留出解码器
+     *
+     * @param drain 调用的解码任务,提供解码设置
+     * @return 是否解码了一个块, 队列为空时返回false
+     */
+    private boolean decodeNext(Drain drain) {
+        if (decodePreview()) {
+            return true;
+        }
+        String sourceKey = loadSourceKey();
+        Tile tile;
+        boolean prefetch = false;
+        DecoderPool decoderPool;
+        TileDiskCache diskCache;
+        Bitmap.Config config;
+        int generation;
+        synchronized (this) {
+            tile = mQueue.poll();
+            if (tile == null && !mPrefetchQueue.isEmpty() && mPrefetchDecoding < maxPrefetchDecoding()) {
+                tile = mPrefetchQueue.poll();
+                prefetch = tile != null;
+            }
+            if (tile == null) {
+                if (drain.executor != null && drain.executor == mDecodeExecutor) {
+                    mActiveDrains--;
+                }
+                return false;
+            }
+            tile.queued = false;
+            tile.decoding = true;
+            if (prefetch) {
+                mPrefetchDecoding++;
+            }
+            decoderPool = mDecoderPool;
+            diskCache = sourceKey != null ? mDiskCache : null;
+            config = mTileConfig;
+            generation = mGeneration;
+            drain.rect.set(tile.srcRect);
+        }
+        Bitmap bitmap = null;
+        Bitmap reuse = null;
+        boolean loaded = false;
+        boolean finished = false;
+        long start = System.nanoTime();
+        BitmapFactory.Options options = drain.options;
+        try {
+            //所有的块都解码到TILE_SIZE*TILE_SIZE的Bitmap中,这样任何被淘汰的同一格式的Bitmap都可以复用
+            reuse = mBitmapPool.get(TILE_SIZE, TILE_SIZE, config);
+            if (reuse == null) {
+                reuse = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, config);
+            }
+            String name = null;
+            if (diskCache != null) {
+                int tileSrcSize = TILE_SIZE << tile.level;
+                name = TileDiskCache.tileName(sourceKey, tile.level,
+                        drain.rect.left / tileSrcSize, drain.rect.top / tileSrcSize);
+                bitmap = diskCache.get(name, reuse);
+            }
+            if (bitmap == null) {
+                options.inSampleSize = 1 << tile.level;
+                options.inPreferredConfig = config;
+                options.inBitmap = reuse;
+                BitmapRegionDecoder decoder = decoderPool.acquire();
+                if (decoder != null) {      //为null时解码器池已经关闭并回收,原图已经更换
+                    try {
+                        bitmap = decoder.decodeRegion(drain.rect, options);
+                    } catch (IllegalArgumentException e) {
+                        //复用失败时不复用,重新分配
+                        options.inBitmap = null;
+                        try {
+                            bitmap = decoder.decodeRegion(drain.rect, options);
+                        } catch (RuntimeException e1) {
+                            e1.printStackTrace();
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        decoderPool.release(decoder);
+                    }
+                }
+                if (bitmap != null && diskCache != null) {
+                    diskCache.put(name, bitmap);
+                }
+            }
+            finished = true;
+        } finally {
+            options.inBitmap = null;
+            if (reuse != null && reuse != bitmap) {
+                mBitmapPool.put(reuse);     //没有解码到复用的Bitmap中,放回池中
+            }
+            //解码失败或者抛出异常时也要恢复块的状态,否则这个块不会再解码,同时解码的块数也不会减少
+            synchronized (this) {
+                long decodeNanos = System.nanoTime() - start;
+                mDecodeNanos += decodeNanos;
+                mTotalDecodeNanos += decodeNanos;
+                mTotalDecodeCount++;
+                tile.decoding = false;
+                if (prefetch) {
+                    mPrefetchDecoding--;
+                }
+                if (!finished) {
+                    //异常会结束这个解码任务,由新的任务继续解码队列中的块
+                    if (drain.executor != null && drain.executor == mDecodeExecutor) {
+                        mActiveDrains--;
+                    }
+                    scheduleDrain();
+                    if (bitmap != null) {
+                        mBitmapPool.put(bitmap);
+                    }
+                } else if (bitmap != null) {
+                    if (generation != mGeneration) {
+                        mBitmapPool.put(bitmap);    //解码期间更换了解码器,结果已经没有用了
+                    } else {
+                        tile.bitmap = bitmap;
+                        tile.prefetched = prefetch;
+                        if (prefetch) {
+                            mPrefetchCount++;
+                        }
+                        mCache.put(tile, bitmap);
+                        loaded = true;
+                    }
+                }
+            }
+        }
+        if (loaded) {
+            notifyTileLoaded();
+        }
+        return true;
+    }
+
+    /**
+     * 解码缩略图.缩略图优先于所有的块解码.
+     *
+     * @return 是否解码了缩略图, 已经开始解码过缩略图时返回false
+     */
+    private boolean decodePreview() {
+        DecoderPool decoderPool;
+        Bitmap.Config config;
+        boolean hardware;
+        int generation;
+        int sampleSize = 1;
+        Rect srcRect;   //缩略图对应的原图区域,即整张原图;解码期间可能更换原图,所以在锁内复制
+        synchronized (this) {
+            if (mDecoderPool == null || mPreviewRequested) {
+                return false;
+            }
+            mPreviewRequested = true;
+            decoderPool = mDecoderPool;
+            config = mTileConfig;
+            hardware = mHardwarePreview;
+            generation = mGeneration;
+            srcRect = new Rect(0, 0, mSrcWidth, mSrcHeight);
+            while (Math.max(mSrcWidth, mSrcHeight) / sampleSize > PREVIEW_SIZE) {
+                sampleSize *= 2;
+            }
+        }
+        String sourceKey = loadSourceKey();
+        TileDiskCache diskCache;
+        synchronized (this) {
+            diskCache = sourceKey != null ? mDiskCache : null;
+        }
+        //缩略图只解码一次,不放入Bitmap池;需要读取整张原图,有多个解码器时分成几条同时解码
+        Bitmap preview = null;
+        if (diskCache != null) {
+            preview = diskCache.get(TileDiskCache.previewName(sourceKey), null);
+        }
+        if (preview == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            try {
+                preview = decoderPool.decodeRegion(srcRect, options);
+            } catch (InterruptedIOException e) {
+                synchronized (this) {
+                    if (generation == mGeneration) {
+                        mPreviewRequested = false;  //解码线程暂停,重新启动后再解码
+                    }
+                }
+                return true;
+            }
+            if (preview != null && diskCache != null) {
+                diskCache.put(TileDiskCache.previewName(sourceKey), preview);
+            }
+        }
+        if (preview != null && hardware) {
+            preview = toHardware(preview);
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                if (preview != null) {
+                    preview.recycle();
+                }
+                return true;
+            }
+            mPreview = preview;
+            scheduleDrain();    //解码缩略图时排队的块可以开始同时解码
+        }
+        notifyTileLoaded();
+        return true;
+    }
+
+    /**
+     * 把缩略图复制为HARDWARE,只占用显存,绘制时不需要上传;不支持或者复制失败时返回原来的缩略图.
+     */
+    private static Bitmap toHardware(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return bitmap;
+        }
+        Bitmap hardware = bitmap.copy(Bitmap.Config.HARDWARE, false);
+        if (hardware == null) {
+            return bitmap;
+        }
+        bitmap.recycle();
+        return hardware;
+    }
+
+    /**
+     * HARDWARE的Bitmap不能绘制到软件绘制的画布上.
+     */
+    private static boolean isHardware(Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+    }
+
+    private void notifyTileLoaded() {
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onTileLoaded();
+        }
+    }
+
+    /**
+     * 在解码线程中计算原图内容的哈希,只计算一次.
+     *
+     * @return 原图内容的哈希, 没有设置磁盘缓存或者计算失败时返回null
+     */
+    private String loadSourceKey() {
+        Callable<String> loader;
+        synchronized (this) {
+            if (mSourceKeyLoaded || mDiskCache == null) {
+                return mSourceKey;
+            }
+            mSourceKeyLoaded = true;
+            loader = mSourceKeyLoader;
+        }
+        if (loader == null) {
+            return null;
+        }
+        String sourceKey = null;
+        try {
+            sourceKey = loader.call();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            if (loader != mSourceKeyLoader) {
+                return null;    //计算期间更换了解码器
+            }
+            mSourceKey = sourceKey;
+            return sourceKey;
+        }
+    }
+
+    /**
+     * 获取块对象,不存在时创建.
+     */
+    private Tile obtainTile(int level, int column, int row) {
+        int index = row * mLevelColumns[level] + column;
+        Tile tile = mLevels[level][index];
+        if (tile == null) {
+            tile = new Tile(level);
+            int tileSrcSize = TILE_SIZE << level;
+            tile.srcRect.set(column * tileSrcSize, row * tileSrcSize,
+                    Math.min(mSrcWidth, (column + 1) * tileSrcSize),
+                    Math.min(mSrcHeight, (row + 1) * tileSrcSize));
+            tile.bitmapRect.set(0, 0, Math.max(1, tile.srcRect.width() >> level),
+                    Math.max(1, tile.srcRect.height() >> level));
+            mLevels[level][index] = tile;
+        }
+        return tile;
+    }
+
+    /**
+     * 当前层显示区域内的块是否已经全部解码.
+     */
+    private boolean isCurrentLevelComplete() {
+        if (mCurrentLevel < 0 || mLevels[mCurrentLevel] == null) {
+            return false;
+        }
+        int columns = mLevelColumns[mCurrentLevel];
+        Tile[] tiles = mLevels[mCurrentLevel];
+        for (int row = mVisibleTiles.top; row < mVisibleTiles.bottom; row++) {
+            for (int column = mVisibleTiles.left; column < mVisibleTiles.right; column++) {
+                Tile tile = tiles[row * columns + column];
+                if (tile == null || tile.bitmap == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 创建缓存,被淘汰的块的Bitmap放入Bitmap池.
+     */
+    private LruCache<Tile, Bitmap> createCache(int maxBytes) {
+        return new LruCache<Tile, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Tile key, Bitmap oldValue, Bitmap newValue) {
+                if (key.bitmap == oldValue) {
+                    key.bitmap = null;
+                    if (key.prefetched) {
+                        key.prefetched = false;
+                        mPrefetchWasteCount++;
+                    }
+                }
+                mBitmapPool.put(oldValue);
+            }
+        };
+    }
+
+    /**
+     * 释放所有的块,正在解码的结果也会被丢弃.
+     */
+    private void releaseTiles() {
+        mGeneration++;
+        clearQueue(mQueue);
+        clearQueue(mPrefetchQueue);
+        mCache.evictAll();
+        if (mPreview != null) {
+            mPreview.recycle();
+            mPreview = null;
+        }
+        mPreviewRequested = false;
+        mCurrentLevel = -1;
+        mVisibleTiles.setEmpty();
+        mLastLevel = -1;
+    }
+
+    /**
+     * 清空等待解码的队列.不用迭代器,避免每次移动都分配对象
+     */
+    private static void clearQueue(ArrayDeque<Tile> queue) {
+        Tile tile;
+        while ((tile = queue.poll()) != null) {
+            tile.queued = false;
+        }
+    }
+
+    /**
+     * @return 同时预先解码的块数上限, 至少为1
+     */
+    private int maxPrefetchDecoding() {
+        return Math.max(1, mDecoderPool.getMaxSize() / 2);
+    }
+
+    /**
+     * 队列不为空或者需要解码缩略图时向解码线程提交解码任务.
+     * 同时进行的任务数不超过队列中的块数和解码器的个数;缩略图优先,解码缩略图时只有一个任务
+     */
+    private void scheduleDrain() {
+        if (mDecodeExecutor == null || mDecoderPool == null) {
+            return;
+        }
+        int prefetches = Math.min(mPrefetchQueue.size(), Math.max(0, maxPrefetchDecoding() - mPrefetchDecoding));
+        int drains = !mPreviewRequested ? 1
+                : Math.min(mQueue.size() + prefetches, mDecoderPool.getMaxSize());
+        while (mActiveDrains < drains) {
+            mActiveDrains++;
+            mDecodeExecutor.execute(new Drain(mDecodeExecutor));
+        }
+    }
+}
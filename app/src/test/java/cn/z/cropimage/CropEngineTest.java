@@ -0,0 +1,265 @@
+package cn.z.cropimage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CropEngine}的测试,用{@link ImageIoRegionDecoder}在JVM上解码.
+ */
+public class CropEngineTest {
+
+    private static final int SRC_WIDTH = 800;
+    private static final int SRC_HEIGHT = 600;
+    private static final int RADIUS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private CropEngine mEngine;
+
+    /**
+     * 记录打开次数的原图.
+     */
+    private static class CountingFactory implements RegionDecoder.Factory {
+
+        private final File mFile;
+        final AtomicInteger mOpenCount = new AtomicInteger();
+
+        CountingFactory(File file) {
+            this.mFile = file;
+        }
+
+        @Override
+        public RegionDecoder open() throws IOException {
+            mOpenCount.incrementAndGet();
+            return new ImageIoRegionDecoder(mFile);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        //左半边红色,右半边蓝色
+        BufferedImage image = new BufferedImage(SRC_WIDTH, SRC_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < SRC_HEIGHT; y++) {
+            for (int x = 0; x < SRC_WIDTH; x++) {
+                image.setRGB(x, y, x < SRC_WIDTH / 2 ? 0xff0000 : 0x0000ff);
+            }
+        }
+        mSource = mFolder.newFile("source.png");
+        ImageIO.write(image, "png", mSource);
+        mEngine = new CropEngine(4, 16 << 20);
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    /**
+     * 短边填满预览窗口,显示原图中心.
+     */
+    private static CropParams centerParams() {
+        return new CropParams(SRC_WIDTH / 2, SRC_HEIGHT / 2, RADIUS * 2f / SRC_HEIGHT, RADIUS);
+    }
+
+    @Test
+    public void cropsExactSizes() throws IOException {
+        File large = mFolder.newFile("large.png");
+        File small = mFolder.newFile("small.png");
+        CountingFactory source = new CountingFactory(mSource);
+        CropEngine.Job job = new CropEngine.Job(source, centerParams())
+                .addOutput(large, 256)
+                .addOutput(small, 48);
+        List<CropEngine.Result> results = mEngine.crop(job);
+
+        assertEquals(2, results.size());
+        assertEquals(256, results.get(0).getWidth());
+        assertEquals(48, results.get(1).getHeight());
+        BufferedImage image = ImageIO.read(large);
+        assertEquals(256, image.getWidth());
+        assertEquals(256, image.getHeight());
+        assertEquals(large.length(), results.get(0).getByteSize());
+        //多个输出尺寸共用一个解码器
+        assertEquals(1, source.mOpenCount.get());
+    }
+
+    @Test
+    public void cropRectMatchesParams() throws IOException {
+        File file = mFolder.newFile("crop.png");
+        mEngine.crop(new CropEngine.Job(ImageIoRegionDecoder.fromFile(mSource), centerParams())
+                .addOutput(file, -1));
+        //裁剪范围是原图中间600x600的区域,左右两半的颜色不同
+        BufferedImage image = ImageIO.read(file);
+        assertEquals(SRC_HEIGHT, image.getWidth());
+        assertEquals(SRC_HEIGHT, image.getHeight());
+        assertEquals(0xffff0000, image.getRGB(10, 300));
+        assertEquals(0xff0000ff, image.getRGB(590, 300));
+    }
+
+    @Test
+    public void rectangularParamsKeepAspectRatio() throws IOException {
+        File file = mFolder.newFile("wide.png");
+        //预览窗口400x200,宽度填满原图
+        CropParams params = new CropParams(SRC_WIDTH / 2, SRC_HEIGHT / 2, 400f / SRC_WIDTH, 400, 200);
+        List<CropEngine.Result> results = mEngine.crop(
+                new CropEngine.Job(ImageIoRegionDecoder.fromFile(mSource), params).addOutput(file, 200));
+        assertEquals(200, results.get(0).getWidth());
+        assertEquals(100, results.get(0).getHeight());
+        BufferedImage image = ImageIO.read(file);
+        assertEquals(100, image.getHeight());
+    }
+
+    @Test
+    public void rotatedParamsCropDisplayOrientation() throws IOException {
+        File file = mFolder.newFile("rotated.png");
+        //顺时针旋转90度后显示为600x800,原图的左半边(红色)在上面
+        CropParams params = new CropParams(SRC_HEIGHT / 2, SRC_WIDTH / 2, RADIUS * 2f / SRC_HEIGHT,
+                RADIUS * 2, RADIUS * 2, 6);
+        mEngine.crop(new CropEngine.Job(ImageIoRegionDecoder.fromFile(mSource), params).addOutput(file, -1));
+        BufferedImage image = ImageIO.read(file);
+        assertEquals(SRC_HEIGHT, image.getWidth());
+        assertEquals(SRC_HEIGHT, image.getHeight());
+        assertEquals(0xffff0000, image.getRGB(300, 10));
+        assertEquals(0xff0000ff, image.getRGB(300, 590));
+    }
+
+    @Test
+    public void runsJobsInParallel() throws Exception {
+        List<Future<List<CropEngine.Result>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            CropEngine.Job job = new CropEngine.Job(ImageIoRegionDecoder.fromFile(mSource), centerParams())
+                    .addOutput(mFolder.newFile("a" + i + ".png"), 128)
+                    .addOutput(mFolder.newFile("b" + i + ".png"), 64);
+            futures.add(mEngine.submit(job));
+        }
+        for (Future<List<CropEngine.Result>> future : futures) {
+            assertEquals(2, future.get().size());
+        }
+        assertEquals(16, mEngine.getCompletedImageCount());
+        assertEquals(0, mEngine.getFailedJobCount());
+        assertTrue(mEngine.getThroughput() > 0);
+    }
+
+    @Test
+    public void failedJobIsCounted() throws Exception {
+        File output = mFolder.newFile("missing.png");
+        CropEngine.Job job = new CropEngine.Job(
+                ImageIoRegionDecoder.fromFile(new File(mFolder.getRoot(), "missing")), centerParams())
+                .addOutput(output, 64);
+        try {
+            mEngine.submit(job).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, mEngine.getFailedJobCount());
+        assertEquals(0, mEngine.getThroughput(), 0);
+    }
+
+    /**
+     * 解码时记录申请的像素内存和实际解码出的像素.
+     */
+    private static class BudgetRecorder implements RegionDecoder.Factory {
+
+        private final File mFile;
+        private CropEngine mEngine;
+        long mUsedBytes;
+        RegionDecoder.Pixels mDecoded;
+
+        BudgetRecorder(File file) {
+            this.mFile = file;
+        }
+
+        @Override
+        public RegionDecoder open() throws IOException {
+            final RegionDecoder decoder = new ImageIoRegionDecoder(mFile);
+            return new RegionDecoder() {
+                @Override
+                public int getWidth() {
+                    return decoder.getWidth();
+                }
+
+                @Override
+                public int getHeight() {
+                    return decoder.getHeight();
+                }
+
+                @Override
+                public Pixels decodeRegion(int left, int top, int right, int bottom, int sampleSize)
+                        throws IOException {
+                    mDecoded = decoder.decodeRegion(left, top, right, bottom, sampleSize);
+                    mUsedBytes = mEngine.getUsedDecodeBytes();
+                    return mDecoded;
+                }
+
+                @Override
+                public void recycle() {
+                    decoder.recycle();
+                }
+            };
+        }
+    }
+
+    /**
+     * 裁剪一个输出,检查申请的像素内存不小于实际同时存在的最大值:解码的像素,变换方向的副本,
+     * 缩放的浮点数中间结果和缩放后的像素.
+     */
+    private void assertBudgetCoversAllocation(CropParams params, int resolution, boolean rotated)
+            throws IOException {
+        BudgetRecorder recorder = new BudgetRecorder(mSource);
+        recorder.mEngine = mEngine;
+        List<CropEngine.Result> results = mEngine.crop(new CropEngine.Job(recorder, params)
+                .addOutput(mFolder.newFile(), resolution));
+        CropEngine.Result result = results.get(0);
+        RegionDecoder.Pixels decoded = recorder.mDecoded;
+        long decodedBytes = (long) decoded.pixels.length * 4;
+        long orientBytes = rotated ? (long) decoded.width * decoded.height * 4 : 0;
+        int displayHeight = rotated ? decoded.width : decoded.height;
+        long resizeBytes = (long) result.getWidth() * displayHeight * 16
+                + (long) result.getWidth() * result.getHeight() * 4;
+        long peak = decodedBytes + Math.max(orientBytes, resizeBytes);
+        assertTrue(recorder.mUsedBytes + " < " + peak, recorder.mUsedBytes >= peak);
+        assertEquals(0, mEngine.getUsedDecodeBytes());
+    }
+
+    @Test
+    public void memoryBudgetCoversResampleBuffer() throws IOException {
+        assertBudgetCoversAllocation(centerParams(), 256, false);
+        assertBudgetCoversAllocation(centerParams(), 100, false);
+    }
+
+    @Test
+    public void memoryBudgetCoversOrientationCopy() throws IOException {
+        CropParams params = new CropParams(SRC_HEIGHT / 2, SRC_WIDTH / 2, RADIUS * 2f / SRC_HEIGHT,
+                RADIUS * 2, RADIUS * 2, 6);
+        assertBudgetCoversAllocation(params, 256, true);
+    }
+
+    @Test
+    public void memoryBudgetAllowsSingleOversizedRequest() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(1000);
+        assertEquals(1000, budget.getUsedBytes());
+        budget.release(1000);
+        budget.acquire(60);
+        budget.acquire(40);
+        assertEquals(100, budget.getUsedBytes());
+    }
+}
@@ -0,0 +1,289 @@
+package cn.z.cropimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CropGeometry}的测试.
+ */
+public class CropGeometryTest {
+
+    private static final float DELTA = 1e-3f;
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1200;
+    private static final int RADIUS = 432;      //和CropImageView一样,短边的一半乘0.8
+
+    private CropGeometry mGeometry;
+    private GeometryRect mRect;
+
+    private static CropGeometry create(int srcWidth, int srcHeight) {
+        CropGeometry geometry = new CropGeometry();
+        geometry.setSourceSize(srcWidth, srcHeight);
+        geometry.setViewport(VIEW_WIDTH, VIEW_HEIGHT, RADIUS * 2, RADIUS * 2);
+        geometry.reset();
+        return geometry;
+    }
+
+    @Before
+    public void setUp() {
+        mGeometry = create(4000, 3000);
+        mRect = new GeometryRect();
+    }
+
+    @Test
+    public void notReadyWithoutSourceOrViewport() {
+        CropGeometry geometry = new CropGeometry();
+        assertFalse(geometry.isReady());
+        geometry.setSourceSize(100, 100);
+        assertFalse(geometry.isReady());
+        geometry.setViewport(VIEW_WIDTH, VIEW_HEIGHT, RADIUS * 2, RADIUS * 2);
+        assertTrue(geometry.isReady());
+        geometry.setSourceSize(0, 100);
+        geometry.reset();
+        geometry.translate(10, 10);
+        geometry.scale(2);
+        assertFalse(geometry.isReady());
+        assertEquals(0, geometry.getImageScale(), 0);
+    }
+
+    @Test
+    public void resetFitsShortSideToPreview() {
+        assertEquals(RADIUS * 2f / 3000, mGeometry.getImageScale(), DELTA);
+        assertEquals(2000, mGeometry.getCenterX(), 0);
+        assertEquals(1500, mGeometry.getCenterY(), DELTA);
+
+        CropGeometry portrait = create(3000, 4000);
+        assertEquals(RADIUS * 2f / 3000, portrait.getImageScale(), DELTA);
+    }
+
+    @Test
+    public void resetTruncatesOddCenter() {
+        CropGeometry geometry = create(4001, 3001);
+        assertEquals(2000, geometry.getCenterX(), 0);
+        //短边刚好填满预览窗口,中心被调整到短边的正中间
+        assertEquals(1500.5f, geometry.getCenterY(), DELTA);
+    }
+
+    @Test
+    public void scaleCannotShrinkBelowPreview() {
+        float minScale = mGeometry.getImageScale();
+        mGeometry.scale(0.5f);
+        assertEquals(minScale, mGeometry.getImageScale(), 0);
+        mGeometry.scale(3);
+        assertEquals(minScale * 3, mGeometry.getImageScale(), DELTA);
+        mGeometry.scale(0.1f);
+        assertEquals(minScale, mGeometry.getImageScale(), 0);
+    }
+
+    @Test
+    public void sampleSizeIsPowerOfTwoAndDecreasesWhenZoomingIn() {
+        int previous = Integer.MAX_VALUE;
+        for (int i = 0; i < 40; i++) {
+            int sampleSize = mGeometry.getSampleSize();
+            assertEquals(0, sampleSize & (sampleSize - 1));
+            assertTrue(sampleSize <= previous);
+            previous = sampleSize;
+            mGeometry.scale(1.2f);
+        }
+        assertEquals(1, mGeometry.getSampleSize());
+    }
+
+    @Test
+    public void sampleSizeFormula() {
+        //缩放比例0.288,预览质量对应的放大比例0.5:sqrt(1 / 0.144) = 2.6,取整为2,压缩倍数4
+        assertEquals(4, mGeometry.getSampleSize());
+        mGeometry.setDisplayScale(1);
+        assertEquals(2, mGeometry.getSampleSize());
+    }
+
+    @Test
+    public void sampleSizeForTinyScaleDoesNotOverflow() {
+        CropGeometry geometry = new CropGeometry();
+        geometry.setSourceSize(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        geometry.setViewport(VIEW_WIDTH, VIEW_HEIGHT, 2, 2);
+        geometry.setDisplayScale(0.1f);
+        geometry.reset();
+        assertTrue(geometry.getSampleSize() > 0);
+    }
+
+    @Test
+    public void translateFollowsFinger() {
+        mGeometry.scale(2);
+        float scale = mGeometry.getImageScale();
+        mGeometry.translate(100, -50);
+        assertEquals(2000 - 100 / scale, mGeometry.getCenterX(), DELTA);
+        assertEquals(1500 + 50 / scale, mGeometry.getCenterY(), DELTA);
+    }
+
+    @Test
+    public void translateIsClampedToEdges() {
+        float halfPreview = RADIUS / mGeometry.getImageScale();
+        mGeometry.translate(100000, 100000);
+        assertEquals(halfPreview, mGeometry.getCenterX(), DELTA);
+        assertEquals(halfPreview, mGeometry.getCenterY(), DELTA);
+        mGeometry.translate(-100000, -100000);
+        assertEquals(4000 - halfPreview, mGeometry.getCenterX(), DELTA);
+        assertEquals(3000 - halfPreview, mGeometry.getCenterY(), DELTA);
+    }
+
+    @Test
+    public void zoomOutAtEdgePullsCenterBack() {
+        mGeometry.scale(4);
+        mGeometry.translate(-100000, 0);
+        mGeometry.scale(0.25f);
+        float halfPreview = RADIUS / mGeometry.getImageScale();
+        assertEquals(4000 - halfPreview, mGeometry.getCenterX(), DELTA);
+    }
+
+    @Test
+    public void visibleRectCoversView() {
+        mGeometry.getVisibleRect(mRect);
+        float scale = mGeometry.getImageScale();
+        assertEquals(VIEW_WIDTH / scale, mRect.width(), DELTA);
+        assertEquals(VIEW_HEIGHT / scale, mRect.height(), DELTA);
+        assertEquals(mGeometry.getCenterX(), (mRect.left + mRect.right) / 2, DELTA);
+        assertEquals(mGeometry.getCenterY(), (mRect.top + mRect.bottom) / 2, DELTA);
+    }
+
+    @Test
+    public void cropRectIsCenteredSquare() {
+        mGeometry.getCropRect(mRect);
+        assertEquals(500, mRect.left, 0);
+        assertEquals(0, mRect.top, 0);
+        assertEquals(3500, mRect.right, 0);
+        assertEquals(3000, mRect.bottom, 0);
+    }
+
+    @Test
+    public void cropRectSizeIsStableWhilePanning() {
+        mGeometry.scale(2.7f);
+        mGeometry.getCropRect(mRect);
+        float size = mRect.width();
+        for (int i = 0; i < 500; i++) {
+            mGeometry.translate(i % 2 == 0 ? 3.3f : -1.7f, i % 3 == 0 ? -2.1f : 0.9f);
+            mGeometry.getCropRect(mRect);
+            assertEquals(size, mRect.width(), 0);
+            assertEquals(size, mRect.height(), 0);
+            assertEquals(Math.round(mRect.left), mRect.left, 0);
+            assertEquals(Math.round(mRect.top), mRect.top, 0);
+        }
+    }
+
+    @Test
+    public void cropRectStaysInsideSource() {
+        int[][] sizes = {{4000, 3000}, {3000, 4000}, {1000, 1000}, {333, 777}, {7, 5}};
+        for (int[] size : sizes) {
+            CropGeometry geometry = create(size[0], size[1]);
+            for (int i = 0; i < 200; i++) {
+                geometry.scale(i % 20 < 10 ? 1.13f : 0.91f);
+                geometry.translate((i * 37 % 200) - 100, (i * 53 % 200) - 100);
+                geometry.getCropRect(mRect);
+                assertTrue(mRect.toString(), mRect.left >= 0 && mRect.top >= 0);
+                assertTrue(mRect.toString(), mRect.right <= size[0] && mRect.bottom <= size[1]);
+                assertTrue(mRect.toString(), mRect.width() >= 1);
+            }
+        }
+    }
+
+    @Test
+    public void cropSampleSize() {
+        //预览窗口对应3000个原图像素
+        assertEquals(1, mGeometry.getCropSampleSize(-1));
+        assertEquals(1, mGeometry.getCropSampleSize(3000));
+        assertEquals(1, mGeometry.getCropSampleSize(5000));
+        assertEquals(2, mGeometry.getCropSampleSize(1500));
+        assertEquals(2, mGeometry.getCropSampleSize(1001));
+        assertEquals(30, mGeometry.getCropSampleSize(100));
+    }
+
+    @Test
+    public void unclampedAllowsOverscaleAndOverscroll() {
+        float minScale = mGeometry.getMinScale();
+        mGeometry.setClampEnabled(false);
+        mGeometry.scale(0.1f);
+        assertEquals(minScale / 2, mGeometry.getImageScale(), DELTA);
+        assertFalse(mGeometry.isInBounds());
+        assertEquals(minScale, mGeometry.getClampedScale(), 0);
+
+        mGeometry.setTransform(minScale, 2000, 1500);
+        float halfPreview = RADIUS / minScale;
+        mGeometry.translate(-10000, 0);
+        //越过边界后继续向外移动有阻力
+        float overscroll = mGeometry.getCenterX() - (4000 - halfPreview);
+        assertTrue(overscroll > 0);
+        assertTrue(overscroll < 10000 / minScale - (4000 - halfPreview - 2000));
+        assertEquals(4000 - halfPreview, mGeometry.clampCenterX(mGeometry.getCenterX(), minScale), DELTA);
+    }
+
+    @Test
+    public void setTransformIsClampedWhenEnabled() {
+        float minScale = mGeometry.getMinScale();
+        mGeometry.setTransform(minScale / 4, -100, 99999);
+        assertEquals(minScale, mGeometry.getImageScale(), 0);
+        assertTrue(mGeometry.isInBounds());
+    }
+
+    @Test
+    public void centerRangeMatchesClamp() {
+        mGeometry.scale(2);
+        mGeometry.getCenterRange(mRect);
+        float scale = mGeometry.getImageScale();
+        assertEquals(mRect.left, mGeometry.clampCenterX(-1, scale), DELTA);
+        assertEquals(mRect.right, mGeometry.clampCenterX(99999, scale), DELTA);
+        assertEquals(mRect.top, mGeometry.clampCenterY(-1, scale), DELTA);
+        assertEquals(mRect.bottom, mGeometry.clampCenterY(99999, scale), DELTA);
+    }
+
+    @Test
+    public void rectangularPreviewFillsBothSides() {
+        //16:9的预览窗口,宽度先被填满
+        CropGeometry geometry = new CropGeometry();
+        geometry.setSourceSize(4000, 3000);
+        geometry.setViewport(VIEW_WIDTH, VIEW_HEIGHT, 864, 486);
+        geometry.reset();
+        assertEquals(864f / 4000, geometry.getImageScale(), 1e-6);
+        geometry.getCropRect(mRect);
+        assertEquals(4000, mRect.width(), 0);
+        assertEquals(2250, mRect.height(), 0);
+        assertEquals(375, mRect.top, 0);
+
+        //放大后宽高比不变,并且不会因为平移改变
+        geometry.scale(2.3f);
+        geometry.getCropRect(mRect);
+        float width = mRect.width();
+        float height = mRect.height();
+        assertEquals(16f / 9, width / height, 0.01f);
+        for (int i = 0; i < 100; i++) {
+            geometry.translate(i % 2 == 0 ? 7.7f : -3.1f, i % 3 == 0 ? 5.3f : -2.9f);
+            geometry.getCropRect(mRect);
+            assertEquals(width, mRect.width(), 0);
+            assertEquals(height, mRect.height(), 0);
+        }
+    }
+
+    @Test
+    public void rectangularPreviewClampsEachAxis() {
+        CropGeometry geometry = new CropGeometry();
+        geometry.setSourceSize(4000, 3000);
+        geometry.setViewport(VIEW_WIDTH, VIEW_HEIGHT, 400, 800);
+        geometry.reset();
+        float scale = geometry.getImageScale();
+        assertEquals(800f / 3000, scale, 1e-6);
+        geometry.translate(-100000, -100000);
+        assertEquals(4000 - 200 / scale, geometry.getCenterX(), DELTA);
+        assertEquals(3000 - 400 / scale, geometry.getCenterY(), DELTA);
+        geometry.getCenterRange(mRect);
+        assertEquals(200 / scale, mRect.left, DELTA);
+        assertEquals(400 / scale, mRect.top, DELTA);
+    }
+
+    @Test
+    public void scaleHeightKeepsAspectRatio() {
+        assertEquals(128, CropGeometry.scaleHeight(128, 3000, 3000));
+        assertEquals(72, CropGeometry.scaleHeight(128, 1600, 900));
+        assertEquals(1, CropGeometry.scaleHeight(1, 1000, 10));
+    }
+}
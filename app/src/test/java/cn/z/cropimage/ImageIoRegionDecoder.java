@@ -0,0 +1,82 @@
+package cn.z.cropimage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * 用ImageIO实现的{@link RegionDecoder},在JVM上测试{@link CropEngine}.
+ * 和BitmapRegionDecoder一样只解码需要的区域,压缩倍数用隔行隔列采样实现
+ */
+class ImageIoRegionDecoder implements RegionDecoder {
+
+    private final ImageInputStream mInputStream;
+    private final ImageReader mReader;
+    private final int mWidth;
+    private final int mHeight;
+
+    ImageIoRegionDecoder(File file) throws IOException {
+        mInputStream = ImageIO.createImageInputStream(file);
+        if (mInputStream == null) {
+            throw new IOException("cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(mInputStream);
+        if (!readers.hasNext()) {
+            mInputStream.close();
+            throw new IOException("unsupported image " + file);
+        }
+        mReader = readers.next();
+        mReader.setInput(mInputStream, true, true);
+        mWidth = mReader.getWidth(0);
+        mHeight = mReader.getHeight(0);
+    }
+
+    static Factory fromFile(final File file) {
+        return new Factory() {
+            @Override
+            public RegionDecoder open() throws IOException {
+                return new ImageIoRegionDecoder(file);
+            }
+        };
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public synchronized Pixels decodeRegion(int left, int top, int right, int bottom, int sampleSize)
+            throws IOException {
+        ImageReadParam param = mReader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(left, top, right - left, bottom - top));
+        param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+        BufferedImage image = mReader.read(0, param);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return new Pixels(image.getRGB(0, 0, width, height, null, 0, width), width, height,
+                image.getColorModel().hasAlpha());
+    }
+
+    @Override
+    public void recycle() {
+        mReader.dispose();
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
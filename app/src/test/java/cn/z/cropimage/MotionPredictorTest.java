@@ -0,0 +1,87 @@
+package cn.z.cropimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MotionPredictor}的测试.
+ */
+public class MotionPredictorTest {
+
+    private static final float DELTA = 1e-2f;
+    private static final long MS = 1000000;
+    private static final long FRAME = 16 * MS;
+
+    private MotionPredictor mPredictor;
+
+    @Before
+    public void setUp() {
+        mPredictor = new MotionPredictor();
+    }
+
+    @Test
+    public void singleSampleDoesNotPredict() {
+        assertFalse(mPredictor.addSample(100, 100, 1, 0));
+        assertFalse(mPredictor.isMoving());
+        assertEquals(100, mPredictor.predictCenterX(MotionPredictor.LOOKAHEAD_NANOS), DELTA);
+        assertEquals(1, mPredictor.predictScale(MotionPredictor.LOOKAHEAD_NANOS), DELTA);
+    }
+
+    @Test
+    public void steadyPanPredictsAhead() {
+        //每帧向右移动16px,即1000px/s
+        for (int i = 0; i < 10; i++) {
+            mPredictor.addSample(100 + 16 * i, 200, 1, i * FRAME);
+        }
+        assertTrue(mPredictor.isMoving());
+        assertEquals(1000, mPredictor.getVelocityX(), 5);
+        assertEquals(0, mPredictor.getVelocityY(), DELTA);
+        assertEquals(100 + 16 * 9 + 200, mPredictor.predictCenterX(200 * MS), 1);
+        assertEquals(200, mPredictor.predictCenterY(200 * MS), DELTA);
+    }
+
+    @Test
+    public void slowPanIsNotMoving() {
+        //缩放比例为0.5时每帧移动1px,控件上约31px/s
+        for (int i = 0; i < 10; i++) {
+            mPredictor.addSample(100 + i, 100, 0.5f, i * FRAME);
+        }
+        assertFalse(mPredictor.isMoving());
+    }
+
+    @Test
+    public void zoomPredictsScale() {
+        float scale = 1;
+        for (int i = 0; i < 10; i++) {
+            mPredictor.addSample(100, 100, scale, i * FRAME);
+            scale *= 1.05f;
+        }
+        assertTrue(mPredictor.isMoving());
+        float last = scale / 1.05f;
+        assertTrue(mPredictor.predictScale(MotionPredictor.LOOKAHEAD_NANOS) > last * 1.5f);
+    }
+
+    @Test
+    public void reverseDropsOldVelocity() {
+        for (int i = 0; i < 5; i++) {
+            assertFalse(mPredictor.addSample(100 + 16 * i, 100, 1, i * FRAME));
+        }
+        assertTrue(mPredictor.addSample(100 + 16 * 3, 100, 1, 5 * FRAME));
+        assertEquals(1, mPredictor.getReverseCount());
+        assertEquals(-1000, mPredictor.getVelocityX(), 1);
+        assertTrue(mPredictor.predictCenterX(MotionPredictor.LOOKAHEAD_NANOS) < 100 + 16 * 3);
+    }
+
+    @Test
+    public void gapStartsNewMotion() {
+        for (int i = 0; i < 5; i++) {
+            mPredictor.addSample(100 + 16 * i, 100, 1, i * FRAME);
+        }
+        mPredictor.addSample(500, 100, 1, 4 * FRAME + 500 * MS);
+        assertFalse(mPredictor.isMoving());
+        mPredictor.reset();
+        assertFalse(mPredictor.isMoving());
+    }
+}
@@ -0,0 +1,208 @@
+package cn.z.cropimage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Orientation}的测试.
+ */
+public class OrientationTest {
+
+    private static final float DELTA = 1e-3f;
+
+    private static final int WIDTH = 3;
+    private static final int HEIGHT = 2;
+    private static final int[] PIXELS = {
+            1, 2, 3,
+            4, 5, 6};
+
+    @Test
+    public void exifRoundTrip() {
+        for (int exif = 1; exif <= 8; exif++) {
+            assertEquals(exif, Orientation.fromExif(exif).toExif());
+        }
+        assertSame(Orientation.NORMAL, Orientation.fromExif(0));
+        assertSame(Orientation.NORMAL, Orientation.fromExif(9));
+    }
+
+    @Test
+    public void applyRotatesAndFlips() {
+        //6:顺时针旋转90度
+        assertArrayEquals(new int[]{
+                4, 1,
+                5, 2,
+                6, 3}, Orientation.fromExif(6).apply(PIXELS, WIDTH, HEIGHT));
+        //3:旋转180度
+        assertArrayEquals(new int[]{
+                6, 5, 4,
+                3, 2, 1}, Orientation.fromExif(3).apply(PIXELS, WIDTH, HEIGHT));
+        //8:逆时针旋转90度
+        assertArrayEquals(new int[]{
+                3, 6,
+                2, 5,
+                1, 4}, Orientation.fromExif(8).apply(PIXELS, WIDTH, HEIGHT));
+        //2:水平翻转
+        assertArrayEquals(new int[]{
+                3, 2, 1,
+                6, 5, 4}, Orientation.fromExif(2).apply(PIXELS, WIDTH, HEIGHT));
+        //4:垂直翻转
+        assertArrayEquals(new int[]{
+                4, 5, 6,
+                1, 2, 3}, Orientation.fromExif(4).apply(PIXELS, WIDTH, HEIGHT));
+        //5:沿主对角线翻转
+        assertArrayEquals(new int[]{
+                1, 4,
+                2, 5,
+                3, 6}, Orientation.fromExif(5).apply(PIXELS, WIDTH, HEIGHT));
+        //7:沿副对角线翻转
+        assertArrayEquals(new int[]{
+                6, 3,
+                5, 2,
+                4, 1}, Orientation.fromExif(7).apply(PIXELS, WIDTH, HEIGHT));
+        assertSame(PIXELS, Orientation.NORMAL.apply(PIXELS, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void toRawMatchesApply() {
+        float[] point = new float[2];
+        for (int exif = 1; exif <= 8; exif++) {
+            Orientation orientation = Orientation.fromExif(exif);
+            int[] display = orientation.apply(PIXELS, WIDTH, HEIGHT);
+            int displayWidth = orientation.displayWidth(WIDTH, HEIGHT);
+            int displayHeight = orientation.displayHeight(WIDTH, HEIGHT);
+            for (int y = 0; y < displayHeight; y++) {
+                for (int x = 0; x < displayWidth; x++) {
+                    //像素中心映射到原始坐标后仍然是像素中心
+                    orientation.toRaw(x + 0.5f, y + 0.5f, WIDTH, HEIGHT, point);
+                    int rawX = (int) point[0];
+                    int rawY = (int) point[1];
+                    assertEquals("orientation " + exif, PIXELS[rawY * WIDTH + rawX],
+                            display[y * displayWidth + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void toRawRect() {
+        GeometryRect rect = new GeometryRect();
+        float[] point = new float[2];
+        //原图4000x3000,顺时针旋转90度后显示为3000x4000;显示的左上角对应原图的左下角
+        rect.set(0, 0, 1000, 500);
+        Orientation.fromExif(6).toRaw(rect, 4000, 3000, rect, point);
+        assertEquals(0, rect.left, DELTA);
+        assertEquals(2000, rect.top, DELTA);
+        assertEquals(500, rect.right, DELTA);
+        assertEquals(3000, rect.bottom, DELTA);
+
+        rect.set(0, 0, 1000, 500);
+        Orientation.fromExif(3).toRaw(rect, 4000, 3000, rect, point);
+        assertEquals(3000, rect.left, DELTA);
+        assertEquals(2500, rect.top, DELTA);
+        assertEquals(4000, rect.right, DELTA);
+        assertEquals(3000, rect.bottom, DELTA);
+    }
+
+    @Test
+    public void rotateComposes() {
+        assertEquals(Orientation.fromExif(6), Orientation.NORMAL.rotate(90));
+        assertEquals(Orientation.fromExif(3), Orientation.fromExif(6).rotate(90));
+        assertEquals(Orientation.fromExif(8), Orientation.NORMAL.rotate(-90));
+        assertEquals(Orientation.NORMAL, Orientation.fromExif(8).rotate(450));
+        assertEquals(Orientation.fromExif(7), Orientation.fromExif(2).rotate(90));
+        assertEquals(3000, Orientation.NORMAL.rotate(90).displayWidth(4000, 3000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rotateRejectsFreeAngle() {
+        Orientation.NORMAL.rotate(45);
+    }
+
+    @Test
+    public void readExifFromJpeg() throws Exception {
+        assertEquals(6, Orientation.readExif(new ByteArrayInputStream(jpeg(6, false))));
+        assertEquals(8, Orientation.readExif(new ByteArrayInputStream(jpeg(8, true))));
+        byte[] data = jpeg(3, false);
+        assertEquals(3, Orientation.readExif(data, data.length));
+        //数据不完整
+        assertEquals(Orientation.EXIF_NORMAL, Orientation.readExif(data, 30));
+    }
+
+    @Test
+    public void readExifWithoutTag() throws Exception {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+        assertEquals(Orientation.EXIF_NORMAL, Orientation.readExif(new ByteArrayInputStream(png)));
+        byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xda, 0, 2};
+        assertEquals(Orientation.EXIF_NORMAL, Orientation.readExif(jpeg, jpeg.length));
+    }
+
+    /**
+     * 构造只有文件头的JPEG:APP0(JFIF),APP1(EXIF,第一个IFD有两个标签),之后是图像数据的开始.
+     */
+    private static byte[] jpeg(int orientation, boolean littleEndian) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        if (littleEndian) {
+            tiff.write('I');
+            tiff.write('I');
+        } else {
+            tiff.write('M');
+            tiff.write('M');
+        }
+        writeShort(tiff, 42, littleEndian);
+        writeInt(tiff, 8, littleEndian);
+        writeShort(tiff, 2, littleEndian);      //标签数
+        //ImageWidth,LONG
+        writeShort(tiff, 0x0100, littleEndian);
+        writeShort(tiff, 4, littleEndian);
+        writeInt(tiff, 1, littleEndian);
+        writeInt(tiff, 4000, littleEndian);
+        //Orientation,SHORT
+        writeShort(tiff, 0x0112, littleEndian);
+        writeShort(tiff, 3, littleEndian);
+        writeInt(tiff, 1, littleEndian);
+        writeShort(tiff, orientation, littleEndian);
+        writeShort(tiff, 0, littleEndian);
+        writeInt(tiff, 0, littleEndian);        //下一个IFD
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        out.write(0xff);
+        out.write(0xe0);
+        writeShort(out, 16, false);
+        out.write("JFIF\0".getBytes(), 0, 5);
+        out.write(new byte[9], 0, 9);
+        out.write(0xff);
+        out.write(0xe1);
+        writeShort(out, 2 + 6 + tiff.size(), false);
+        out.write("Exif\0\0".getBytes(), 0, 6);
+        out.write(tiff.toByteArray(), 0, tiff.size());
+        out.write(0xff);
+        out.write(0xda);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value & 0xff);
+            out.write(value >> 8 & 0xff);
+        } else {
+            out.write(value >> 8 & 0xff);
+            out.write(value & 0xff);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value & 0xffff, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value & 0xffff, false);
+        }
+    }
+}
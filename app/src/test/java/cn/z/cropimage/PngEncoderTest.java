@@ -0,0 +1,100 @@
+package cn.z.cropimage;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PngEncoder}的测试,用ImageIO解码编码后的数据,和原始像素对比.
+ */
+public class PngEncoderTest {
+
+    private static int[] randomPixels(int width, int height, boolean hasAlpha) {
+        Random random = new Random(width * 31 + height);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            //一半随机一半渐变,让每种过滤方式都有机会被选中
+            int color = i % 2 == 0 ? random.nextInt() : (i * 0x010203);
+            pixels[i] = hasAlpha ? color : color | 0xff000000;
+        }
+        return pixels;
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, boolean hasAlpha, int rowsPerWrite)
+            throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PngEncoder encoder = new PngEncoder(outputStream, width, height, hasAlpha);
+        for (int row = 0; row < height; row += rowsPerWrite) {
+            encoder.writeRows(pixels, row * width, width, Math.min(rowsPerWrite, height - row));
+        }
+        encoder.finish();
+        return outputStream.toByteArray();
+    }
+
+    private static void assertDecodesTo(byte[] png, int[] pixels, int width, int height) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        int[] decoded = image.getRGB(0, 0, width, height, null, 0, width);
+        assertArrayEquals(pixels, decoded);
+    }
+
+    @Test
+    public void encodeRgba() throws Exception {
+        int[] pixels = randomPixels(37, 23, true);
+        assertDecodesTo(encode(pixels, 37, 23, true, 23), pixels, 37, 23);
+    }
+
+    @Test
+    public void encodeRgbIgnoresAlpha() throws Exception {
+        int[] pixels = randomPixels(64, 9, false);
+        byte[] png = encode(pixels, 64, 9, false, 9);
+        assertEquals(2, png[25]);   //IHDR中的颜色类型,2是RGB
+        assertDecodesTo(png, pixels, 64, 9);
+    }
+
+    @Test
+    public void stripsProduceSameBytes() throws Exception {
+        int[] pixels = randomPixels(50, 40, true);
+        byte[] whole = encode(pixels, 50, 40, true, 40);
+        assertArrayEquals(whole, encode(pixels, 50, 40, true, 16));
+        assertArrayEquals(whole, encode(pixels, 50, 40, true, 1));
+    }
+
+    @Test
+    public void largeImageSpansSeveralIdatChunks() throws Exception {
+        int[] pixels = randomPixels(300, 200, true);
+        assertDecodesTo(encode(pixels, 300, 200, true, 16), pixels, 300, 200);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishWithMissingRows() throws Exception {
+        PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), 4, 4, false);
+        encoder.writeRows(new int[16], 0, 4, 2);
+        encoder.finish();
+    }
+
+    @Test
+    public void closeAfterFinishIsNoOp() throws Exception {
+        PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), 4, 4, false);
+        encoder.writeRows(new int[16], 0, 4, 4);
+        encoder.finish();
+        encoder.close();
+        encoder.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeAfterClose() throws Exception {
+        PngEncoder encoder = new PngEncoder(new ByteArrayOutputStream(), 4, 4, false);
+        encoder.writeRows(new int[16], 0, 4, 2);
+        encoder.close();    //取消时不写入剩余的数据,释放压缩器
+        encoder.writeRows(new int[16], 0, 4, 2);
+    }
+}
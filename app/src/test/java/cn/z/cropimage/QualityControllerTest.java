@@ -0,0 +1,81 @@
+package cn.z.cropimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link QualityController}的测试.
+ */
+public class QualityControllerTest {
+
+    private static final float DELTA = 1e-6f;
+    private static final long MS = 1000000;
+
+    private QualityController mController;
+
+    @Before
+    public void setUp() {
+        mController = new QualityController(0.5f);
+        mController.setEnabled(true);
+    }
+
+    @Test
+    public void disabledKeepsFullQuality() {
+        mController.setEnabled(false);
+        mController.onMemoryPressure(QualityController.LEVEL_LOW, 0);
+        assertFalse(mController.update(true, 0));
+        assertEquals(QualityController.LEVEL_FULL, mController.getLevel());
+        assertEquals(0.5f, mController.getDisplayScale(), DELTA);
+    }
+
+    @Test
+    public void gestureReducesAndIdleRestores() {
+        assertTrue(mController.update(true, 0));
+        assertEquals(QualityController.LEVEL_REDUCED, mController.getLevel());
+        assertEquals(QualityController.REASON_GESTURE, mController.getReason());
+        assertEquals(0.25f, mController.getDisplayScale(), DELTA);
+        assertFalse(mController.update(true, 16 * MS));
+        assertTrue(mController.update(false, 32 * MS));
+        assertEquals(QualityController.LEVEL_FULL, mController.getLevel());
+        assertEquals(QualityController.REASON_IDLE, mController.getReason());
+    }
+
+    @Test
+    public void slowDeviceLowersFurther() {
+        mController.onTilesDecoded(200 * MS, 4);
+        assertEquals(50 * MS, mController.getAverageDecodeTime());
+        mController.update(true, 0);
+        assertEquals(QualityController.LEVEL_LOW, mController.getLevel());
+        assertEquals(QualityController.REASON_SLOW, mController.getReason());
+        //手势进行中变快也不提高质量
+        for (int i = 0; i < 50; i++) {
+            mController.onTilesDecoded(MS, 1);
+        }
+        assertFalse(mController.update(true, 16 * MS));
+        assertEquals(QualityController.LEVEL_LOW, mController.getLevel());
+        //下一次手势按照新的耗时选择
+        mController.update(false, 32 * MS);
+        mController.update(true, 48 * MS);
+        assertEquals(QualityController.LEVEL_REDUCED, mController.getLevel());
+    }
+
+    @Test
+    public void slowFramesLowerQuality() {
+        mController.onFrame(20 * MS);
+        mController.update(true, 0);
+        assertEquals(QualityController.LEVEL_LOW, mController.getLevel());
+    }
+
+    @Test
+    public void memoryPressureExpires() {
+        mController.onMemoryPressure(QualityController.LEVEL_REDUCED, 0);
+        assertTrue(mController.update(false, 0));
+        assertEquals(QualityController.LEVEL_REDUCED, mController.getLevel());
+        assertEquals(QualityController.REASON_MEMORY, mController.getReason());
+        assertFalse(mController.update(false, QualityController.MEMORY_PRESSURE_NANOS - 1));
+        assertTrue(mController.update(false, QualityController.MEMORY_PRESSURE_NANOS));
+        assertEquals(QualityController.LEVEL_FULL, mController.getLevel());
+    }
+}
@@ -0,0 +1,97 @@
+package cn.z.cropimage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Resampler}的测试.
+ */
+public class ResamplerTest {
+
+    @Test
+    public void sameSizeReturnsSource() {
+        int[] pixels = {0xff112233, 0xff445566};
+        assertSame(pixels, Resampler.resize(pixels, 2, 1, 2, 1));
+    }
+
+    @Test
+    public void halveAveragesBlocks() {
+        int[] pixels = {
+                0xff000000, 0xff000004, 0xffffffff, 0xffffffff,
+                0xff000008, 0xff00000c, 0xffffffff, 0xffffffff,
+        };
+        int[] result = Resampler.resize(pixels, 4, 2, 2, 1);
+        assertArrayEquals(new int[]{0xff000006, 0xffffffff}, result);
+    }
+
+    @Test
+    public void nonIntegerReductionUsesCoverage() {
+        //3个像素缩小到2个,中间的像素各贡献一半
+        int[] pixels = {0xff000000, 0xff000030, 0xff000090};
+        int[] result = Resampler.resize(pixels, 3, 1, 2, 1);
+        //(0 * 1 + 0x30 * 0.5) / 1.5 = 0x10, (0x30 * 0.5 + 0x90 * 1) / 1.5 = 0x70
+        assertArrayEquals(new int[]{0xff000010, 0xff000070}, result);
+    }
+
+    @Test
+    public void exactOutputSize() {
+        int[] pixels = new int[197 * 131];
+        Arrays.fill(pixels, 0xff808080);
+        int[] result = Resampler.resize(pixels, 197, 131, 100, 67);
+        assertEquals(100 * 67, result.length);
+        for (int color : result) {
+            assertEquals(0xff808080, color);
+        }
+    }
+
+    @Test
+    public void transparentColorDoesNotBleed() {
+        //透明像素的颜色不影响结果的颜色
+        int[] pixels = {0x00ff0000, 0xff0000ff};
+        int[] result = Resampler.resize(pixels, 2, 1, 1, 1);
+        assertArrayEquals(new int[]{0x800000ff}, result);
+    }
+
+    @Test
+    public void upscaleInterpolates() {
+        int[] pixels = {0xff000000, 0xff0000ff};
+        int[] result = Resampler.resize(pixels, 2, 1, 4, 1);
+        assertArrayEquals(new int[]{0xff000000, 0xff000040, 0xff0000bf, 0xff0000ff}, result);
+    }
+
+    @Test
+    public void progressiveProducesEachSize() {
+        int[] pixels = new int[512 * 512];
+        Arrays.fill(pixels, 0xff406080);
+        Resampler.Progressive progressive = new Resampler.Progressive(pixels, 512, 512);
+        int[] sizes = {512, 200, 128, 64, 33};
+        for (int size : sizes) {
+            int[] result = progressive.next(size, size);
+            assertEquals(size * size, result.length);
+            for (int color : result) {
+                assertEquals(0xff406080, color);
+            }
+        }
+    }
+
+    @Test
+    public void progressiveHalvingMatchesDirectBoxFilter() {
+        //整数倍缩小时,逐级减半和一次缩小的结果相同
+        int[] pixels = new int[64 * 64];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | (i * 7 % 256) << 16 | (i * 13 % 256) << 8 | (i % 256);
+        }
+        Resampler.Progressive progressive = new Resampler.Progressive(pixels, 64, 64);
+        progressive.next(32, 32);
+        int[] progressiveResult = progressive.next(8, 8);
+        int[] direct = Resampler.resize(pixels, 64, 64, 8, 8);
+        for (int i = 0; i < direct.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                assertEquals(direct[i] >>> shift & 0xff, progressiveResult[i] >>> shift & 0xff, 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package cn.z.cropimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 每个手势事件的几何计算耗时.
+ * 运行:gradlew :benchmark:jmh
+ */
+@State(Scope.Thread)
+public class CropGeometryBenchmark {
+
+    private CropGeometry mGeometry;
+    private GeometryRect mRect;
+    private int mEvent;
+
+    @Setup
+    public void setUp() {
+        mGeometry = new CropGeometry();
+        mGeometry.setSourceSize(4000, 3000);
+        mGeometry.setViewport(1080, 1920, 432);
+        mGeometry.reset();
+        mGeometry.scale(3);
+        mRect = new GeometryRect();
+    }
+
+    /**
+     * 单指拖动:平移并计算需要解码的区域.
+     */
+    @Benchmark
+    public float drag() {
+        float distance = (mEvent++ & 64) == 0 ? 7.5f : -7.5f;   //来回移动,不会一直停在边界上
+        mGeometry.translate(distance, -distance);
+        mGeometry.getVisibleRect(mRect);
+        return mRect.left + mGeometry.getSampleSize();
+    }
+
+    /**
+     * 两指缩放:缩放并计算需要解码的区域.
+     */
+    @Benchmark
+    public float pinch() {
+        mGeometry.scale((mEvent++ & 32) == 0 ? 1.02f : 1 / 1.02f);
+        mGeometry.getVisibleRect(mRect);
+        return mRect.left + mGeometry.getSampleSize();
+    }
+
+    /**
+     * 计算裁剪范围和压缩倍数.
+     */
+    @Benchmark
+    public float cropRect() {
+        mGeometry.getCropRect(mRect);
+        return mRect.right + mGeometry.getCropSampleSize(100);
+    }
+}